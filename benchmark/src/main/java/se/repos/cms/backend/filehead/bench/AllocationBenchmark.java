@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import se.repos.cms.backend.filehead.LocalCmsItemLookup;
+import se.repos.cms.backend.filehead.LocalItemInterner;
+import se.repos.cms.backend.filehead.LocalPathIndex;
+import se.simonsoft.cms.item.CmsItemId;
+
+/**
+ * Repeated listings of the same folder and tree, with and without interned
+ * paths and ids. Run with the GC profiler, as {@link BenchmarkRunner} does,
+ * and divide gc.alloc.rate.norm by the number of entries for the bytes
+ * allocated per child. With the path index nothing is read from disk, so
+ * what remains is the items and the collections they are returned in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AllocationBenchmark {
+    /**
+     * The number of files in the flat folder, and in the tree.
+     */
+    @Param({ "10000" })
+    public int files;
+
+    @Param({ "false", "true" })
+    public boolean interned;
+
+    @Param({ "false", "true" })
+    public boolean indexed;
+
+    private BenchmarkRepository repository;
+    private LocalPathIndex pathIndex;
+    private LocalCmsItemLookup lookup;
+    private CmsItemId folder;
+    private CmsItemId tree;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        LocalItemInterner.setShared(this.interned ? new LocalItemInterner(
+                LocalItemInterner.DEFAULT_MAX_ENTRIES) : LocalItemInterner.NONE);
+        this.repository = new BenchmarkRepository();
+        this.repository.createFlatFolder("flat", this.files, 16);
+        this.repository.createTree("tree", this.files / 100, 1, 100, 16);
+        this.lookup = new LocalCmsItemLookup(this.repository.getRepository(),
+                this.repository.getUser(), this.repository.getRevision());
+        if (this.indexed) {
+            this.pathIndex = new LocalPathIndex(this.repository.getRoot());
+            this.pathIndex.start();
+            this.lookup.setPathIndex(this.pathIndex);
+        }
+        this.folder = this.repository.getId("flat");
+        this.tree = this.repository.getId("tree");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        LocalItemInterner.setShared(new LocalItemInterner(
+                LocalItemInterner.DEFAULT_MAX_ENTRIES));
+        if (this.pathIndex != null) {
+            this.pathIndex.close();
+        }
+        this.repository.delete();
+    }
+
+    @Benchmark
+    public void getImmediateFiles(Blackhole blackhole) throws Exception {
+        for (CmsItemId id : this.lookup.getImmediateFiles(this.folder)) {
+            blackhole.consume(id);
+        }
+    }
+
+    @Benchmark
+    public int getImmediates() throws Exception {
+        return this.lookup.getImmediates(this.folder).size();
+    }
+
+    @Benchmark
+    public void getDescendants(Blackhole blackhole) {
+        for (CmsItemId id : this.lookup.getDescendants(this.tree)) {
+            blackhole.consume(id);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import se.repos.authproxy.ReposCurrentUser;
+import se.repos.cms.backend.filehead.LocalCmsItem;
+import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.CmsItemPath;
+import se.simonsoft.cms.item.CmsRepository;
+import se.simonsoft.cms.item.RepoRevision;
+import se.simonsoft.cms.item.impl.CmsItemIdUrl;
+
+/**
+ * A throwaway repository in a temporary folder for benchmarks to work on.
+ */
+public class BenchmarkRepository {
+    private final File root;
+    private final CmsRepository repository;
+    private final ReposCurrentUser user;
+    private final RepoRevision revision;
+    private final Random random = new Random(1);
+
+    public BenchmarkRepository() throws IOException {
+        this.root = File.createTempFile("filehead-bench", "").getCanonicalFile();
+        if (!this.root.delete() || !this.root.mkdir()) {
+            throw new IOException("Failed to create benchmark folder " + this.root);
+        }
+        this.repository = new CmsRepository("http://localhost" + this.root.getPath());
+        this.user = new BenchmarkUser();
+        this.revision = new RepoRevision(1, new Date());
+    }
+
+    public File getRoot() {
+        return this.root;
+    }
+
+    public CmsRepository getRepository() {
+        return this.repository;
+    }
+
+    public ReposCurrentUser getUser() {
+        return this.user;
+    }
+
+    public RepoRevision getRevision() {
+        return this.revision;
+    }
+
+    public CmsItemPath getPath(String relative) {
+        return new CmsItemPath(new File(this.root, relative).getPath());
+    }
+
+    public LocalCmsItem getItem(String relative) {
+        return new LocalCmsItem(this.repository, this.user, this.getPath(relative),
+                this.revision);
+    }
+
+    /**
+     * Creates a file of random bytes, and any missing parent folders.
+     */
+    public File createFile(String relative, long size) throws IOException {
+        File file = new File(this.root, relative);
+        FileUtils.forceMkdir(file.getParentFile());
+        byte[] block = new byte[(int) Math.min(size, 64 * 1024)];
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            long written = 0;
+            while (written < size) {
+                this.random.nextBytes(block);
+                int n = (int) Math.min(block.length, size - written);
+                out.write(block, 0, n);
+                written += n;
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    public CmsItemId getId(String relative) {
+        return new CmsItemIdUrl(this.repository, this.getPath(relative));
+    }
+
+    /**
+     * Creates a folder of files of the same size, named f0, f1 and so on.
+     */
+    public void createFlatFolder(String relative, int files, long size)
+            throws IOException {
+        for (int i = 0; i < files; i++) {
+            this.createFile(relative + "/f" + i, size);
+        }
+    }
+
+    /**
+     * Creates a tree where every folder has the same number of subfolders,
+     * d0, d1 and so on, and files, f0, f1 and so on. A width of 1 gives a
+     * deep narrow tree.
+     *
+     * @return The path of the first deepest folder.
+     */
+    public String createTree(String relative, int depth, int width,
+            int filesPerFolder, long size) throws IOException {
+        this.createFlatFolder(relative, filesPerFolder, size);
+        if (depth == 0) {
+            return relative;
+        }
+        String deepest = null;
+        for (int i = 0; i < width; i++) {
+            String below = this.createTree(relative + "/d" + i, depth - 1, width,
+                    filesPerFolder, size);
+            if (deepest == null) {
+                deepest = below;
+            }
+        }
+        return deepest;
+    }
+
+    /**
+     * Creates a folder of files with sizes spread evenly on a log scale from
+     * 256 bytes to 4 MB, like a mix of XML, images and the odd large asset.
+     *
+     * @return The total size.
+     */
+    public long createMixedFolder(String relative, int files) throws IOException {
+        long total = 0;
+        for (int i = 0; i < files; i++) {
+            long size = (long) Math.pow(2, 8 + this.random.nextDouble() * 14);
+            this.createFile(relative + "/f" + i, size);
+            total += size;
+        }
+        return total;
+    }
+
+    public void delete() throws IOException {
+        FileUtils.deleteDirectory(this.root);
+    }
+
+    private static class BenchmarkUser implements ReposCurrentUser {
+        @Override
+        public String getUsername() {
+            return "benchmark";
+        }
+
+        public boolean isAuthenticated() {
+            return true;
+        }
+
+        public String getPassword() {
+            return null;
+        }
+    }
+}
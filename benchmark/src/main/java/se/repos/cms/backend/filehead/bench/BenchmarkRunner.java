@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.util.Statistics;
+
+/**
+ * Runs the benchmarks with the GC profiler and compares the results to a
+ * baseline from an earlier run.
+ * <p>
+ * Usage: BenchmarkRunner baseline-file [include-regex] [--update]
+ * <p>
+ * Every run is written next to the baseline with a .current suffix. The
+ * baseline is written when it doesn't exist or with --update. Exits with 1
+ * if any score, percentile or allocation rate is more than 10% worse than
+ * the baseline.
+ */
+public class BenchmarkRunner {
+    private static final double REGRESSION = 0.10;
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        if (args.length == 0) {
+            System.err.println("Usage: BenchmarkRunner baseline-file"
+                    + " [include-regex] [--update]");
+            System.exit(2);
+        }
+        File baselineFile = new File(args[0]);
+        String include = ".*Benchmark.*";
+        boolean update = false;
+        for (int i = 1; i < args.length; i++) {
+            if ("--update".equals(args[i])) {
+                update = true;
+            } else {
+                include = args[i];
+            }
+        }
+        Collection<RunResult> results = new Runner(new OptionsBuilder()
+                .include(include).addProfiler(GCProfiler.class)
+                .shouldFailOnError(true).build()).run();
+        Map<String, Double> current = toMetrics(results);
+        write(current, new File(baselineFile.getPath() + ".current"));
+        int regressions = 0;
+        if (baselineFile.exists()) {
+            regressions = compare(read(baselineFile), current);
+        }
+        if (update || !baselineFile.exists()) {
+            write(current, baselineFile);
+        }
+        if (regressions > 0) {
+            System.err.println(regressions + " regressions beyond "
+                    + Math.round(REGRESSION * 100) + "% of " + baselineFile);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return Metrics keyed by benchmark, parameters, mode and metric name.
+     */
+    static Map<String, Double> toMetrics(Collection<RunResult> results) {
+        Map<String, Double> metrics = new TreeMap<String, Double>();
+        for (RunResult result : results) {
+            String key = getKey(result.getParams());
+            Result primary = result.getPrimaryResult();
+            metrics.put(key + " score", primary.getScore());
+            metrics.put(key + " error", primary.getScoreError());
+            if (result.getParams().getMode() == Mode.SampleTime) {
+                Statistics statistics = primary.getStatistics();
+                for (double p : PERCENTILES) {
+                    metrics.put(key + " p" + p, statistics.getPercentile(p));
+                }
+            }
+            for (Map.Entry<String, Result> secondary : result.getSecondaryResults()
+                    .entrySet()) {
+                if (secondary.getKey().endsWith("gc.alloc.rate.norm")) {
+                    metrics.put(key + " alloc", secondary.getValue().getScore());
+                }
+            }
+        }
+        return metrics;
+    }
+
+    private static String getKey(BenchmarkParams params) {
+        StringBuilder key = new StringBuilder(params.getBenchmark()
+                .replaceFirst("^.*\\.bench\\.", ""));
+        String separator = "[";
+        for (String name : params.getParamsKeys()) {
+            key.append(separator).append(name).append('=').append(params.getParam(name));
+            separator = ",";
+        }
+        if (!params.getParamsKeys().isEmpty()) {
+            key.append(']');
+        }
+        return key.append(' ').append(params.getMode().shortLabel()).toString();
+    }
+
+    /**
+     * Prints every metric that has got worse by more than the threshold.
+     * Throughput is better higher, times and allocation lower.
+     *
+     * @return The number of regressions.
+     */
+    static int compare(Map<String, Double> baseline, Map<String, Double> current) {
+        int regressions = 0;
+        for (Map.Entry<String, Double> metric : current.entrySet()) {
+            String key = metric.getKey();
+            Double before = baseline.get(key);
+            if (before == null || key.endsWith(" error") || before == 0) {
+                continue;
+            }
+            double change = (metric.getValue() - before) / before;
+            if (key.endsWith(" thrpt score")) {
+                change = -change;
+            }
+            if (change > REGRESSION) {
+                System.err.println(String.format("Regression %+.1f%%: %s %s -> %s",
+                        change * 100, key, before, metric.getValue()));
+                regressions++;
+            }
+        }
+        return regressions;
+    }
+
+    private static Map<String, Double> read(File file) throws IOException {
+        Map<String, Double> metrics = new TreeMap<String, Double>();
+        BufferedReader in = Files.newBufferedReader(file.toPath(),
+                StandardCharsets.UTF_8);
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                if (tab > 0) {
+                    metrics.put(line.substring(0, tab),
+                            Double.valueOf(line.substring(tab + 1)));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return metrics;
+    }
+
+    private static void write(Map<String, Double> metrics, File file)
+            throws IOException {
+        PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(),
+                StandardCharsets.UTF_8));
+        try {
+            for (Map.Entry<String, Double> metric : metrics.entrySet()) {
+                out.println(metric.getKey() + '\t' + metric.getValue());
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
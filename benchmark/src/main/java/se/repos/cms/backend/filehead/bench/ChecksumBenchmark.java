@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.repos.cms.backend.filehead.LocalBlobStore;
+import se.repos.cms.backend.filehead.LocalChecksumCache;
+import se.repos.cms.backend.filehead.LocalCmsItem;
+import se.repos.cms.backend.filehead.LocalSyncPolicy;
+
+/**
+ * Checksums read from the file, from the checksum cache and from the blob
+ * store's metadata.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChecksumBenchmark {
+    @Param({ "4096", "1048576", "67108864" })
+    public long size;
+
+    private BenchmarkRepository repository;
+    private File file;
+    private LocalCmsItem item;
+    private LocalBlobStore store;
+    private File storedFile;
+    private LocalCmsItem storedItem;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.repository = new BenchmarkRepository();
+        this.file = this.repository.createFile("content.bin", this.size);
+        this.item = this.repository.getItem("content.bin");
+        this.store = new LocalBlobStore(new File(this.repository.getRoot(), ".blobs"));
+        this.storedFile = new File(this.repository.getRoot(), "stored.bin");
+        InputStream data = new FileInputStream(this.file);
+        try {
+            this.store.write(this.storedFile, data, LocalSyncPolicy.NONE);
+        } finally {
+            data.close();
+        }
+        this.storedItem = this.repository.getItem("stored.bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        LocalBlobStore.disable(this.repository.getRepository());
+        this.store.close();
+        FileUtils.deleteDirectory(this.store.getDirectory());
+        this.repository.delete();
+    }
+
+    @Benchmark
+    public String read() {
+        LocalChecksumCache.getShared().invalidate(this.file);
+        return this.item.getChecksum().getMd5();
+    }
+
+    @Benchmark
+    public String cached() {
+        return this.item.getChecksum().getMd5();
+    }
+
+    @Benchmark
+    public String blobStore() {
+        LocalBlobStore.enable(this.repository.getRepository(), this.store);
+        try {
+            LocalChecksumCache.getShared().invalidate(this.storedFile);
+            return this.storedItem.getChecksum().getMd5();
+        } finally {
+            LocalBlobStore.disable(this.repository.getRepository());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.repos.cms.backend.filehead.LocalCmsCommit;
+import se.repos.cms.backend.filehead.LocalCommitExecutor;
+import se.repos.cms.backend.filehead.LocalCommitJournal;
+import se.repos.cms.backend.filehead.LocalCommitReport;
+import se.simonsoft.cms.item.commit.CmsPatchset;
+import se.simonsoft.cms.item.commit.FileAdd;
+
+/**
+ * Commits of many small file adds, written one by one, by the commit
+ * executor or through the commit journal.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CommitBenchmark {
+    @Param({ "1000", "10000" })
+    public int files;
+
+    @Param({ "plain", "executor", "journal" })
+    public String mode;
+
+    private BenchmarkRepository repository;
+    private LocalCommitExecutor executor;
+    private LocalCmsCommit commit;
+    private byte[] data;
+    private CmsPatchset patchset;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.repository = new BenchmarkRepository();
+        this.commit = new LocalCmsCommit(this.repository.getRepository(),
+                this.repository.getUser(), this.repository.getRevision());
+        if ("executor".equals(this.mode)) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            this.executor = new LocalCommitExecutor(threads, threads * 4);
+            this.commit.setCommitExecutor(this.executor);
+        } else if ("journal".equals(this.mode)) {
+            this.commit.setCommitJournal(new LocalCommitJournal(new File(
+                    this.repository.getRoot(), ".journal")));
+        }
+        this.data = new byte[4096];
+        new Random(1).nextBytes(this.data);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (this.executor != null) {
+            this.executor.shutdown();
+        }
+        this.repository.delete();
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws IOException {
+        FileUtils.forceMkdir(new File(this.repository.getRoot(), "commit"));
+        this.patchset = new CmsPatchset(this.repository.getRepository(),
+                this.repository.getRevision());
+        for (int i = 0; i < this.files; i++) {
+            this.patchset.add(new FileAdd(this.repository.getPath("commit/f" + i),
+                    new ByteArrayInputStream(this.data)));
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void clean() throws IOException {
+        FileUtils.deleteDirectory(new File(this.repository.getRoot(), "commit"));
+    }
+
+    @Benchmark
+    public LocalCommitReport run() throws Exception {
+        this.commit.run(this.patchset);
+        return this.commit.getLastReport();
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.repos.cms.backend.filehead.LocalCmsItem;
+
+/**
+ * Compares the old heap copy of file contents with the channel transfers in
+ * {@link LocalCmsItem#getContents(java.nio.channels.WritableByteChannel, long, long)}.
+ * Every benchmark writes to the start of the same sink file, so the page cache
+ * rather than the disk is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentTransferBenchmark {
+    @Param({ "4096", "1048576", "67108864" })
+    public long size;
+
+    private BenchmarkRepository repository;
+    private File file;
+    private LocalCmsItem item;
+    private FileOutputStream sink;
+    private FileChannel sinkChannel;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.repository = new BenchmarkRepository();
+        this.file = this.repository.createFile("content.bin", this.size);
+        this.item = this.repository.getItem("content.bin");
+        this.sink = new FileOutputStream(new File(this.repository.getRoot(), "sink.bin"));
+        this.sinkChannel = this.sink.getChannel();
+    }
+
+    @Setup(Level.Invocation)
+    public void rewind() throws IOException {
+        this.sinkChannel.position(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.sink.close();
+        this.repository.delete();
+    }
+
+    /**
+     * How getContents(OutputStream) worked before channel transfers.
+     */
+    @Benchmark
+    public long heapCopy() throws IOException {
+        FileInputStream fis = new FileInputStream(this.file);
+        try {
+            return IOUtils.copyLarge(fis, this.sink);
+        } finally {
+            fis.close();
+        }
+    }
+
+    @Benchmark
+    public long streamWithChannel() {
+        return this.item.getContents(this.sink, 0L, -1L);
+    }
+
+    @Benchmark
+    public long channelTransfer() {
+        return this.item.getContents(this.sinkChannel, 0L, -1L);
+    }
+
+    /**
+     * The last quarter of the file, as for a resumed download.
+     */
+    @Benchmark
+    public long rangeTransfer() {
+        return this.item.getContents(this.sinkChannel, this.size - this.size / 4, -1L);
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.repos.cms.backend.filehead.LocalCmsItemLookup;
+import se.repos.cms.backend.filehead.LocalLockManager;
+import se.repos.cms.backend.filehead.LocalLockRecord;
+import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.CmsItemPath;
+import se.simonsoft.cms.item.commit.CmsItemLockedException;
+
+/**
+ * Locking, lock status and locked listings in a folder where every other
+ * file is locked, single threaded and with threads taking locks side by
+ * side.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LockBenchmark {
+    @Param({ "10000" })
+    public int files;
+
+    private BenchmarkRepository repository;
+    private LocalLockManager manager;
+    private LocalCmsItemLookup lookup;
+    private CmsItemId folder;
+    private CmsItemPath[] paths;
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, CmsItemLockedException {
+        this.repository = new BenchmarkRepository();
+        this.repository.createFlatFolder("locks", this.files, 1024);
+        this.manager = LocalLockManager.getInstance(this.repository.getRepository());
+        this.lookup = new LocalCmsItemLookup(this.repository.getRepository(),
+                this.repository.getUser(), this.repository.getRevision());
+        this.folder = this.repository.getId("locks");
+        this.paths = new CmsItemPath[this.files];
+        for (int i = 0; i < this.files; i++) {
+            this.paths[i] = this.repository.getPath("locks/f" + i);
+            if (i % 2 == 0) {
+                this.manager.lock(this.paths[i], "benchmark", null, 0);
+            }
+        }
+        this.manager.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.manager.close();
+        this.repository.delete();
+    }
+
+    /**
+     * @return The next file that isn't locked in setup.
+     */
+    private CmsItemPath nextFree() {
+        int i = (this.next.getAndIncrement() & Integer.MAX_VALUE) % (this.files / 2);
+        return this.paths[i * 2 + 1];
+    }
+
+    @Benchmark
+    public boolean lockUnlock() throws CmsItemLockedException {
+        LocalLockRecord lock = this.manager.lock(this.nextFree(), "benchmark", null, 0);
+        return this.manager.unlock(lock);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean lockUnlockContended() throws CmsItemLockedException {
+        return this.lockUnlock();
+    }
+
+    @Benchmark
+    public boolean isLockedLocked() {
+        return this.manager.isLocked(this.paths[0]);
+    }
+
+    @Benchmark
+    public boolean isLockedFree() {
+        return this.manager.isLocked(this.paths[1]);
+    }
+
+    @Benchmark
+    public int getImmediatesLocked() throws Exception {
+        return this.lookup.getImmediatesLocked(this.folder).size();
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import se.repos.cms.backend.filehead.LocalCmsItemLookup;
+import se.repos.cms.backend.filehead.LocalPathIndex;
+import se.simonsoft.cms.item.CmsItemId;
+
+/**
+ * Item, immediates and descendants lookups in a flat folder of many files
+ * and in a deep narrow tree, with and without the path index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmark {
+    /**
+     * The number of items looked up in turn by {@link #getItem()}.
+     */
+    private static final int LOOKUPS = 1024;
+
+    /**
+     * flat is one folder of files, deep is a chain of 64 folders of 16 files
+     * each.
+     */
+    @Param({ "flat", "deep" })
+    public String shape;
+
+    /**
+     * The number of files in the flat folder.
+     */
+    @Param({ "100000" })
+    public int files;
+
+    @Param({ "false", "true" })
+    public boolean indexed;
+
+    private BenchmarkRepository repository;
+    private LocalPathIndex pathIndex;
+    private LocalCmsItemLookup lookup;
+    private CmsItemId root;
+    private CmsItemId folder;
+    private CmsItemId[] items;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.repository = new BenchmarkRepository();
+        String folderPath;
+        int folderFiles;
+        if ("flat".equals(this.shape)) {
+            folderPath = "tree";
+            folderFiles = this.files;
+            this.repository.createFlatFolder(folderPath, folderFiles, 1024);
+        } else {
+            folderFiles = 16;
+            folderPath = this.repository.createTree("tree", 64, 1, folderFiles, 1024);
+        }
+        this.lookup = new LocalCmsItemLookup(this.repository.getRepository(),
+                this.repository.getUser(), this.repository.getRevision());
+        if (this.indexed) {
+            this.pathIndex = new LocalPathIndex(this.repository.getRoot());
+            this.pathIndex.start();
+            this.lookup.setPathIndex(this.pathIndex);
+        }
+        this.root = this.repository.getId("tree");
+        this.folder = this.repository.getId(folderPath);
+        Random random = new Random(1);
+        this.items = new CmsItemId[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            this.items[i] = this.repository.getId(folderPath + "/f"
+                    + random.nextInt(folderFiles));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (this.pathIndex != null) {
+            this.pathIndex.close();
+        }
+        this.repository.delete();
+    }
+
+    @Benchmark
+    public Object getItem() throws Exception {
+        this.next = (this.next + 1) % LOOKUPS;
+        return this.lookup.getItem(this.items[this.next]).getKind();
+    }
+
+    @Benchmark
+    public int getImmediates() throws Exception {
+        return this.lookup.getImmediates(this.folder).size();
+    }
+
+    @Benchmark
+    public void getDescendants(Blackhole blackhole) {
+        for (CmsItemId id : this.lookup.getDescendants(this.root)) {
+            blackhole.consume(id);
+        }
+    }
+}
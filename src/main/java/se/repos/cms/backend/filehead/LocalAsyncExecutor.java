@@ -0,0 +1,217 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import se.simonsoft.cms.item.CmsRepository;
+
+/**
+ * Runs file system work for {@link LocalAsyncLookup} on a fixed set of
+ * threads, so that request threads don't wait for slow disks and the
+ * threads waiting for disks are sized for the disks.
+ * <p>
+ * Each repository may only use some of the threads at a time, so a slow
+ * repository can't hold up the others; its further requests queue until
+ * its own requests complete. Requests beyond a total are refused rather
+ * than queued.
+ * <p>
+ * Requests with the same key that are submitted while one is in flight get
+ * its result instead of doing the work again.
+ */
+public class LocalAsyncExecutor {
+    private final ExecutorService pool;
+    private final int maxPerRepository;
+    private final Semaphore admitted;
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<?>> inFlight =
+            new ConcurrentHashMap<>();
+
+    /**
+     * @param threads
+     *            The number of file system operations to run at the same time.
+     * @param maxPerRepository
+     *            The number of those that one repository may use.
+     * @param maxQueued
+     *            The number of requests that may be queued or running, at
+     *            least threads.
+     */
+    public LocalAsyncExecutor(int threads, int maxPerRepository, int maxQueued) {
+        if (maxPerRepository < 1 || maxPerRepository > threads) {
+            throw new IllegalArgumentException("Max per repository " + maxPerRepository
+                    + " not between 1 and threads " + threads);
+        }
+        if (maxQueued < threads) {
+            throw new IllegalArgumentException("Max queued " + maxQueued
+                    + " less than threads " + threads);
+        }
+        final AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread thread = new Thread(r, "filehead-io-"
+                            + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.maxPerRepository = maxPerRepository;
+        this.admitted = new Semaphore(maxQueued);
+    }
+
+    /**
+     * Runs a task for a repository.
+     *
+     * @param key
+     *            Identifies what the task does, so that identical tasks can
+     *            share a result, or null to always run it. Must include
+     *            everything the result depends on.
+     * @return Completes with the task's result or exception, or with a
+     *         {@link RejectedExecutionException} if too many tasks are
+     *         queued or the executor is shut down before the task starts.
+     *         Cancelling it doesn't stop the task.
+     */
+    public <T> CompletableFuture<T> submit(CmsRepository repository, String key,
+            Callable<T> task) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        if (key != null) {
+            @SuppressWarnings("unchecked")
+            CompletableFuture<T> running = (CompletableFuture<T>) this.inFlight
+                    .putIfAbsent(key, future);
+            if (running != null) {
+                LocalMetrics.getShared().increment(LocalMetrics.Counter.ASYNC_COALESCED);
+                return running.thenApply(Function.<T> identity());
+            }
+        }
+        if (!this.admitted.tryAcquire()) {
+            if (key != null) {
+                this.inFlight.remove(key, future);
+            }
+            LocalMetrics.getShared().increment(LocalMetrics.Counter.ASYNC_REJECTED);
+            future.completeExceptionally(new RejectedExecutionException(
+                    "Too many file system requests queued"));
+            return future;
+        }
+        final long queued = System.nanoTime();
+        Task work = new Task(() -> {
+            LocalMetrics.getShared().recordSince(LocalMetrics.Histogram.ASYNC_WAIT,
+                    queued);
+            T result = null;
+            Throwable failure = null;
+            try {
+                result = task.call();
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                // Requests from now on see any later changes.
+                if (key != null) {
+                    this.inFlight.remove(key, future);
+                }
+                this.admitted.release();
+            }
+            if (failure == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        }, e -> {
+            // Shut down.
+            if (key != null) {
+                this.inFlight.remove(key, future);
+            }
+            this.admitted.release();
+            future.completeExceptionally(e);
+        });
+        this.schedule(repository.getUrl(), work);
+        // Callers get their own future so that one can't complete it for all.
+        return key == null ? future : future.thenApply(Function.<T> identity());
+    }
+
+    public void shutdown() {
+        this.pool.shutdown();
+    }
+
+    private void schedule(String repository, Task task) {
+        Lane lane = this.lanes.computeIfAbsent(repository, url -> new Lane());
+        synchronized (lane) {
+            if (lane.running >= this.maxPerRepository) {
+                lane.waiting.add(task);
+                return;
+            }
+            lane.running++;
+        }
+        this.start(lane, task);
+    }
+
+    private void start(Lane lane, Task task) {
+        try {
+            this.pool.execute(() -> {
+                try {
+                    task.run.run();
+                } finally {
+                    this.finished(lane);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shut down, so the tasks waiting would never start either.
+            List<Task> rejected = new ArrayList<>();
+            rejected.add(task);
+            synchronized (lane) {
+                lane.running--;
+                rejected.addAll(lane.waiting);
+                lane.waiting.clear();
+            }
+            for (Task reject : rejected) {
+                reject.reject.accept(e);
+            }
+        }
+    }
+
+    private void finished(Lane lane) {
+        Task next;
+        synchronized (lane) {
+            next = lane.waiting.poll();
+            if (next == null) {
+                lane.running--;
+                return;
+            }
+        }
+        this.start(lane, next);
+    }
+
+    /**
+     * A repository's share of the threads.
+     */
+    private static class Lane {
+        private final Queue<Task> waiting = new ArrayDeque<>();
+        private int running;
+    }
+
+    /**
+     * Work for a lane, and what to do instead if it can't be started.
+     */
+    private static class Task {
+        private final Runnable run;
+        private final Consumer<RejectedExecutionException> reject;
+
+        Task(Runnable run, Consumer<RejectedExecutionException> reject) {
+            this.run = run;
+            this.reject = reject;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+
+import se.simonsoft.cms.item.Checksum;
+import se.simonsoft.cms.item.CmsItem;
+import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.CmsItemKind;
+
+/**
+ * Item lookups, listings, checksums and contents that don't block the
+ * calling thread, run by a {@link LocalAsyncExecutor}. Results and failures
+ * are the same as from the {@link LocalCmsItemLookup} and
+ * {@link LocalCmsItem} methods of the same name.
+ * <p>
+ * Identical lookups and listings by the same user, and checksums of the
+ * same file by anyone, that are requested while one is in flight share its
+ * result. Contents are always read for each request.
+ */
+public class LocalAsyncLookup {
+    private final LocalCmsItemLookup lookup;
+    private final LocalAsyncExecutor executor;
+
+    /**
+     * @param lookup
+     *            Does the work, with its tree walker and path index if set.
+     */
+    public LocalAsyncLookup(LocalCmsItemLookup lookup, LocalAsyncExecutor executor) {
+        this.lookup = lookup;
+        this.executor = executor;
+    }
+
+    public CompletableFuture<CmsItem> getItem(final CmsItemId id) {
+        return this.executor.submit(this.lookup.getRepository(),
+                this.getKey("item", id), () -> this.lookup.getItem(id));
+    }
+
+    /**
+     * @see LocalCmsItemLookup#getImmediates(CmsItemId, ItemType,
+     *      LocalListing.Sort, String, int)
+     */
+    public CompletableFuture<LocalListingPage<CmsItem>> getImmediates(
+            final CmsItemId parent, final ItemType itemType, final LocalListing.Sort sort,
+            final String continuation, final int limit) {
+        String key = this.getKey("list", parent) + "\n" + itemType + "\n" + sort + "\n"
+                + limit + "\n" + continuation;
+        return this.executor.submit(this.lookup.getRepository(), key,
+                () -> this.lookup.getImmediates(parent, itemType, sort, continuation,
+                        limit));
+    }
+
+    /**
+     * @return The checksum of a file as hex, from the blob store or checksum
+     *         cache if they have it.
+     */
+    public CompletableFuture<String> getChecksum(final CmsItemId id,
+            final Checksum.Algorithm algorithm) {
+        // Reading the same file, so the checksum doesn't depend on the user.
+        String key = this.lookup.getRepository().getUrl() + "\nhash\n" + algorithm
+                + "\n" + getPath(id);
+        return this.executor.submit(this.lookup.getRepository(), key, () -> {
+            CmsItem item = this.lookup.getItem(id);
+            if (item.getKind() != CmsItemKind.File) {
+                throw new IllegalArgumentException("Not a file: " + id);
+            }
+            return item.getChecksum().getHex(algorithm);
+        });
+    }
+
+    /**
+     * Writes a range of a file to the receiver, see
+     * {@link LocalCmsItem#getContents(OutputStream, long, long)}. The
+     * receiver is written to from another thread.
+     *
+     * @return The number of bytes written.
+     */
+    public CompletableFuture<Long> getContents(final CmsItemId id,
+            final OutputStream receiver, final long offset, final long length) {
+        return this.executor.submit(this.lookup.getRepository(), null,
+                () -> ((LocalCmsItem) this.lookup.getItem(id)).getContents(receiver,
+                        offset, length));
+    }
+
+    public CompletableFuture<Long> getContents(CmsItemId id, OutputStream receiver) {
+        return this.getContents(id, receiver, 0L, -1L);
+    }
+
+    private String getKey(String operation, CmsItemId id) {
+        return this.lookup.getRepository().getUrl() + "\n" + operation + "\n"
+                + this.lookup.getCurrentUser().getUsername() + "\n"
+                + this.lookup.getCurrentRevision() + "\n" + getPath(id);
+    }
+
+    private static String getPath(CmsItemId id) {
+        return id.getRelPath() == null ? "" : id.getRelPath().getPath();
+    }
+}
@@ -0,0 +1,515 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import se.simonsoft.cms.item.Checksum;
+import se.simonsoft.cms.item.Checksum.Algorithm;
+import se.simonsoft.cms.item.CmsRepository;
+
+/**
+ * Stores file contents once per SHA-1, for repositories with many identical
+ * files. Files in the tree are hard links to their blob, so they are read as
+ * before, and the digests calculated when a blob was stored are looked up
+ * instead of read. Blobs are made read only, because writing a file in place
+ * would change every file with the same contents: all writes to the tree must
+ * go through the store.
+ * <p>
+ * Which blob each file links to is kept in a manifest, appended to as files
+ * are written and deleted, which gives blobs their reference counts. Blobs
+ * no longer referenced are removed by {@link #gc()}, which also drops
+ * manifest entries for files replaced or deleted behind the store's back.
+ * The store must be on the same filesystem as the tree.
+ */
+public class LocalBlobStore {
+    private static final String OBJECTS = "objects";
+    private static final String TEMP = "tmp";
+    private static final String BLOBS_LOG = "blobs.log";
+    private static final String MANIFEST_LOG = "manifest.log";
+    /**
+     * Staged files older than this are left over from crashes.
+     */
+    private static final long TEMP_MAX_AGE = 60 * 60 * 1000L;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentMap<String, LocalBlobStore> stores =
+            new ConcurrentHashMap<String, LocalBlobStore>();
+
+    private final File directory;
+    private final File objects;
+    private final File temp;
+    /**
+     * Blobs by SHA-1.
+     */
+    private final Map<String, Blob> blobs = new HashMap<String, Blob>();
+    /**
+     * SHA-1 by absolute path of the files linked to blobs.
+     */
+    private final Map<String, String> manifest = new HashMap<String, String>();
+    private OutputStream blobsLog;
+    private OutputStream manifestLog;
+
+    /**
+     * Opens a store, creating the folder if needed.
+     */
+    public LocalBlobStore(File directory) {
+        this.directory = directory;
+        this.objects = new File(directory, OBJECTS);
+        this.temp = new File(directory, TEMP);
+        try {
+            FileUtils.forceMkdir(this.objects);
+            FileUtils.forceMkdir(this.temp);
+            this.load();
+            this.blobsLog = new FileOutputStream(new File(directory, BLOBS_LOG), true);
+            this.manifestLog = new FileOutputStream(new File(directory, MANIFEST_LOG),
+                    true);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open blob store " + directory, e);
+        }
+    }
+
+    /**
+     * Makes items and commits in a repository store their contents in a
+     * store. Commits with a {@link LocalCommitJournal} are refused in the
+     * repository from then on, as they would write plain files.
+     */
+    public static void enable(CmsRepository repository, LocalBlobStore store) {
+        stores.put(repository.getUrl(), store);
+    }
+
+    public static void disable(CmsRepository repository) {
+        stores.remove(repository.getUrl());
+    }
+
+    /**
+     * @return The store for a repository, or null if it stores contents as
+     *         plain files.
+     */
+    public static LocalBlobStore get(CmsRepository repository) {
+        return stores.get(repository.getUrl());
+    }
+
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Stores data and links a file to it, replacing the file. The digests of
+     * the data go in the shared {@link LocalChecksumCache} too. Does not
+     * close the data stream.
+     *
+     * @param syncPolicy
+     *            Applies to blobs, which are the only files written.
+     */
+    public LocalWriteResult write(File file, InputStream data, LocalSyncPolicy syncPolicy)
+            throws IOException {
+        String path = getPath(file);
+        Set<Algorithm> algorithms = EnumSet.of(Algorithm.SHA1);
+        algorithms.addAll(LocalChecksumCache.getShared().getAlgorithms());
+        LocalDigest digest = new LocalDigest(algorithms);
+        File staged = new File(this.temp, UUID.randomUUID().toString());
+        long length;
+        try {
+            length = LocalContentWriter.write(staged, data, digest, syncPolicy);
+        } catch (IOException e) {
+            staged.delete();
+            throw e;
+        }
+        Map<Algorithm, String> hex = digest.getHex();
+        String key = hex.get(Algorithm.SHA1);
+        LocalWriteResult result;
+        Blob blob;
+        synchronized (this) {
+            blob = this.blobs.get(key);
+            File blobFile = this.getBlobFile(key);
+            boolean stored = false;
+            if (blob == null || !blobFile.isFile()) {
+                FileUtils.forceMkdir(blobFile.getParentFile());
+                Files.move(staged.toPath(), blobFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                blobFile.setReadOnly();
+                int refs = blob == null ? 0 : blob.refs;
+                blob = new Blob(key, length, blobFile.lastModified(), hex);
+                blob.refs = refs;
+                this.blobs.put(key, blob);
+                this.append(this.blobsLog, blob.format());
+                stored = true;
+            } else {
+                staged.delete();
+            }
+            String previous = this.manifest.get(path);
+            if (key.equals(previous) && isLink(file, blobFile)) {
+                return new LocalWriteResult(LocalWriteResult.Mode.UNCHANGED, length, 0);
+            }
+            LocalChecksumCache.getShared().invalidate(file);
+            link(blobFile, file);
+            if (previous != null) {
+                this.release(previous);
+            }
+            this.manifest.put(path, key);
+            blob.refs++;
+            this.append(this.manifestLog, "L " + key + " " + path);
+            if (stored) {
+                result = new LocalWriteResult(LocalWriteResult.Mode.FULL, length, length);
+            } else {
+                result = new LocalWriteResult(LocalWriteResult.Mode.LINKED, length, 0);
+            }
+        }
+        LocalChecksumCache.getShared().put(file, length, blob.lastModified, hex);
+        return result;
+    }
+
+    /**
+     * Forgets a file that is about to be deleted, so that its blob can be
+     * collected if no other file links to it.
+     */
+    public synchronized void unlink(File file) {
+        String path = getPath(file);
+        String key = this.manifest.remove(path);
+        if (key != null) {
+            this.release(key);
+            this.append(this.manifestLog, "U " + path);
+        }
+    }
+
+    /**
+     * @return The digests stored with the file's blob, or null if the file
+     *         isn't linked to one. Digests of other algorithms are read from
+     *         the file as usual.
+     */
+    public Checksum getChecksum(File file) {
+        Blob blob;
+        synchronized (this) {
+            String key = this.manifest.get(getPath(file));
+            blob = key == null ? null : this.blobs.get(key);
+        }
+        // Blobs are read only, a file with another length or timestamp has
+        // been replaced.
+        if (blob == null || file.length() != blob.length
+                || file.lastModified() != blob.lastModified) {
+            return null;
+        }
+        LocalChecksumCache.getShared().put(file, blob.length, blob.lastModified,
+                blob.hex);
+        return LocalChecksumCache.getShared().getChecksum(file);
+    }
+
+    /**
+     * @return The number of files linking to the blob with a SHA-1, as far as
+     *         the manifest knows.
+     */
+    public synchronized int getReferences(String sha1) {
+        Blob blob = this.blobs.get(sha1);
+        return blob == null ? 0 : blob.refs;
+    }
+
+    public synchronized int getBlobCount() {
+        return this.blobs.size();
+    }
+
+    /**
+     * Drops manifest entries for files that no longer link to their blob,
+     * removes blobs that no file links to, and compacts the logs. Blocks
+     * writes while running.
+     *
+     * @return The number of blobs removed.
+     */
+    public synchronized int gc() {
+        Iterator<Map.Entry<String, String>> entries = this.manifest.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            if (!isLink(new File(entry.getKey()), this.getBlobFile(entry.getValue()))) {
+                entries.remove();
+                this.release(entry.getValue());
+            }
+        }
+        int removed = 0;
+        for (File file : this.listBlobFiles()) {
+            String key = file.getParentFile().getName() + file.getName();
+            Blob blob = this.blobs.get(key);
+            // The link count covers links the manifest lost track of.
+            if ((blob == null || blob.refs == 0) && getLinkCount(file) <= 1) {
+                if (file.delete()) {
+                    this.blobs.remove(key);
+                    removed++;
+                }
+            }
+        }
+        Iterator<Blob> known = this.blobs.values().iterator();
+        while (known.hasNext()) {
+            if (!this.getBlobFile(known.next().key).isFile()) {
+                known.remove();
+            }
+        }
+        File[] staged = this.temp.listFiles();
+        if (staged != null) {
+            long cutoff = System.currentTimeMillis() - TEMP_MAX_AGE;
+            for (File file : staged) {
+                if (file.lastModified() < cutoff) {
+                    file.delete();
+                }
+            }
+        }
+        this.compact();
+        return removed;
+    }
+
+    public synchronized void close() {
+        IOUtils.closeQuietly(this.blobsLog);
+        IOUtils.closeQuietly(this.manifestLog);
+    }
+
+    private File getBlobFile(String key) {
+        return new File(new File(this.objects, key.substring(0, 2)), key.substring(2));
+    }
+
+    private List<File> listBlobFiles() {
+        List<File> files = new ArrayList<File>();
+        File[] folders = this.objects.listFiles();
+        if (folders != null) {
+            for (File folder : folders) {
+                File[] blobFiles = folder.listFiles();
+                if (blobFiles != null) {
+                    for (File file : blobFiles) {
+                        files.add(file);
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    private void release(String key) {
+        Blob blob = this.blobs.get(key);
+        if (blob != null && blob.refs > 0) {
+            blob.refs--;
+        }
+    }
+
+    private void append(OutputStream log, String line) {
+        try {
+            log.write((line + "\n").getBytes(UTF8));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write blob store log in "
+                    + this.directory, e);
+        }
+    }
+
+    private void load() throws IOException {
+        for (String line : readLines(new File(this.directory, BLOBS_LOG))) {
+            Blob blob = Blob.parse(line);
+            if (blob != null) {
+                this.blobs.put(blob.key, blob);
+            }
+        }
+        for (String line : readLines(new File(this.directory, MANIFEST_LOG))) {
+            if (line.startsWith("L ") && line.length() > 43) {
+                String key = line.substring(2, 42);
+                String previous = this.manifest.put(line.substring(43), key);
+                if (previous != null) {
+                    this.release(previous);
+                }
+                Blob blob = this.blobs.get(key);
+                if (blob != null) {
+                    blob.refs++;
+                }
+            } else if (line.startsWith("U ")) {
+                String previous = this.manifest.remove(line.substring(2));
+                if (previous != null) {
+                    this.release(previous);
+                }
+            }
+            // Anything else was torn by a crash.
+        }
+    }
+
+    /**
+     * Rewrites the logs with only what is current.
+     */
+    private void compact() {
+        List<String> blobLines = new ArrayList<String>(this.blobs.size());
+        for (Blob blob : this.blobs.values()) {
+            blobLines.add(blob.format());
+        }
+        List<String> manifestLines = new ArrayList<String>(this.manifest.size());
+        for (Map.Entry<String, String> entry : this.manifest.entrySet()) {
+            manifestLines.add("L " + entry.getValue() + " " + entry.getKey());
+        }
+        IOUtils.closeQuietly(this.blobsLog);
+        IOUtils.closeQuietly(this.manifestLog);
+        try {
+            this.blobsLog = this.rewrite(BLOBS_LOG, blobLines);
+            this.manifestLog = this.rewrite(MANIFEST_LOG, manifestLines);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compact blob store logs in "
+                    + this.directory, e);
+        }
+    }
+
+    /**
+     * @return The log opened for appending again.
+     */
+    private OutputStream rewrite(String name, List<String> lines) throws IOException {
+        File log = new File(this.directory, name);
+        File compacted = new File(this.directory, name + ".new");
+        OutputStream out = new FileOutputStream(compacted);
+        try {
+            for (String line : lines) {
+                out.write((line + "\n").getBytes(UTF8));
+            }
+            out.flush();
+            ((FileOutputStream) out).getFD().sync();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        Files.move(compacted.toPath(), log.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        return new FileOutputStream(log, true);
+    }
+
+    private static List<String> readLines(File log) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(log),
+                    UTF8));
+        } catch (FileNotFoundException e) {
+            return lines;
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return lines;
+    }
+
+    private static String getPath(File file) {
+        String path = file.getAbsolutePath();
+        if (path.indexOf('\n') != -1) {
+            throw new IllegalArgumentException("Line break in file name: " + path);
+        }
+        return path;
+    }
+
+    /**
+     * Replaces a file with a hard link to a blob, atomically.
+     */
+    private static void link(File blob, File file) throws IOException {
+        FileUtils.forceMkdir(file.getParentFile());
+        Path link = new File(file.getParentFile(), "." + file.getName() + "."
+                + UUID.randomUUID() + ".link").toPath();
+        Files.createLink(link, blob.toPath());
+        try {
+            Files.move(link, file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            // Left if the file already was a link to the blob.
+            Files.deleteIfExists(link);
+        }
+    }
+
+    private static boolean isLink(File file, File blob) {
+        try {
+            return Files.isSameFile(file.toPath(), blob.toPath());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The number of hard links to a file, or 0 if the filesystem
+     *         doesn't tell.
+     */
+    private static int getLinkCount(File file) {
+        try {
+            return ((Number) Files.getAttribute(file.toPath(), "unix:nlink")).intValue();
+        } catch (UnsupportedOperationException e) {
+            return 0;
+        } catch (IllegalArgumentException e) {
+            return 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static class Blob {
+        private final String key;
+        private final long length;
+        private final long lastModified;
+        private final Map<Algorithm, String> hex;
+        private int refs;
+
+        private Blob(String key, long length, long lastModified,
+                Map<Algorithm, String> hex) {
+            this.key = key;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hex = hex;
+        }
+
+        private String format() {
+            StringBuilder line = new StringBuilder();
+            line.append(this.key).append(' ').append(this.length).append(' ')
+                    .append(this.lastModified);
+            for (Map.Entry<Algorithm, String> h : this.hex.entrySet()) {
+                line.append(' ').append(h.getKey().name()).append('=')
+                        .append(h.getValue());
+            }
+            return line.toString();
+        }
+
+        private static Blob parse(String line) {
+            String[] fields = line.split(" ");
+            if (fields.length < 3 || fields[0].length() != 40) {
+                return null;
+            }
+            Map<Algorithm, String> hex = new EnumMap<Algorithm, String>(Algorithm.class);
+            try {
+                for (int i = 3; i < fields.length; i++) {
+                    int eq = fields[i].indexOf('=');
+                    hex.put(Algorithm.valueOf(fields[i].substring(0, eq)),
+                            fields[i].substring(eq + 1));
+                }
+                return new Blob(fields[0], Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]), hex);
+            } catch (IllegalArgumentException e) {
+                return null;
+            } catch (StringIndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+    }
+}
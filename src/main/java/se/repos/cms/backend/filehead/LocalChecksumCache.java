@@ -0,0 +1,257 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.simonsoft.cms.item.Checksum;
+import se.simonsoft.cms.item.Checksum.Algorithm;
+import se.simonsoft.cms.item.impl.ChecksumBase;
+
+/**
+ * Bounded cache of file checksums, shared between {@link LocalCmsItem}
+ * instances. Entries are keyed on the canonical path of the file and are only
+ * valid for the file length and modification time they were calculated for,
+ * so a file changed behind our back is simply a cache miss.
+ */
+public class LocalChecksumCache {
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private static final LocalChecksumCache SHARED = new LocalChecksumCache(
+            DEFAULT_MAX_ENTRIES);
+
+    private final Map<String, CachedDigest> entries;
+    private volatile Set<Algorithm> algorithms = LocalDigest.getSupported();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public LocalChecksumCache(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache must hold at least one entry.");
+        }
+        // Access ordered, so the eldest entry is the least recently used one.
+        this.entries = new LinkedHashMap<String, CachedDigest>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, CachedDigest> eldest) {
+                if (this.size() > maxEntries) {
+                    LocalChecksumCache.this.evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return The cache used by all items that are not given one explicitly.
+     */
+    public static LocalChecksumCache getShared() {
+        return SHARED;
+    }
+
+    /**
+     * @return The algorithms calculated together whenever a file is read.
+     */
+    public Set<Algorithm> getAlgorithms() {
+        return this.algorithms;
+    }
+
+    /**
+     * Sets the algorithms to calculate whenever a file is read, defaults to
+     * all supported algorithms. An algorithm that is asked for is always
+     * calculated, so this only matters for which ones come for free.
+     */
+    public void setAlgorithms(Set<Algorithm> algorithms) {
+        Set<Algorithm> copy = EnumSet.noneOf(Algorithm.class);
+        copy.addAll(algorithms);
+        this.algorithms = Collections.unmodifiableSet(copy);
+    }
+
+    /**
+     * Returns a checksum for the given file that is not calculated until one
+     * of its digests is asked for.
+     */
+    public Checksum getChecksum(File file) {
+        return new LazyChecksum(this, file);
+    }
+
+    /**
+     * Returns the digest of the given file, calculating all the
+     * {@link #getAlgorithms()} in one read unless the file is unchanged since
+     * they were last calculated.
+     */
+    public String getHex(File file, Algorithm algorithm) {
+        String key = getKey(file);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        CachedDigest entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(key);
+        }
+        if (entry != null && entry.isValid(length, lastModified)
+                && entry.hex.containsKey(algorithm)) {
+            this.hits.incrementAndGet();
+            return entry.hex.get(algorithm);
+        }
+        this.misses.incrementAndGet();
+        Set<Algorithm> algorithms = EnumSet.of(algorithm);
+        algorithms.addAll(this.algorithms);
+        Map<Algorithm, String> hex = LocalDigest.digest(file, algorithms);
+        // Don't cache a digest of a file that was written to while we read it.
+        if (file.length() == length && file.lastModified() == lastModified) {
+            this.put(key, new CachedDigest(length, lastModified, hex));
+        }
+        return hex.get(algorithm);
+    }
+
+    /**
+     * @return The digest if it is cached for the file as it is now, null
+     *         rather than reading the file if it isn't.
+     */
+    public String getCachedHex(File file, Algorithm algorithm) {
+        String key = getKey(file);
+        CachedDigest entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(key);
+        }
+        if (entry == null || !entry.isValid(file.length(), file.lastModified())) {
+            return null;
+        }
+        return entry.hex.get(algorithm);
+    }
+
+    /**
+     * Stores digests that were calculated elsewhere, for example while the
+     * file was streamed to a client.
+     * 
+     * @param length
+     *            The file length at the time the digests were calculated.
+     * @param lastModified
+     *            The file modification time at the time the digests were
+     *            calculated.
+     */
+    public void put(File file, long length, long lastModified,
+            Map<Algorithm, String> hex) {
+        Map<Algorithm, String> copy = new EnumMap<Algorithm, String>(Algorithm.class);
+        copy.putAll(hex);
+        this.put(getKey(file), new CachedDigest(length, lastModified, copy));
+    }
+
+    private void put(String key, CachedDigest entry) {
+        synchronized (this.entries) {
+            CachedDigest previous = this.entries.get(key);
+            if (previous != null && previous.isValid(entry.length, entry.lastModified)) {
+                // Keep digests of other algorithms for the same contents.
+                for (Map.Entry<Algorithm, String> h : previous.hex.entrySet()) {
+                    if (!entry.hex.containsKey(h.getKey())) {
+                        entry.hex.put(h.getKey(), h.getValue());
+                    }
+                }
+            }
+            this.entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Drops any cached checksum for the given file. Must be called whenever
+     * the file is written to or deleted.
+     */
+    public void invalidate(File file) {
+        String key = getKey(file);
+        synchronized (this.entries) {
+            this.entries.remove(key);
+        }
+    }
+
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    private static String getKey(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    private static class CachedDigest {
+        private final long length;
+        private final long lastModified;
+        private final Map<Algorithm, String> hex;
+
+        public CachedDigest(long length, long lastModified, Map<Algorithm, String> hex) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hex = hex;
+        }
+
+        public boolean isValid(long length, long lastModified) {
+            return this.length == length && this.lastModified == lastModified;
+        }
+    }
+
+    private static class LazyChecksum extends ChecksumBase {
+        private final LocalChecksumCache cache;
+        private final File file;
+        private final Map<Algorithm, String> hex =
+                new ConcurrentHashMap<Algorithm, String>();
+
+        public LazyChecksum(LocalChecksumCache cache, File file) {
+            this.cache = cache;
+            this.file = file;
+        }
+
+        @Override
+        public boolean has(Algorithm a) {
+            return LocalDigest.getSupported().contains(a);
+        }
+
+        @Override
+        public String getHex(Algorithm a) {
+            if (!this.has(a)) {
+                throw new UnsupportedOperationException();
+            }
+            String h = this.hex.get(a);
+            if (h == null) {
+                h = this.cache.getHex(this.file, a);
+                this.hex.put(a, h);
+            }
+            return h;
+        }
+    }
+}
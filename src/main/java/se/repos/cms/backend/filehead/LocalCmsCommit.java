@@ -3,10 +3,22 @@
  */
 package se.repos.cms.backend.filehead;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.inject.Inject;
 
+import org.apache.commons.io.IOUtils;
+
 import se.repos.authproxy.ReposCurrentUser;
 import se.simonsoft.cms.item.CmsItemLock;
+import se.simonsoft.cms.item.CmsItemKind;
 import se.simonsoft.cms.item.CmsItemLockCollection;
 import se.simonsoft.cms.item.CmsItemPath;
 import se.simonsoft.cms.item.CmsRepository;
@@ -25,6 +37,14 @@ public class LocalCmsCommit implements CmsCommit {
     private CmsRepository repository;
     private ReposCurrentUser currentUser;
     private RepoRevision currentRevision;
+    private LocalTreeWalker treeWalker;
+    private LocalPathIndex pathIndex;
+    private LocalCommitJournal commitJournal;
+    private LocalCommitExecutor commitExecutor;
+    private LocalDeltaWriter deltaWriter;
+    private volatile LocalCommitReport lastReport;
+    private long lockTimeout;
+    private LocalSyncPolicy syncPolicy = LocalSyncPolicy.NONE;
 
     @Inject
     public LocalCmsCommit(CmsRepository repository, ReposCurrentUser currentUser,
@@ -37,41 +57,372 @@ public class LocalCmsCommit implements CmsCommit {
         this.currentRevision = currentRevision;
     }
 
+    /**
+     * Makes folder deletes remove folder contents in parallel.
+     */
+    public void setTreeWalker(LocalTreeWalker treeWalker) {
+        this.treeWalker = treeWalker;
+    }
+
+    /**
+     * Makes commits update the index as they write, so that lookups see the
+     * changes before the index' watch service does.
+     */
+    public void setPathIndex(LocalPathIndex pathIndex) {
+        this.pathIndex = pathIndex;
+    }
+
+    /**
+     * Makes commits all or nothing: contents are staged and locks checked for
+     * the whole patchset before anything in the tree is changed. The journal's
+     * {@link LocalCommitJournal#recover()} should have been run at startup.
+     * <p>
+     * Staged contents are moved into place as plain files, so a journal can't
+     * be used in a repository with a {@link LocalBlobStore}, whose files must
+     * all be written through the store.
+     *
+     * @throws IllegalStateException
+     *             If the repository has a blob store.
+     */
+    public void setCommitJournal(LocalCommitJournal commitJournal) {
+        if (commitJournal != null) {
+            this.checkNoBlobStore();
+        }
+        this.commitJournal = commitJournal;
+    }
+
+    private void checkNoBlobStore() {
+        if (LocalBlobStore.get(this.repository) != null) {
+            throw new IllegalStateException("Commit journal not supported with a blob"
+                    + " store, in " + this.repository.getUrl());
+        }
+    }
+
+    /**
+     * Makes commits write files in parallel, see {@link LocalCommitExecutor}.
+     * Not used for commits with a {@link #setCommitJournal(LocalCommitJournal)}.
+     */
+    public void setCommitExecutor(LocalCommitExecutor commitExecutor) {
+        this.commitExecutor = commitExecutor;
+    }
+
+    /**
+     * Makes file modifications write only what differs from the current
+     * contents, and nothing if they are the same, see
+     * {@link LocalDeltaWriter}. Not used for commits with a
+     * {@link #setCommitJournal(LocalCommitJournal)}, or in repositories with a
+     * {@link LocalBlobStore}, where unchanged contents are found by digest.
+     */
+    public void setDeltaWriter(LocalDeltaWriter deltaWriter) {
+        this.deltaWriter = deltaWriter;
+    }
+
+    /**
+     * Sets when written files are forced to disk, default
+     * {@link LocalSyncPolicy#NONE}. With {@link LocalSyncPolicy#BATCH} they
+     * are forced once the whole patchset is written. Commits with a
+     * {@link #setCommitJournal(LocalCommitJournal)} use the journal's policy.
+     */
+    public void setSyncPolicy(LocalSyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * @return What the last commit did, or null. Not set by commits with a
+     *         {@link #setCommitJournal(LocalCommitJournal)}.
+     */
+    public LocalCommitReport getLastReport() {
+        return this.lastReport;
+    }
+
+    /**
+     * @throws CmsItemLockedException
+     *             If another user holds a lock on a changed item or, for
+     *             folder deletes, on anything below it. Nothing is changed.
+     */
     @Override
     public RepoRevision run(CmsPatchset fileModifications) throws CmsItemLockedException {
+        long start = System.nanoTime();
+        this.checkLocks(fileModifications);
+        if (this.commitJournal != null) {
+            this.runTransaction(fileModifications);
+            this.measure(fileModifications, null, start);
+            return this.record(fileModifications);
+        }
+        final List<File> unsynced = Collections.synchronizedList(new ArrayList<File>());
+        if (this.commitExecutor != null) {
+            this.lastReport = this.commitExecutor.execute(fileModifications,
+                    new LocalCommitExecutor.Applier() {
+                        @Override
+                        public LocalWriteResult apply(CmsPatchItem change) {
+                            return LocalCmsCommit.this.apply(change, unsynced);
+                        }
+                    });
+        } else {
+            LocalCommitReport.Tally tally = new LocalCommitReport.Tally();
+            for (CmsPatchItem change : fileModifications) {
+                LocalWriteResult result = this.apply(change, unsynced);
+                if (result != null) {
+                    tally.add(result);
+                }
+            }
+            this.lastReport = tally.toReport(fileModifications.size(), 0,
+                    System.nanoTime() - start);
+        }
+        for (File written : unsynced) {
+            try {
+                LocalContentWriter.sync(written);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to sync " + written, e);
+            }
+        }
+        this.measure(fileModifications, this.lastReport, start);
+        return this.record(fileModifications);
+    }
+
+    /**
+     * Reports a successful commit to the {@link LocalMetrics}.
+     *
+     * @param report
+     *            Null for commits through the journal.
+     */
+    private void measure(CmsPatchset fileModifications, LocalCommitReport report,
+            long startNanos) {
+        LocalMetrics metrics = LocalMetrics.getShared();
+        metrics.increment(LocalMetrics.Counter.COMMITS);
+        metrics.record(LocalMetrics.Histogram.COMMIT_CHANGES, fileModifications.size());
+        if (report != null) {
+            metrics.record(LocalMetrics.Histogram.COMMIT_BYTES,
+                    report.getBytesReceived());
+        }
+        metrics.recordSince(LocalMetrics.Histogram.COMMIT, startNanos);
+    }
+
+    /**
+     * Records a completed commit in the repository's
+     * {@link LocalRevisionLog}, if it has one. Commits that fail are not
+     * recorded, not even journaled ones that failed after their commit point
+     * and are completed by {@link LocalCommitJournal#recover()}.
+     *
+     * @return The new revision, or the current one without a log.
+     */
+    private RepoRevision record(CmsPatchset fileModifications) {
+        LocalRevisionLog log = LocalRevisionLog.get(this.repository);
+        if (log == null || fileModifications.isEmpty()) {
+            return this.currentRevision;
+        }
+        Map<String, LocalRevisionLog.Action> changes =
+                new LinkedHashMap<String, LocalRevisionLog.Action>();
         for (CmsPatchItem change : fileModifications) {
-            LocalCmsItem changedItem = new LocalCmsItem(this.repository,
-                    this.currentUser, change.getPath(), this.currentRevision);
-            if (change instanceof FileModification) {
-                changedItem.writeContents(((FileModification) change).getWorkingFile());
-            } else if (change instanceof FileAdd) {
-                changedItem.writeContents(((FileAdd) change).getWorkingFile());
-            } else if (change instanceof FileDelete) {
-                changedItem.delete();
-            } else if (change instanceof FolderAdd) {
-                changedItem.mkdir();
-            } else if (change instanceof FolderDelete) {
-                changedItem.delete();
-            } else {
+            LocalRevisionLog.combine(changes, change.getPath().getPath(),
+                    LocalRevisionLog.Action.of(change));
+        }
+        LocalSearchIndex index = LocalSearchIndex.get(this.repository);
+        RepoRevision head = log.getHead();
+        long previous = head == null ? 0 : head.getNumber();
+        RepoRevision revision = log.append(this.currentUser.getUsername(), changes);
+        // An index that missed a revision stays behind so that it catches up.
+        if (index != null && index.getRevision() == previous) {
+            index.setRevision(revision.getNumber());
+        }
+        return revision;
+    }
+
+    /**
+     * @param unsynced
+     *            Gets the files written, if they should be forced to disk
+     *            when the commit is done.
+     * @return How the file was written, null for changes that don't write.
+     */
+    private LocalWriteResult apply(CmsPatchItem change, List<File> unsynced) {
+        if (change instanceof FileModification || change instanceof FileAdd) {
+            // Writes need no item, which matters for large imports.
+            File target = new File(change.getPath().getPath());
+            if (target.isDirectory()) {
                 throw new UnsupportedOperationException(
-                        "Filesystem modification not supported for change type "
-                                + change.getClass().getSimpleName());
+                        "Cannot write data stream to folder: " + change.getPath());
+            }
+            LocalWriteResult written;
+            LocalBlobStore store = LocalBlobStore.get(this.repository);
+            if (store != null) {
+                written = LocalCmsItem.writeContents(store, target,
+                        change instanceof FileModification
+                                ? ((FileModification) change).getWorkingFile()
+                                : ((FileAdd) change).getWorkingFile(), this.syncPolicy);
+            } else if (change instanceof FileModification && this.deltaWriter != null) {
+                written = this.writeDelta(target,
+                        ((FileModification) change).getWorkingFile());
+            } else {
+                written = LocalWriteResult.full(LocalCmsItem.writeContents(target,
+                        change instanceof FileModification
+                                ? ((FileModification) change).getWorkingFile()
+                                : ((FileAdd) change).getWorkingFile(), this.syncPolicy));
+            }
+            if (written.getMode() == LocalWriteResult.Mode.UNCHANGED) {
+                return written;
+            }
+            if (this.syncPolicy == LocalSyncPolicy.BATCH) {
+                unsynced.add(target);
             }
+            this.refreshIndex(target);
+            return written;
         }
-        return this.currentRevision;
+        LocalCmsItem changedItem = new LocalCmsItem(this.repository,
+                this.currentUser, change.getPath(), this.currentRevision);
+        if (change instanceof FileDelete) {
+            changedItem.delete();
+        } else if (change instanceof FolderAdd) {
+            changedItem.mkdir();
+        } else if (change instanceof FolderDelete) {
+            if (this.treeWalker != null) {
+                changedItem.delete(this.treeWalker);
+            } else {
+                changedItem.delete();
+            }
+        } else {
+            throw new UnsupportedOperationException(
+                    "Filesystem modification not supported for change type "
+                            + change.getClass().getSimpleName());
+        }
+        this.refreshIndex(changedItem.getTrackedFile());
+        return null;
     }
 
+    private LocalWriteResult writeDelta(File target, InputStream data) {
+        try {
+            return this.deltaWriter.write(target, data, LocalChecksumCache.getShared()
+                    .getAlgorithms(), this.syncPolicy);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write " + target, e);
+        } finally {
+            IOUtils.closeQuietly(data);
+        }
+    }
+
+    private void checkLocks(CmsPatchset fileModifications)
+            throws CmsItemLockedException {
+        LocalLockManager locks = LocalLockManager.getInstance(this.repository);
+        for (CmsPatchItem change : fileModifications) {
+            LocalLockRecord lock = locks.get(change.getPath());
+            if (lock != null && !lock.isOwner(this.currentUser.getUsername())) {
+                throw new CmsItemLockedException(this.repository, change.getPath());
+            }
+            if (change instanceof FolderDelete) {
+                for (LocalLockRecord below : locks.getDescendantLocks(change.getPath())) {
+                    if (!below.isOwner(this.currentUser.getUsername())) {
+                        throw new CmsItemLockedException(this.repository,
+                                new CmsItemPath(below.getPath()));
+                    }
+                }
+            }
+        }
+    }
+
+    private void runTransaction(CmsPatchset fileModifications) {
+        // The store may have been enabled after the journal was set.
+        this.checkNoBlobStore();
+        LocalLockManager locks = LocalLockManager.getInstance(this.repository);
+        LocalCommitJournal.Transaction transaction = this.commitJournal.begin();
+        try {
+            for (CmsPatchItem change : fileModifications) {
+                LocalCmsItem changedItem = new LocalCmsItem(this.repository,
+                        this.currentUser, change.getPath(), this.currentRevision);
+                File target = changedItem.getTrackedFile();
+                if (change instanceof FileModification || change instanceof FileAdd) {
+                    if (changedItem.getKind() == CmsItemKind.Folder) {
+                        throw new UnsupportedOperationException(
+                                "Cannot write data stream to folder: "
+                                        + change.getPath());
+                    }
+                    InputStream data = change instanceof FileModification
+                            ? ((FileModification) change).getWorkingFile()
+                            : ((FileAdd) change).getWorkingFile();
+                    try {
+                        transaction.write(target, data);
+                    } finally {
+                        IOUtils.closeQuietly(data);
+                    }
+                } else if (change instanceof FileDelete
+                        || change instanceof FolderDelete) {
+                    transaction.delete(target);
+                } else if (change instanceof FolderAdd) {
+                    transaction.mkdir(target);
+                } else {
+                    throw new UnsupportedOperationException(
+                            "Filesystem modification not supported for change type "
+                                    + change.getClass().getSimpleName());
+                }
+            }
+        } catch (RuntimeException e) {
+            transaction.rollback();
+            throw e;
+        }
+        // No lock file may be written into a folder as it is deleted.
+        locks.drain();
+        transaction.commit();
+        // Not before the commit point, which leaves the tree as it was if it
+        // fails.
+        for (CmsPatchItem change : fileModifications) {
+            if (change instanceof FileDelete || change instanceof FolderDelete) {
+                locks.delete(change.getPath());
+            }
+        }
+        for (File target : transaction.getTargets()) {
+            this.refreshIndex(target);
+        }
+    }
+
+    private void refreshIndex(File changed) {
+        if (this.pathIndex != null) {
+            this.pathIndex.refresh(changed.toPath());
+        }
+        LocalSearchIndex searchIndex = LocalSearchIndex.get(this.repository);
+        if (searchIndex != null) {
+            searchIndex.refresh(changed);
+        }
+    }
+
+    /**
+     * Makes locks taken by this commit expire, see
+     * {@link LocalCmsItemLock#getDateExpiration()}.
+     *
+     * @param lockTimeout
+     *            Milliseconds until locks expire, or 0 for never, the default.
+     */
+    public void setLockTimeout(long lockTimeout) {
+        this.lockTimeout = lockTimeout;
+    }
+
+    /**
+     * Locks all the items or, if any of them is already locked, none of them.
+     */
     @Override
     public CmsItemLockCollection lock(String message, RepoRevision base,
             CmsItemPath... item) throws CmsItemLockedException {
         LocalCmsItemLockCollection locks = new LocalCmsItemLockCollection(this.repository);
-        for (CmsItemPath toLock : item) {
+        if (item.length == 1) {
             locks.add(LocalCmsItemLock.createLocalLock(this.repository, this.currentUser,
-                    toLock, message));
+                    item[0], message, this.lockTimeout));
+            return locks;
+        }
+        for (LocalCmsItemLock lock : LocalCmsItemLock.createLocalLocks(this.repository,
+                this.currentUser, message, this.lockTimeout, item)) {
+            locks.add(lock);
         }
         return locks;
     }
 
+    /**
+     * Locks a folder and everything below it with a single lock.
+     */
+    public CmsItemLockCollection lockRecursive(String message, CmsItemPath folder)
+            throws CmsItemLockedException {
+        LocalCmsItemLockCollection locks = new LocalCmsItemLockCollection(this.repository);
+        locks.add(LocalCmsItemLock.createRecursiveLock(this.repository, this.currentUser,
+                folder, message, this.lockTimeout));
+        return locks;
+    }
+
     @SuppressWarnings("serial")
     private class LocalCmsItemLockCollection extends CmsItemLockCollection {
 
@@ -86,13 +437,14 @@ public class LocalCmsCommit implements CmsCommit {
 
     @Override
     public void unlock(CmsItemLock... lock) {
+        List<LocalLockRecord> records = new ArrayList<LocalLockRecord>(lock.length);
         for (CmsItemLock toUnlock : lock) {
             if (!(toUnlock instanceof LocalCmsItemLock)) {
                 throw new IllegalArgumentException(
                         "Non local lock passed to local commit class!");
             }
-            LocalCmsItemLock localLock = (LocalCmsItemLock) toUnlock;
-            localLock.unlock();
+            records.add(((LocalCmsItemLock) toUnlock).getRecord());
         }
+        LocalLockManager.getInstance(this.repository).unlock(records);
     }
 }
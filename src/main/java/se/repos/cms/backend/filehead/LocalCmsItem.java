@@ -9,14 +9,23 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.inject.Inject;
 
-import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
 import se.repos.authproxy.ReposCurrentUser;
@@ -27,15 +36,24 @@ import se.simonsoft.cms.item.CmsItemKind;
 import se.simonsoft.cms.item.CmsItemPath;
 import se.simonsoft.cms.item.CmsRepository;
 import se.simonsoft.cms.item.RepoRevision;
-import se.simonsoft.cms.item.impl.ChecksumBase;
 import se.simonsoft.cms.item.impl.CmsItemIdUrl;
 import se.simonsoft.cms.item.properties.CmsItemProperties;
 
 public class LocalCmsItem implements CmsItem {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
     private CmsItemPath path;
     private CmsRepository repository;
     private ReposCurrentUser currentUser;
     private RepoRevision currentRevision;
+    private volatile File trackedFile;
+    private volatile CmsItemId id;
+    /**
+     * The interned paths and ids of this folder's children.
+     */
+    private volatile LocalItemInterner.Folder children;
+    private volatile BasicFileAttributes attributes;
+    private volatile boolean attributesRead;
 
     @Inject
     public LocalCmsItem(CmsRepository repository, ReposCurrentUser currentUser,
@@ -54,44 +72,168 @@ public class LocalCmsItem implements CmsItem {
         this.currentRevision = currentRevision;
     }
 
+    /**
+     * Creates an item for a file whose attributes were already read, for
+     * example while listing its folder.
+     */
+    LocalCmsItem(CmsRepository repository, ReposCurrentUser currentUser,
+            CmsItemPath path, RepoRevision currentRevision,
+            BasicFileAttributes attributes) {
+        this(repository, currentUser, path, currentRevision);
+        this.attributes = attributes;
+        this.attributesRead = true;
+    }
+
     public boolean exists() {
-        return this.getTrackedFile().exists();
+        return this.getAttributes() != null;
     }
 
+    /**
+     * @return The files and folders in this folder, leaving out lock files.
+     */
     public List<LocalCmsItem> getChildItems() {
-        ArrayList<LocalCmsItem> children = new ArrayList<LocalCmsItem>();
+        return this.getChildItems(false);
+    }
+
+    private List<LocalCmsItem> getChildItems(final boolean withLockFiles) {
+        final ArrayList<LocalCmsItem> children = new ArrayList<LocalCmsItem>();
         if (this.getKind() != CmsItemKind.Folder) {
             return children;
         }
-        for (File child : this.getTrackedFile().listFiles()) {
-            children.add(new LocalCmsItem(this.repository, this.currentUser, this.path
-                    .append(child.getName()), this.currentRevision));
+        // Walking one level gives us each child with its attributes from a
+        // single stat, or straight from the listing where the platform has them.
+        try {
+            Files.walkFileTree(this.getTrackedFile().toPath(),
+                    EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1,
+                    new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file,
+                                BasicFileAttributes attrs) {
+                            if (!withLockFiles && LocalLockManager.isLockFile(file)) {
+                                return FileVisitResult.CONTINUE;
+                            }
+                            children.add(LocalCmsItem.this.getChildItem(file
+                                    .getFileName().toString(), attrs));
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException e) {
+                            // Removed while we were listing.
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+            LocalMetrics.getShared().increment(LocalMetrics.Counter.FOLDERS_LISTED);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
         return children;
     }
 
-    private File getTrackedFile() {
-        return new File(this.path.getPath());
+    /**
+     * Creates the item for an entry in this folder from already read
+     * attributes.
+     */
+    LocalCmsItem getChildItem(String name, BasicFileAttributes attrs) {
+        LocalItemInterner.Folder folder = this.children;
+        if (folder == null) {
+            folder = LocalItemInterner.getShared().getFolder(this.repository, this.path);
+            this.children = folder;
+        }
+        LocalCmsItem child = new LocalCmsItem(this.repository, this.currentUser,
+                folder.getPath(name), this.currentRevision, attrs);
+        child.id = folder.getId(name);
+        return child;
+    }
+
+    File getTrackedFile() {
+        File file = this.trackedFile;
+        if (file == null) {
+            // Listings that only need ids and attributes never get here.
+            file = new File(this.path.getPath());
+            this.trackedFile = file;
+        }
+        return file;
+    }
+
+    /**
+     * @return The attributes of the file, read once and then kept until
+     *         {@link #refresh()}, or null if the file does not exist.
+     */
+    BasicFileAttributes getAttributes() {
+        if (!this.attributesRead) {
+            BasicFileAttributes read;
+            try {
+                read = Files.readAttributes(this.getTrackedFile().toPath(),
+                        BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                read = null;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            this.attributes = read;
+            this.attributesRead = true;
+        }
+        return this.attributes;
+    }
+
+    /**
+     * Forgets the file attributes read so far, so that kind, size and
+     * existence are read from disk again on next use. Needed only if the file
+     * may have been changed by someone else than this item.
+     */
+    public void refresh() {
+        this.attributesRead = false;
+        this.attributes = null;
+    }
+
+    /**
+     * @return The modification time of the file in milliseconds, or 0 if it
+     *         does not exist.
+     */
+    public long getLastModified() {
+        BasicFileAttributes attrs = this.getAttributes();
+        return attrs == null ? 0L : attrs.lastModifiedTime().toMillis();
     }
 
     @Override
     public CmsItemId getId() {
-        return new CmsItemIdUrl(this.repository, this.path);
+        CmsItemId itemId = this.id;
+        if (itemId == null) {
+            itemId = new CmsItemIdUrl(this.repository, this.path);
+            this.id = itemId;
+        }
+        return itemId;
     }
 
     @Override
     public RepoRevision getRevisionChanged() {
+        LocalRevisionLog log = LocalRevisionLog.get(this.repository);
+        if (log != null) {
+            RepoRevision changed = log.getLastChanged(this.path.getPath());
+            if (changed != null) {
+                return changed;
+            }
+        }
         return this.currentRevision;
     }
 
     @Override
     public String getRevisionChangedAuthor() {
+        LocalRevisionLog log = LocalRevisionLog.get(this.repository);
+        if (log != null) {
+            RepoRevision changed = log.getLastChanged(this.path.getPath());
+            if (changed != null) {
+                return log.getAuthor(changed.getNumber());
+            }
+        }
         return this.currentUser.getUsername();
     }
 
     @Override
     public CmsItemKind getKind() {
-        if (this.getTrackedFile().isDirectory()) {
+        BasicFileAttributes attrs = this.getAttributes();
+        if (attrs != null && attrs.isDirectory()) {
             return CmsItemKind.Folder;
         }
         return CmsItemKind.File;
@@ -105,39 +247,18 @@ public class LocalCmsItem implements CmsItem {
 
     @Override
     public Checksum getChecksum() {
-        final String md5 = this.calculateFileMD5();
-        return new ChecksumBase() {
-            @Override
-            public boolean has(Algorithm a) {
-                return a == Algorithm.MD5;
-            }
-
-            @Override
-            public String getHex(Algorithm a) {
-                if (a == Algorithm.MD5) {
-                    return md5;
-                }
-                throw new UnsupportedOperationException();
-            }
-        };
-    }
-
-    private String calculateFileMD5() {
         if (this.getKind() == CmsItemKind.Folder) {
             throw new UnsupportedOperationException("Cannot checksum the folder: "
                     + this.path);
         }
-        FileInputStream fis = null;
-        try {
-            fis = new FileInputStream(this.getTrackedFile());
-            return DigestUtils.md5Hex(fis);
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e.getCause());
-        } catch (IOException e) {
-            throw new RuntimeException(e.getCause());
-        } finally {
-            IOUtils.closeQuietly(fis);
+        LocalBlobStore store = LocalBlobStore.get(this.repository);
+        if (store != null) {
+            Checksum stored = store.getChecksum(this.getTrackedFile());
+            if (stored != null) {
+                return stored;
+            }
         }
+        return LocalChecksumCache.getShared().getChecksum(this.getTrackedFile());
     }
 
     @Override
@@ -171,26 +292,110 @@ public class LocalCmsItem implements CmsItem {
         if (this.getKind() == CmsItemKind.Folder) {
             return 0L;
         }
-        return this.getTrackedFile().length();
+        BasicFileAttributes attrs = this.getAttributes();
+        return attrs == null ? 0L : attrs.size();
     }
 
     @Override
     public void getContents(OutputStream receiver) {
+        this.getContents(receiver, 0L, -1L);
+    }
+
+    /**
+     * Writes a range of the file to the receiver. Streams backed by a channel
+     * get the data without heap copies.
+     * 
+     * @param offset
+     *            The first byte to write.
+     * @param length
+     *            The number of bytes to write, or a negative number for the
+     *            rest of the file.
+     * @return The number of bytes written.
+     */
+    public long getContents(OutputStream receiver, long offset, long length) {
+        long transferred = this.getContents(LocalContentTransfer.getChannel(receiver),
+                offset, length);
+        try {
+            receiver.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return transferred;
+    }
+
+    /**
+     * Writes a range of the file to the receiver, letting the kernel move the
+     * data when the receiver is a file or socket channel.
+     * 
+     * @param offset
+     *            The first byte to write.
+     * @param length
+     *            The number of bytes to write, or a negative number for the
+     *            rest of the file.
+     * @return The number of bytes written.
+     */
+    public long getContents(WritableByteChannel receiver, long offset, long length) {
+        if (this.getKind() == CmsItemKind.Folder) {
+            throw new UnsupportedOperationException(
+                    "Cannot get data stream from folder: " + this.path);
+        }
+        LocalMetrics metrics = LocalMetrics.getShared();
+        long start = System.nanoTime();
+        try {
+            long transferred = LocalContentTransfer.transfer(this.getTrackedFile(),
+                    receiver, offset, length);
+            metrics.add(LocalMetrics.Counter.BYTES_READ, transferred);
+            return transferred;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            metrics.recordSince(LocalMetrics.Histogram.GET_CONTENTS, start);
+        }
+    }
+
+    /**
+     * Writes the contents of the file to the receiver, calculating the given
+     * digests from the same read. The digests are also stored in the checksum
+     * cache so that a later {@link #getChecksum()} is free.
+     * 
+     * @return The digests of the data that was written to the receiver.
+     */
+    public Checksum getContents(OutputStream receiver, Checksum.Algorithm... algorithms) {
         if (this.getKind() == CmsItemKind.Folder) {
             throw new UnsupportedOperationException(
                     "Cannot get data stream from folder: " + this.path);
         }
+        LocalMetrics metrics = LocalMetrics.getShared();
+        long start = System.nanoTime();
+        File file = this.getTrackedFile();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        LocalDigest digest = new LocalDigest(Arrays.asList(algorithms));
         FileInputStream fis = null;
+        long transferred = 0;
         try {
-            fis = new FileInputStream(this.getTrackedFile());
-            IOUtils.copy(fis, receiver);
+            fis = new FileInputStream(file);
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int read;
+            while ((read = fis.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                receiver.write(buffer, 0, read);
+                transferred += read;
+            }
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
             IOUtils.closeQuietly(fis);
+            metrics.add(LocalMetrics.Counter.BYTES_READ, transferred);
+            metrics.recordSince(LocalMetrics.Histogram.GET_CONTENTS, start);
+        }
+        Map<Checksum.Algorithm, String> hex = digest.getHex();
+        if (file.length() == length && file.lastModified() == lastModified) {
+            LocalChecksumCache.getShared().put(file, length, lastModified, hex);
         }
+        return LocalDigest.toChecksum(hex);
     }
 
     /**
@@ -202,31 +407,111 @@ public class LocalCmsItem implements CmsItem {
             throw new UnsupportedOperationException(
                     "Cannot write data stream to folder: " + this.path);
         }
+        LocalBlobStore store = LocalBlobStore.get(this.repository);
+        long start = System.nanoTime();
+        try {
+            if (store != null) {
+                writeContents(store, this.getTrackedFile(), data, LocalSyncPolicy.NONE);
+            } else {
+                writeContents(this.getTrackedFile(), data);
+            }
+        } finally {
+            this.refresh();
+            LocalMetrics.getShared().recordSince(LocalMetrics.Histogram.WRITE_CONTENTS,
+                    start);
+        }
+    }
+
+    /**
+     * Writes a file without creating an item for it, for commits that write
+     * many. Closes the data stream.
+     * 
+     * @return The number of bytes written.
+     */
+    static long writeContents(File file, InputStream data) {
+        return writeContents(file, data, LocalSyncPolicy.NONE);
+    }
+
+    /**
+     * Like {@link #writeContents(File, InputStream)}, with the digests the
+     * checksum cache wants calculated on the way.
+     */
+    static long writeContents(File file, InputStream data, LocalSyncPolicy syncPolicy) {
+        try {
+            return LocalContentWriter.write(file, data, LocalChecksumCache.getShared()
+                    .getAlgorithms(), syncPolicy);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write " + file, e);
+        } finally {
+            IOUtils.closeQuietly(data);
+        }
+    }
+
+    /**
+     * Like {@link #writeContents(File, InputStream, LocalSyncPolicy)}, with
+     * the contents stored in a blob store.
+     */
+    static LocalWriteResult writeContents(LocalBlobStore store, File file,
+            InputStream data, LocalSyncPolicy syncPolicy) {
         try {
-            FileUtils.copyInputStreamToFile(data, this.getTrackedFile());
+            return store.write(file, data, syncPolicy);
         } catch (IOException e) {
-            throw new RuntimeException(e.getCause());
+            throw new RuntimeException("Failed to store " + file, e);
+        } finally {
+            IOUtils.closeQuietly(data);
         }
     }
 
     /**
-     * Deletes the file this CmsItem tracks.
+     * Deletes the file this CmsItem tracks and, once it is gone, releases the
+     * locks on it and on everything below it.
      */
     public void delete() {
+        LocalLockManager locks = LocalLockManager.getInstance(this.repository);
+        locks.drain();
+        this.deleteTracked();
+        locks.delete(this.path);
+    }
+
+    private void deleteTracked() {
         if (this.getKind() == CmsItemKind.Folder) {
-            for (LocalCmsItem item : this.getChildItems()) {
-                item.delete();
+            // Lock files go too, or the folder can't be deleted.
+            for (LocalCmsItem item : this.getChildItems(true)) {
+                item.deleteTracked();
             }
         }
-        if (!this.getTrackedFile().delete()) {
+        LocalChecksumCache.getShared().invalidate(this.getTrackedFile());
+        LocalBlobStore store = LocalBlobStore.get(this.repository);
+        if (store != null) {
+            store.unlink(this.getTrackedFile());
+        }
+        boolean deleted = this.getTrackedFile().delete();
+        this.refresh();
+        if (!deleted) {
             throw new RuntimeException("Failed to delete local file: " + this.path);
         }
     }
 
+    /**
+     * Like {@link #delete()}, with the contents of folders deleted in
+     * parallel by the given walker.
+     */
+    public void delete(LocalTreeWalker treeWalker) {
+        LocalLockManager locks = LocalLockManager.getInstance(this.repository);
+        locks.drain();
+        try {
+            treeWalker.delete(this.path, LocalBlobStore.get(this.repository));
+        } finally {
+            this.refresh();
+        }
+        locks.delete(this.path);
+    }
+
     /**
      * Creates a directory with the path given by this item.
      */
     public void mkdir() {
         this.getTrackedFile().mkdirs();
+        this.refresh();
     }
 }
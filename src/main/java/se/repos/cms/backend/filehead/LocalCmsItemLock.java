@@ -3,14 +3,13 @@
  */
 package se.repos.cms.backend.filehead;
 
-import java.io.File;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 import javax.inject.Inject;
 
-import org.apache.commons.io.FileUtils;
-
 import se.repos.authproxy.ReposCurrentUser;
 import se.simonsoft.cms.item.CmsItemId;
 import se.simonsoft.cms.item.CmsItemLock;
@@ -22,112 +21,133 @@ import se.simonsoft.cms.item.impl.CmsItemIdUrl;
 public class LocalCmsItemLock implements CmsItemLock {
     private CmsRepository repository;
     private ReposCurrentUser currentUser;
-    private CmsItemPath lockPath;
+    private LocalLockRecord record;
 
     @Inject
     private LocalCmsItemLock(CmsRepository repository, ReposCurrentUser currentUser,
-            CmsItemPath lockPath) {
+            LocalLockRecord record) {
         this.repository = repository;
         this.currentUser = currentUser;
-        this.lockPath = lockPath;
+        this.record = record;
     }
 
     public static LocalCmsItemLock createLocalLock(CmsRepository repository,
             ReposCurrentUser currentUser, CmsItemPath lockedItem, String lockComment)
             throws CmsItemLockedException {
-        if (isLocked(repository, lockedItem)) {
-            throw new CmsItemLockedException(repository, lockedItem);
-        }
+        return createLocalLock(repository, currentUser, lockedItem, lockComment, 0);
+    }
+
+    /**
+     * @param timeout
+     *            Milliseconds until the lock expires, or 0 for never.
+     */
+    public static LocalCmsItemLock createLocalLock(CmsRepository repository,
+            ReposCurrentUser currentUser, CmsItemPath lockedItem, String lockComment,
+            long timeout) throws CmsItemLockedException {
+        LocalLockRecord record = LocalLockManager.getInstance(repository).lock(
+                lockedItem, currentUser.getUsername(), lockComment, timeout);
+        return new LocalCmsItemLock(repository, currentUser, record);
+    }
 
-        Date creationDate = new Date();
-        CmsItemPath lockPath = getLockPath(lockedItem);
-        File lockFile = LocalCmsItemLock.getLockFile(repository, lockPath);
-        String lockFileContents = creationDate.getTime() + ":" + lockComment;
-        try {
-            FileUtils.write(lockFile, lockFileContents);
-        } catch (IOException e) {
-            throw new RuntimeException(e.getCause());
+    /**
+     * Locks all the items or none of them.
+     */
+    public static List<LocalCmsItemLock> createLocalLocks(CmsRepository repository,
+            ReposCurrentUser currentUser, String lockComment, long timeout,
+            CmsItemPath... lockedItems) throws CmsItemLockedException {
+        List<LocalLockRecord> records = LocalLockManager.getInstance(repository).lock(
+                Arrays.asList(lockedItems), currentUser.getUsername(), lockComment,
+                timeout);
+        List<LocalCmsItemLock> locks = new ArrayList<LocalCmsItemLock>(records.size());
+        for (LocalLockRecord record : records) {
+            locks.add(new LocalCmsItemLock(repository, currentUser, record));
         }
-        return new LocalCmsItemLock(repository, currentUser, lockPath);
+        return locks;
+    }
+
+    /**
+     * Locks a folder and everything below it with a single lock.
+     */
+    public static LocalCmsItemLock createRecursiveLock(CmsRepository repository,
+            ReposCurrentUser currentUser, CmsItemPath lockedFolder, String lockComment,
+            long timeout) throws CmsItemLockedException {
+        LocalLockRecord record = LocalLockManager.getInstance(repository).lockRecursive(
+                lockedFolder, currentUser.getUsername(), lockComment, timeout);
+        return new LocalCmsItemLock(repository, currentUser, record);
     }
 
     public static LocalCmsItemLock getLocalLock(CmsRepository repository,
             ReposCurrentUser currentUser, CmsItemPath lockedItem) {
-        if (!isLocked(repository, lockedItem)) {
+        LocalLockRecord record = LocalLockManager.getInstance(repository).get(lockedItem);
+        if (record == null) {
             return null;
         }
-        CmsItemPath lockPath = getLockPath(lockedItem);
-        return new LocalCmsItemLock(repository, currentUser, lockPath);
-    }
-
-    public static boolean isLocked(CmsRepository repository, CmsItemPath item) {
-        return getLockFile(repository, getLockPath(item)).exists();
+        return new LocalCmsItemLock(repository, currentUser, record);
     }
 
-    private static CmsItemPath getLockPath(CmsItemPath lockedItem) {
-        // The lock file has the same name as the item it locks, but with a
-        // ".lock" suffix.
-        return new CmsItemPath(lockedItem.getPath() + ".lock");
+    static LocalCmsItemLock getLocalLock(CmsRepository repository,
+            ReposCurrentUser currentUser, LocalLockRecord record) {
+        return new LocalCmsItemLock(repository, currentUser, record);
     }
 
-    private static File getLockFile(CmsRepository repository, CmsItemPath lockPath) {
-        String filePath = repository.getPath() + lockPath.getPath();
-        return new File(filePath);
+    public static boolean isLocked(CmsRepository repository, CmsItemPath item) {
+        return LocalLockManager.getInstance(repository).isLocked(item);
     }
 
-    private static String getLockFileContents(CmsRepository repository,
-            CmsItemPath lockPath) {
-        try {
-            return FileUtils.readFileToString(getLockFile(repository, lockPath));
-        } catch (IOException e) {
-            throw new RuntimeException(e.getCause());
-        }
+    LocalLockRecord getRecord() {
+        return this.record;
     }
 
     @Override
     public String getComment() {
-        return LocalCmsItemLock.getLockFileContents(this.repository, this.lockPath)
-                .split(":")[1];
+        return this.record.getComment();
     }
 
     @Override
     public Date getDateCreation() {
-        try {
-            long epochTime = Long.parseLong(LocalCmsItemLock.getLockFileContents(
-                    this.repository, this.lockPath).split(":")[0]);
-            return new Date(epochTime);
-        } catch (NumberFormatException e) {
-            throw new RuntimeException(e.getCause());
-        }
+        return new Date(this.record.getCreated());
     }
 
     @Override
     public Date getDateExpiration() {
-        // There is no defined expiration date for this lock.
-        return null;
+        if (this.record.getExpires() == 0) {
+            // The lock doesn't expire.
+            return null;
+        }
+        return new Date(this.record.getExpires());
     }
 
     @Override
     public String getToken() {
-        // The token is the lock file contents.
-        return getLockFileContents(this.repository, this.lockPath);
+        return this.record.getToken();
     }
 
     @Override
     public String getOwner() {
-        return this.currentUser.getUsername();
+        if (this.record.getOwner() == null) {
+            // Lock files didn't always store the owner.
+            return this.currentUser.getUsername();
+        }
+        return this.record.getOwner();
     }
 
     @Override
     public CmsItemId getItemId() {
-        return new CmsItemIdUrl(this.repository, this.lockPath);
+        if (this.record.isBatched()) {
+            // Shared by the batch, in the repository root.
+            return new CmsItemIdUrl(this.repository, new CmsItemPath(LocalLockManager
+                    .getBatchPath(this.record.getToken())));
+        }
+        // The lock file is next to the item it locks, with a reserved prefix.
+        return new CmsItemIdUrl(this.repository, new CmsItemPath(LocalLockManager
+                .getLockPath(this.record.getPath())));
     }
 
     /**
-     * Unlocks this lock by deleting the lock file. Using the receiving object
-     * after calling this method is undefined.
+     * Unlocks this lock, unless it was already unlocked. Using the receiving
+     * object after calling this method is undefined.
      */
     public void unlock() {
-        LocalCmsItemLock.getLockFile(this.repository, this.lockPath).delete();
+        LocalLockManager.getInstance(this.repository).unlock(this.record);
     }
 }
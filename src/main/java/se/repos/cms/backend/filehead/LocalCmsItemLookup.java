@@ -3,12 +3,28 @@
  */
 package se.repos.cms.backend.filehead;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.inject.Inject;
 
 import se.repos.authproxy.ReposCurrentUser;
+import se.simonsoft.cms.item.Checksum;
 import se.simonsoft.cms.item.CmsItem;
 import se.simonsoft.cms.item.CmsItemId;
 import se.simonsoft.cms.item.CmsItemKind;
@@ -24,6 +40,8 @@ public class LocalCmsItemLookup implements CmsItemLookup {
     private CmsRepository repository;
     private ReposCurrentUser currentUser;
     private RepoRevision currentRevision;
+    private LocalTreeWalker treeWalker;
+    private LocalPathIndex pathIndex;
 
     @Inject
     public LocalCmsItemLookup(CmsRepository repository, ReposCurrentUser currentUser,
@@ -36,16 +54,56 @@ public class LocalCmsItemLookup implements CmsItemLookup {
         this.currentRevision = currentRevision;
     }
 
+    /**
+     * Makes {@link #getDescendants(CmsItemId)} and
+     * {@link #getFolderSize(CmsItemId)} list folders in parallel. Without it
+     * descendants are listed lazily, and sizes counted, by the calling thread.
+     */
+    public void setTreeWalker(LocalTreeWalker treeWalker) {
+        this.treeWalker = treeWalker;
+    }
+
+    /**
+     * Makes item and immediates lookups below the index root read from the
+     * index instead of the disk. The index should be started.
+     */
+    public void setPathIndex(LocalPathIndex pathIndex) {
+        this.pathIndex = pathIndex;
+    }
+
+    CmsRepository getRepository() {
+        return this.repository;
+    }
+
+    ReposCurrentUser getCurrentUser() {
+        return this.currentUser;
+    }
+
+    RepoRevision getCurrentRevision() {
+        return this.currentRevision;
+    }
+
     @Override
     public CmsItem getItem(CmsItemId id) throws CmsConnectionException,
             CmsItemNotFoundException {
-        return this.getLocalCmsItem(id);
+        long start = System.nanoTime();
+        try {
+            return this.getLocalCmsItem(id);
+        } finally {
+            LocalMetrics.getShared().recordSince(LocalMetrics.Histogram.GET_ITEM, start);
+        }
     }
 
     private LocalCmsItem getLocalCmsItem(CmsItemId id) throws CmsItemNotFoundException {
         CmsItemPath itemPath = id.getRelPath();
         LocalCmsItem file = new LocalCmsItem(this.repository, this.currentUser, itemPath,
                 this.currentRevision);
+        Path indexed = this.getIndexed(file);
+        if (indexed != null) {
+            LocalIndexEntry entry = this.pathIndex.get(indexed);
+            file = new LocalCmsItem(this.repository, this.currentUser, itemPath,
+                    this.currentRevision, entry);
+        }
         if (!file.exists()) {
             String newPathString;
             if (itemPath.getPath().startsWith(this.repository.getPath())) {
@@ -63,9 +121,15 @@ public class LocalCmsItemLookup implements CmsItemLookup {
     @Override
     public Set<CmsItemId> getImmediateFolders(CmsItemId parent)
             throws CmsConnectionException, CmsItemNotFoundException {
+        long start = System.nanoTime();
         Set<CmsItemId> immediates = new LinkedHashSet<CmsItemId>();
-        for (LocalCmsItem item : this.getLocalImmediates(parent, ItemType.FOLDER)) {
-            immediates.add(item.getId());
+        try {
+            for (LocalCmsItem item : this.getLocalImmediates(parent, ItemType.FOLDER)) {
+                immediates.add(item.getId());
+            }
+        } finally {
+            LocalMetrics.getShared().recordSince(LocalMetrics.Histogram.GET_IMMEDIATES,
+                    start);
         }
         return immediates;
     }
@@ -73,9 +137,15 @@ public class LocalCmsItemLookup implements CmsItemLookup {
     @Override
     public Set<CmsItemId> getImmediateFiles(CmsItemId parent)
             throws CmsConnectionException, CmsItemNotFoundException {
+        long start = System.nanoTime();
         Set<CmsItemId> immediates = new LinkedHashSet<CmsItemId>();
-        for (LocalCmsItem item : this.getLocalImmediates(parent, ItemType.FILE)) {
-            immediates.add(item.getId());
+        try {
+            for (LocalCmsItem item : this.getLocalImmediates(parent, ItemType.FILE)) {
+                immediates.add(item.getId());
+            }
+        } finally {
+            LocalMetrics.getShared().recordSince(LocalMetrics.Histogram.GET_IMMEDIATES,
+                    start);
         }
         return immediates;
     }
@@ -83,20 +153,115 @@ public class LocalCmsItemLookup implements CmsItemLookup {
     @Override
     public Set<CmsItem> getImmediates(CmsItemId parent) throws CmsConnectionException,
             CmsItemNotFoundException {
+        long start = System.nanoTime();
         Set<CmsItem> immediates = new LinkedHashSet<CmsItem>();
-        immediates.addAll(this.getLocalImmediates(parent, ItemType.BOTH));
+        try {
+            immediates.addAll(this.getLocalImmediates(parent, ItemType.BOTH));
+        } finally {
+            LocalMetrics.getShared().recordSince(LocalMetrics.Histogram.GET_IMMEDIATES,
+                    start);
+        }
         return immediates;
     }
 
-    private Set<LocalCmsItem> getLocalImmediates(CmsItemId parent, ItemType itemType) {
-        return LocalCmsItemLookup.getLocalImmediates(this.getLocalCmsItem(parent),
-                itemType);
+    /**
+     * Lists one page of a folder's immediates in the given order, without
+     * reading more of a large folder than it takes to pick the page, see
+     * {@link LocalListing}.
+     *
+     * @param continuation
+     *            From {@link LocalListingPage#getContinuation()} of the
+     *            previous page, null for the first page.
+     */
+    public LocalListingPage<CmsItem> getImmediates(CmsItemId parent, ItemType itemType,
+            LocalListing.Sort sort, String continuation, int limit)
+            throws CmsItemNotFoundException {
+        return this.getImmediatesPage(parent, itemType, sort, continuation, 0, limit);
+    }
+
+    /**
+     * Like {@link #getImmediates(CmsItemId, ItemType, LocalListing.Sort, String, int)}
+     * for pages picked by offset, which may skip or repeat entries if the
+     * folder changes between pages.
+     */
+    public LocalListingPage<CmsItem> getImmediates(CmsItemId parent, ItemType itemType,
+            LocalListing.Sort sort, int offset, int limit)
+            throws CmsItemNotFoundException {
+        return this.getImmediatesPage(parent, itemType, sort, null, offset, limit);
+    }
+
+    private LocalListingPage<CmsItem> getImmediatesPage(CmsItemId parent,
+            ItemType itemType, LocalListing.Sort sort, String continuation, int offset,
+            int limit) {
+        long start = System.nanoTime();
+        try {
+            LocalCmsItem folder = this.getLocalCmsItem(parent);
+            if (folder.getKind() != CmsItemKind.Folder) {
+                throw new IllegalArgumentException("Not a folder: " + parent);
+            }
+            Path indexed = this.getIndexed(folder);
+            LocalListingPage<LocalIndexEntry> entries;
+            if (indexed != null) {
+                List<LocalIndexEntry> children = this.pathIndex.getChildren(indexed);
+                entries = LocalListing.list(children == null ? Collections
+                        .<LocalIndexEntry> emptyList() : children, itemType, sort,
+                        continuation, offset, limit);
+            } else if (continuation != null) {
+                entries = LocalListing.getShared().list(folder.getTrackedFile().toPath(),
+                        itemType, sort, continuation, limit);
+            } else {
+                entries = LocalListing.getShared().list(folder.getTrackedFile().toPath(),
+                        itemType, sort, offset, limit);
+            }
+            List<CmsItem> items = new ArrayList<CmsItem>(entries.getItems().size());
+            for (LocalIndexEntry entry : entries.getItems()) {
+                items.add(folder.getChildItem(entry.getName(), entry));
+            }
+            return new LocalListingPage<CmsItem>(items, entries.getContinuation(),
+                    entries.getTotal());
+        } finally {
+            LocalMetrics.getShared().recordSince(LocalMetrics.Histogram.GET_IMMEDIATES,
+                    start);
+        }
+    }
+
+    /**
+     * @return The path of the item in the index, or null if it isn't indexed.
+     */
+    private Path getIndexed(LocalCmsItem item) {
+        if (this.pathIndex == null) {
+            return null;
+        }
+        Path path = Paths.get(item.getId().getRelPath().getPath());
+        return this.pathIndex.covers(path) ? path : null;
+    }
+
+    private List<LocalCmsItem> getChildItems(LocalCmsItem parent) {
+        Path indexed = this.getIndexed(parent);
+        if (indexed == null) {
+            return parent.getChildItems();
+        }
+        List<LocalCmsItem> children = new ArrayList<LocalCmsItem>();
+        List<LocalIndexEntry> entries = this.pathIndex.getChildren(indexed);
+        if (entries != null) {
+            for (LocalIndexEntry entry : entries) {
+                children.add(parent.getChildItem(entry.getName(), entry));
+            }
+        }
+        return children;
     }
 
-    private static Set<LocalCmsItem> getLocalImmediates(LocalCmsItem parent,
-            ItemType itemType) {
-        Set<LocalCmsItem> localImmediates = new LinkedHashSet<LocalCmsItem>();
-        for (LocalCmsItem child : parent.getChildItems()) {
+    /**
+     * @return The children of a kind, in listing order. A list, as a folder's
+     *         entries are unique.
+     */
+    private List<LocalCmsItem> getLocalImmediates(CmsItemId parent, ItemType itemType) {
+        List<LocalCmsItem> children = this.getChildItems(this.getLocalCmsItem(parent));
+        if (itemType == ItemType.BOTH) {
+            return children;
+        }
+        List<LocalCmsItem> localImmediates = new ArrayList<LocalCmsItem>(children.size());
+        for (LocalCmsItem child : children) {
             boolean add = false;
             switch (itemType) {
             case BOTH:
@@ -116,22 +281,185 @@ public class LocalCmsItemLookup implements CmsItemLookup {
         return localImmediates;
     }
 
+    /**
+     * The time recorded for this is for getting started, unless there is a
+     * tree walker that lists everything up front.
+     */
     @Override
     public Iterable<CmsItemId> getDescendants(CmsItemId parent) {
-        Set<CmsItemId> children = new LinkedHashSet<CmsItemId>();
-        this.getLocalDescendants(children, this.getLocalCmsItem(parent));
-        return children;
+        long start = System.nanoTime();
+        try {
+            if (this.treeWalker != null) {
+                LocalCmsItem item = this.getLocalCmsItem(parent);
+                if (item.getKind() != CmsItemKind.Folder) {
+                    return Collections.emptyList();
+                }
+                return this.treeWalker.getDescendants(this.repository, item.getId()
+                        .getRelPath(), true);
+            }
+            return this.getDescendants(parent, Integer.MAX_VALUE, null);
+        } finally {
+            LocalMetrics.getShared().recordSince(LocalMetrics.Histogram.GET_DESCENDANTS,
+                    start);
+        }
+    }
+
+    /**
+     * Lists the descendants of a folder lazily, depth first.
+     * 
+     * @param maxDepth
+     *            How many levels below the parent to list, 1 for immediates
+     *            only.
+     * @param filter
+     *            Decides which entries are included, null for all. Folders
+     *            that are not accepted are not descended into.
+     * @see LocalDescendants
+     */
+    public Iterable<CmsItemId> getDescendants(CmsItemId parent, int maxDepth,
+            DirectoryStream.Filter<? super Path> filter) {
+        LocalCmsItem item = this.getLocalCmsItem(parent);
+        return new LocalDescendants(this.repository, item.getId().getRelPath(), maxDepth,
+                filter);
+    }
+
+    /**
+     * Finds the items below a folder that match a query, in path order. Reads
+     * the repository's {@link LocalSearchIndex} if it has one that covers the
+     * folder, otherwise walks the folder.
+     */
+    public List<CmsItem> search(CmsItemId folder, LocalSearchQuery query) {
+        LocalCmsItem item = this.getLocalCmsItem(folder);
+        if (item.getKind() != CmsItemKind.Folder) {
+            throw new IllegalArgumentException("Not a folder: " + folder);
+        }
+        File root = item.getTrackedFile();
+        List<LocalSearchHit> hits;
+        LocalSearchIndex index = LocalSearchIndex.get(this.repository);
+        if (index != null && index.covers(root)) {
+            hits = index.search(root, query);
+        } else {
+            hits = walk(root.toPath(), query);
+        }
+        List<CmsItem> items = new ArrayList<CmsItem>(hits.size());
+        for (LocalSearchHit hit : hits) {
+            items.add(new LocalCmsItem(this.repository, this.currentUser, new CmsItemPath(
+                    hit.getPath()), this.currentRevision, hit.getEntry()));
+        }
+        return items;
+    }
+
+    private static List<LocalSearchHit> walk(final Path folder,
+            final LocalSearchQuery query) {
+        final List<LocalSearchHit> hits = new ArrayList<LocalSearchHit>();
+        final TreeMap<String, BasicFileAttributes> found =
+                new TreeMap<String, BasicFileAttributes>();
+        try {
+            Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir,
+                        BasicFileAttributes attrs) {
+                    LocalMetrics.getShared().increment(
+                            LocalMetrics.Counter.FOLDERS_LISTED);
+                    return this.visitFile(dir, attrs);
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!file.equals(folder) && !LocalLockManager.isLockFile(file)
+                            && query.matches(attrs.isDirectory(), attrs.size(),
+                                    attrs.lastModifiedTime().toMillis())
+                            && query.matchesGlob(folder.relativize(file).toString()
+                                    .replace(File.separatorChar, '/'))) {
+                        found.put(file.toString(), attrs);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // Removed while we were walking.
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to search " + folder, e);
+        }
+        for (Map.Entry<String, BasicFileAttributes> entry : found.entrySet()) {
+            File file = new File(entry.getKey());
+            String md5 = null;
+            if (query.getMd5() != null) {
+                if (entry.getValue().isDirectory()) {
+                    continue;
+                }
+                md5 = LocalChecksumCache.getShared().getHex(file, Checksum.Algorithm.MD5);
+                if (!query.getMd5().equals(md5)) {
+                    continue;
+                }
+            }
+            hits.add(new LocalSearchHit(entry.getKey(), new LocalIndexEntry(
+                    file.getName(), entry.getValue()), md5));
+            if (hits.size() >= query.getLimit()) {
+                break;
+            }
+        }
+        return hits;
     }
 
-    private void getLocalDescendants(Set<CmsItemId> children, LocalCmsItem parent) {
-        for (LocalCmsItem child : LocalCmsItemLookup.getLocalImmediates(parent,
-                ItemType.BOTH)) {
-            children.add(child.getId());
+    /**
+     * Counts the files, folders and bytes below a folder.
+     */
+    public LocalFolderSize getFolderSize(CmsItemId folder) {
+        long start = System.nanoTime();
+        LocalCmsItem item = this.getLocalCmsItem(folder);
+        if (item.getKind() != CmsItemKind.Folder) {
+            throw new IllegalArgumentException("Not a folder: " + folder);
         }
-        for (LocalCmsItem folder : LocalCmsItemLookup.getLocalImmediates(parent,
-                ItemType.FOLDER)) {
-            this.getLocalDescendants(children, folder);
+        CmsItemPath path = item.getId().getRelPath();
+        if (this.treeWalker != null) {
+            try {
+                return this.treeWalker.getSize(path);
+            } finally {
+                LocalMetrics.getShared().recordSince(
+                        LocalMetrics.Histogram.GET_FOLDER_SIZE, start);
+            }
+        }
+        try {
+            return LocalTreeWalker.getSizeSequential(path);
+        } finally {
+            LocalMetrics.getShared().recordSince(LocalMetrics.Histogram.GET_FOLDER_SIZE,
+                    start);
+        }
+    }
+
+    /**
+     * Gets the lock state of all items in a folder at once, from the locks
+     * indexed for the folder rather than one lookup per item.
+     * 
+     * @return The folder's immediates in listing order, each with its lock
+     *         or null if it isn't locked.
+     */
+    public Map<CmsItemId, CmsItemLock> getImmediatesLocked(CmsItemId parent)
+            throws CmsItemNotFoundException {
+        long start = System.nanoTime();
+        LocalLockManager locks = LocalLockManager.getInstance(this.repository);
+        CmsItemPath folder = parent.getRelPath();
+        Map<String, LocalLockRecord> childLocks = locks.getChildLocks(folder);
+        LocalLockRecord covering = locks.get(folder);
+        if (covering != null && !covering.isRecursive()) {
+            covering = null;
+        }
+        Map<CmsItemId, CmsItemLock> locked = new LinkedHashMap<CmsItemId, CmsItemLock>();
+        for (LocalCmsItem child : this.getLocalImmediates(parent, ItemType.BOTH)) {
+            LocalLockRecord lock = childLocks.get(child.getId().getRelPath().getName());
+            if (lock == null) {
+                lock = covering;
+            }
+            locked.put(child.getId(), lock == null ? null : LocalCmsItemLock.getLocalLock(
+                    this.repository, this.currentUser, lock));
         }
+        LocalMetrics.getShared().recordSince(LocalMetrics.Histogram.GET_IMMEDIATES_LOCKED,
+                start);
+        return locked;
     }
 
     @Override
@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import se.simonsoft.cms.item.commit.CmsPatchItem;
+import se.simonsoft.cms.item.commit.CmsPatchset;
+import se.simonsoft.cms.item.commit.FileAdd;
+import se.simonsoft.cms.item.commit.FileModification;
+import se.simonsoft.cms.item.commit.FolderAdd;
+
+/**
+ * Applies large patchsets with file writes in parallel. Changes are taken in
+ * batches: folder adds of a batch run first, shallowest first, then the
+ * batch's file writes are spread over the worker threads. A delete, or a
+ * change to a path already in the batch, waits for the batch to finish, so
+ * the result is the same as applying the changes one by one.
+ * <p>
+ * The number of writes in flight, and so the number of open files, is
+ * limited for all commits sharing the executor.
+ */
+public class LocalCommitExecutor {
+    private final ExecutorService pool;
+    private final Semaphore openFiles;
+
+    /**
+     * @param threads
+     *            The number of files to write at the same time.
+     * @param maxOpenFiles
+     *            The number of writes that may be queued or running, at least
+     *            threads.
+     */
+    public LocalCommitExecutor(int threads, int maxOpenFiles) {
+        if (maxOpenFiles < threads) {
+            throw new IllegalArgumentException("Max open files " + maxOpenFiles
+                    + " less than threads " + threads);
+        }
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "filehead-commit-"
+                                + this.count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.openFiles = new Semaphore(maxOpenFiles);
+    }
+
+    /**
+     * Applies one change, called from worker threads for file writes and from
+     * the committing thread for everything else.
+     */
+    public interface Applier {
+
+        /**
+         * @return How a file was written, or null for changes that don't
+         *         write files.
+         */
+        LocalWriteResult apply(CmsPatchItem change);
+    }
+
+    /**
+     * Applies the changes and waits for them to complete. After a failure no
+     * more changes are started, and the first failure is thrown once the
+     * writes in flight are done.
+     */
+    public LocalCommitReport execute(CmsPatchset changes, Applier applier) {
+        long start = System.nanoTime();
+        Run run = new Run(applier);
+        for (CmsPatchItem change : changes) {
+            if (isWrite(change) || change instanceof FolderAdd) {
+                if (!run.batchPaths.add(change.getPath().getPath())) {
+                    run.flush();
+                    run.batchPaths.add(change.getPath().getPath());
+                }
+                if (isWrite(change)) {
+                    run.writes.add(change);
+                } else {
+                    run.folderAdds.add(change);
+                }
+            } else {
+                run.flush();
+                applier.apply(change);
+            }
+        }
+        run.flush();
+        return run.tally.toReport(changes.size(), run.batches, System.nanoTime() - start);
+    }
+
+    public void shutdown() {
+        this.pool.shutdown();
+    }
+
+    private static boolean isWrite(CmsPatchItem change) {
+        return change instanceof FileAdd || change instanceof FileModification;
+    }
+
+    private static int depth(CmsPatchItem change) {
+        String path = change.getPath().getPath();
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * The state of one {@link #execute(CmsPatchset, Applier)}.
+     */
+    private class Run {
+        private final Applier applier;
+        private final Set<String> batchPaths = new HashSet<String>();
+        private final List<CmsPatchItem> folderAdds = new ArrayList<CmsPatchItem>();
+        private final List<CmsPatchItem> writes = new ArrayList<CmsPatchItem>();
+        private final AtomicReference<RuntimeException> failure =
+                new AtomicReference<RuntimeException>();
+        private final LocalCommitReport.Tally tally = new LocalCommitReport.Tally();
+        private int batches;
+
+        private Run(Applier applier) {
+            this.applier = applier;
+        }
+
+        /**
+         * Applies the current batch and waits for it.
+         */
+        private void flush() {
+            if (this.folderAdds.isEmpty() && this.writes.isEmpty()) {
+                return;
+            }
+            Collections.sort(this.folderAdds, new Comparator<CmsPatchItem>() {
+                @Override
+                public int compare(CmsPatchItem o1, CmsPatchItem o2) {
+                    return depth(o1) - depth(o2);
+                }
+            });
+            for (CmsPatchItem folderAdd : this.folderAdds) {
+                this.applier.apply(folderAdd);
+            }
+            List<Future<?>> pending = new ArrayList<Future<?>>(this.writes.size());
+            try {
+                for (final CmsPatchItem write : this.writes) {
+                    if (this.failure.get() != null) {
+                        break;
+                    }
+                    LocalCommitExecutor.this.openFiles.acquire();
+                    try {
+                        pending.add(LocalCommitExecutor.this.pool.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    Run.this.write(write);
+                                } finally {
+                                    LocalCommitExecutor.this.openFiles.release();
+                                }
+                            }
+                        }));
+                    } catch (RuntimeException e) {
+                        LocalCommitExecutor.this.openFiles.release();
+                        throw e;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.failure.compareAndSet(null, new RuntimeException(
+                        "Interrupted while committing", e));
+            } finally {
+                this.await(pending);
+            }
+            this.batches++;
+            this.batchPaths.clear();
+            this.folderAdds.clear();
+            this.writes.clear();
+            RuntimeException failed = this.failure.get();
+            if (failed != null) {
+                throw failed;
+            }
+        }
+
+        private void write(CmsPatchItem change) {
+            if (this.failure.get() != null) {
+                return;
+            }
+            try {
+                this.tally.add(this.applier.apply(change));
+            } catch (RuntimeException e) {
+                this.failure.compareAndSet(null, e);
+            }
+        }
+
+        private void await(List<Future<?>> pending) {
+            boolean interrupted = false;
+            for (Future<?> future : pending) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        // Writes in flight must complete before returning.
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        this.failure.compareAndSet(null, new RuntimeException(
+                                "Failed to apply change", e));
+                        break;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import se.simonsoft.cms.item.Checksum.Algorithm;
+
+/**
+ * Applies a set of file changes all or nothing. File contents are first
+ * written to a staging folder, then the list of changes is written to a
+ * journal which is the commit point, and last the staged files are renamed
+ * into place. A crash before the journal is complete leaves the tree
+ * untouched, a crash after it is rolled forward by {@link #recover()}.
+ * <p>
+ * The journal folder must be on the same filesystem as the files changed, so
+ * that renames are atomic.
+ */
+public class LocalCommitJournal {
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    private static final byte WRITE = 'W';
+    private static final byte DELETE = 'D';
+    private static final byte MKDIR = 'M';
+    private static final byte DONE = 'X';
+
+    private final File directory;
+    private volatile LocalSyncPolicy syncPolicy = LocalSyncPolicy.BATCH;
+
+    public LocalCommitJournal(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Sets when staged contents are forced to disk, default
+     * {@link LocalSyncPolicy#BATCH}. The journal itself is forced unless the
+     * policy is {@link LocalSyncPolicy#NONE}.
+     */
+    public void setSyncPolicy(LocalSyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    public Transaction begin() {
+        String id = System.currentTimeMillis() + "-" + UUID.randomUUID();
+        File staging = new File(this.directory, id);
+        try {
+            FileUtils.forceMkdir(staging);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create commit staging folder", e);
+        }
+        return new Transaction(id, staging);
+    }
+
+    /**
+     * Completes the transactions that reached their commit point and throws
+     * away the ones that didn't. Should be called at startup, before any
+     * reads.
+     *
+     * @return The number of transactions rolled forward.
+     */
+    public int recover() {
+        File[] entries = this.directory.listFiles();
+        if (entries == null) {
+            return 0;
+        }
+        int recovered = 0;
+        for (File entry : entries) {
+            String name = entry.getName();
+            if (name.endsWith(JOURNAL_SUFFIX)) {
+                String id = name.substring(0, name.length() - JOURNAL_SUFFIX.length());
+                Journal journal = read(entry);
+                this.publish(entry, journal.changes, journal.length);
+                this.cleanup(id);
+                recovered++;
+            }
+        }
+        for (File entry : entries) {
+            String name = entry.getName();
+            if (name.endsWith(PARTIAL_SUFFIX) || entry.isDirectory()
+                    && !new File(this.directory, name + JOURNAL_SUFFIX).exists()) {
+                deleteRecursive(entry.toPath());
+            }
+        }
+        return recovered;
+    }
+
+    private void cleanup(String id) {
+        deleteRecursive(new File(this.directory, id).toPath());
+        new File(this.directory, id + JOURNAL_SUFFIX).delete();
+    }
+
+    /**
+     * Applies the journaled changes in order. Staged files that are gone were
+     * already moved and deletes that are marked done are skipped, so a
+     * journal can be published again after a crash.
+     */
+    private void publish(File journal, List<Change> changes, long length) {
+        RandomAccessFile progress = null;
+        try {
+            progress = new RandomAccessFile(journal, "rw");
+            // Drops a done marker cut short by a crash.
+            progress.setLength(length);
+            progress.seek(length);
+            for (int i = 0; i < changes.size(); i++) {
+                Change change = changes.get(i);
+                Path target = change.target.toPath();
+                LocalChecksumCache.getShared().invalidate(change.target);
+                if (change.op == WRITE) {
+                    FileUtils.forceMkdir(change.target.getParentFile());
+                    try {
+                        Files.move(change.staged.toPath(), target,
+                                StandardCopyOption.ATOMIC_MOVE,
+                                StandardCopyOption.REPLACE_EXISTING);
+                    } catch (NoSuchFileException e) {
+                        // Moved before a crash.
+                    }
+                } else if (change.op == MKDIR) {
+                    FileUtils.forceMkdir(change.target);
+                } else if (change.op == DELETE && !change.done) {
+                    deleteRecursive(target);
+                    // Deleting again after later changes recreated the path
+                    // would lose them, so remember that this one is done.
+                    progress.writeByte(DONE);
+                    progress.writeInt(i);
+                    if (this.syncPolicy != LocalSyncPolicy.NONE) {
+                        progress.getFD().sync();
+                    }
+                }
+            }
+        } catch (AtomicMoveNotSupportedException e) {
+            throw new RuntimeException("Commit journal " + this.directory
+                    + " must be on the same filesystem as the repository", e);
+        } catch (IOException e) {
+            throw new RuntimeException("Commit failed after its commit point,"
+                    + " it will be completed by recovery: " + journal, e);
+        } finally {
+            IOUtils.closeQuietly(progress);
+        }
+    }
+
+    private static Journal read(File file) {
+        Journal journal = new Journal();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (op == DONE) {
+                    journal.changes.get(in.readInt()).done = true;
+                    journal.length += 5;
+                } else {
+                    String target = in.readUTF();
+                    String staged = in.readUTF();
+                    journal.changes.add(new Change(op, new File(target),
+                            staged.isEmpty() ? null : new File(staged)));
+                    journal.length += 1 + utfLength(target) + utfLength(staged);
+                }
+            }
+        } catch (EOFException e) {
+            // A done marker cut short by a crash, the delete is simply redone.
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read commit journal " + file, e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return journal;
+    }
+
+    /**
+     * @return The number of bytes {@link DataOutputStream#writeUTF(String)}
+     *         writes for the string.
+     */
+    private static long utfLength(String s) {
+        long length = 2;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length += 1;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    private static void deleteRecursive(Path path) {
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                        throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e)
+                        throws IOException {
+                    if (e != null) {
+                        throw e;
+                    }
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (NoSuchFileException e) {
+            // Already gone.
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to delete " + path, e);
+        }
+    }
+
+    private static class Journal {
+        private final List<Change> changes = new ArrayList<Change>();
+        /**
+         * The length of the complete records.
+         */
+        private long length;
+    }
+
+    private static class Change {
+        private final byte op;
+        private final File target;
+        private final File staged;
+        private boolean done;
+
+        public Change(byte op, File target, File staged) {
+            this.op = op;
+            this.target = target;
+            this.staged = staged;
+        }
+    }
+
+    /**
+     * The changes of one commit. Not thread safe.
+     */
+    public class Transaction {
+        private final String id;
+        private final File staging;
+        private final List<Change> changes = new ArrayList<Change>();
+        private boolean finished;
+
+        private Transaction(String id, File staging) {
+            this.id = id;
+            this.staging = staging;
+        }
+
+        /**
+         * Stages new contents for a file. The file is not changed until
+         * {@link #commit()}.
+         */
+        public void write(File target, InputStream data) {
+            File staged = new File(this.staging, Integer.toString(this.changes.size()));
+            try {
+                // Digests are calculated when the target is read, a staged
+                // file's would be of no use.
+                LocalContentWriter.write(staged, data,
+                        Collections.<Algorithm> emptySet(),
+                        LocalCommitJournal.this.syncPolicy);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to stage contents for " + target, e);
+            }
+            this.changes.add(new Change(WRITE, target, staged));
+        }
+
+        public void delete(File target) {
+            this.changes.add(new Change(DELETE, target, null));
+        }
+
+        public void mkdir(File target) {
+            this.changes.add(new Change(MKDIR, target, null));
+        }
+
+        /**
+         * @return The files and folders changed so far.
+         */
+        public List<File> getTargets() {
+            List<File> targets = new ArrayList<File>(this.changes.size());
+            for (Change change : this.changes) {
+                targets.add(change.target);
+            }
+            return targets;
+        }
+
+        /**
+         * Writes the journal and applies the staged changes.
+         */
+        public void commit() {
+            this.finish();
+            LocalSyncPolicy policy = LocalCommitJournal.this.syncPolicy;
+            File partial = new File(LocalCommitJournal.this.directory, this.id
+                    + PARTIAL_SUFFIX);
+            File journal = new File(LocalCommitJournal.this.directory, this.id
+                    + JOURNAL_SUFFIX);
+            try {
+                if (policy == LocalSyncPolicy.BATCH) {
+                    for (Change change : this.changes) {
+                        if (change.staged != null) {
+                            LocalContentWriter.sync(change.staged);
+                        }
+                    }
+                }
+                FileOutputStream out = new FileOutputStream(partial);
+                try {
+                    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+                            out));
+                    for (Change change : this.changes) {
+                        data.writeByte(change.op);
+                        data.writeUTF(change.target.getAbsolutePath());
+                        data.writeUTF(change.staged == null ? "" : change.staged
+                                .getAbsolutePath());
+                    }
+                    data.flush();
+                    if (policy != LocalSyncPolicy.NONE) {
+                        out.getFD().sync();
+                    }
+                } finally {
+                    out.close();
+                }
+                // The commit point.
+                Files.move(partial.toPath(), journal.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                partial.delete();
+                LocalCommitJournal.this.cleanup(this.id);
+                throw new RuntimeException("Failed to write commit journal", e);
+            }
+            LocalCommitJournal.this
+                    .publish(journal, this.changes, journal.length());
+            LocalCommitJournal.this.cleanup(this.id);
+        }
+
+        /**
+         * Throws away the staged changes.
+         */
+        public void rollback() {
+            if (!this.finished) {
+                this.finish();
+                LocalCommitJournal.this.cleanup(this.id);
+            }
+        }
+
+        private void finish() {
+            if (this.finished) {
+                throw new IllegalStateException("Transaction already finished: "
+                        + this.id);
+            }
+            this.finished = true;
+        }
+    }
+}
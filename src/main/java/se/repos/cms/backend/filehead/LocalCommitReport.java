@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What one commit did and how long it took.
+ */
+public class LocalCommitReport {
+    private final int changes;
+    private final int filesWritten;
+    private final int filesUnchanged;
+    private final long bytesReceived;
+    private final long bytesWritten;
+    private final int batches;
+    private final long nanos;
+
+    public LocalCommitReport(int changes, int filesWritten, int filesUnchanged,
+            long bytesReceived, long bytesWritten, int batches, long nanos) {
+        this.changes = changes;
+        this.filesWritten = filesWritten;
+        this.filesUnchanged = filesUnchanged;
+        this.bytesReceived = bytesReceived;
+        this.bytesWritten = bytesWritten;
+        this.batches = batches;
+        this.nanos = nanos;
+    }
+
+    public int getChanges() {
+        return this.changes;
+    }
+
+    public int getFilesWritten() {
+        return this.filesWritten;
+    }
+
+    /**
+     * @return The number of the files written whose contents turned out to
+     *         be the same as before.
+     */
+    public int getFilesUnchanged() {
+        return this.filesUnchanged;
+    }
+
+    /**
+     * @return The length of all the data written to files.
+     */
+    public long getBytesReceived() {
+        return this.bytesReceived;
+    }
+
+    /**
+     * @return The number of bytes that actually went to disk, less than
+     *         {@link #getBytesReceived()} when modifications only wrote what
+     *         differed.
+     */
+    public long getBytesWritten() {
+        return this.bytesWritten;
+    }
+
+    /**
+     * @return The number of groups of file writes that were run in parallel.
+     *         Deletes and writes to a path already written split groups.
+     *         0 for commits run one change at a time.
+     */
+    public int getBatches() {
+        return this.batches;
+    }
+
+    public long getMillis() {
+        return this.nanos / 1000000L;
+    }
+
+    public double getFilesPerSecond() {
+        return this.nanos == 0 ? 0 : this.filesWritten * 1e9 / this.nanos;
+    }
+
+    /**
+     * @return Bytes received per second.
+     */
+    public double getBytesPerSecond() {
+        return this.nanos == 0 ? 0 : this.bytesReceived * 1e9 / this.nanos;
+    }
+
+    @Override
+    public String toString() {
+        return this.changes + " changes in " + this.getMillis() + " ms, "
+                + this.filesWritten + " files (" + this.filesUnchanged + " unchanged) "
+                + this.bytesWritten + "/" + this.bytesReceived + " bytes written in "
+                + this.batches + " batches, "
+                + String.format("%.0f files/s %.1f MB/s", this.getFilesPerSecond(),
+                        this.getBytesPerSecond() / (1024 * 1024));
+    }
+
+    /**
+     * Adds up the writes of a commit, from any number of threads.
+     */
+    static class Tally {
+        private final AtomicInteger filesWritten = new AtomicInteger();
+        private final AtomicInteger filesUnchanged = new AtomicInteger();
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicLong bytesWritten = new AtomicLong();
+
+        void add(LocalWriteResult result) {
+            this.filesWritten.incrementAndGet();
+            if (result.getMode() == LocalWriteResult.Mode.UNCHANGED) {
+                this.filesUnchanged.incrementAndGet();
+            }
+            this.bytesReceived.addAndGet(result.getReceived());
+            this.bytesWritten.addAndGet(result.getWritten());
+        }
+
+        LocalCommitReport toReport(int changes, int batches, long nanos) {
+            return new LocalCommitReport(changes, this.filesWritten.get(),
+                    this.filesUnchanged.get(), this.bytesReceived.get(),
+                    this.bytesWritten.get(), batches, nanos);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Moves file contents to a receiver without going through a heap buffer
+ * where possible. File and socket channels get {@link FileChannel#transferTo}
+ * so the kernel can copy directly, other receivers get large files through a
+ * memory mapped window instead of read calls.
+ */
+public class LocalContentTransfer {
+    /**
+     * Ranges at least this large are memory mapped when the receiver can't
+     * take a kernel transfer.
+     */
+    public static final long MAP_THRESHOLD = 1L << 20;
+    private static final long MAP_WINDOW = 64L << 20;
+
+    private LocalContentTransfer() {
+    }
+
+    /**
+     * @return The channel backing the given stream, or a channel wrapping it
+     *         if it has none.
+     */
+    public static WritableByteChannel getChannel(OutputStream receiver) {
+        if (receiver instanceof FileOutputStream) {
+            return ((FileOutputStream) receiver).getChannel();
+        }
+        if (receiver instanceof WritableByteChannel) {
+            return (WritableByteChannel) receiver;
+        }
+        return Channels.newChannel(receiver);
+    }
+
+    /**
+     * Writes a range of the file to the receiver.
+     *
+     * @param offset
+     *            The first byte to transfer.
+     * @param length
+     *            The number of bytes to transfer, or a negative number for the
+     *            rest of the file. Lengths past the end of the file are cut
+     *            short.
+     * @return The number of bytes transferred.
+     */
+    public static long transfer(File file, WritableByteChannel receiver, long offset,
+            long length) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel source = fis.getChannel();
+            long size = source.size();
+            if (offset < 0 || offset > size) {
+                throw new IllegalArgumentException("Offset " + offset
+                        + " is outside of file " + file + " with size " + size);
+            }
+            long end = length < 0 || length > size - offset ? size : offset + length;
+            if (isKernelTransferable(receiver) || end - offset < MAP_THRESHOLD) {
+                return transferTo(source, receiver, offset, end);
+            }
+            return transferMapped(source, receiver, offset, end);
+        } finally {
+            IOUtils.closeQuietly(fis);
+        }
+    }
+
+    private static boolean isKernelTransferable(WritableByteChannel receiver) {
+        return receiver instanceof FileChannel || receiver instanceof SelectableChannel;
+    }
+
+    private static long transferTo(FileChannel source, WritableByteChannel receiver,
+            long offset, long end) throws IOException {
+        long position = offset;
+        while (position < end) {
+            long transferred = source.transferTo(position, end - position, receiver);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+        }
+        return position - offset;
+    }
+
+    private static long transferMapped(FileChannel source, WritableByteChannel receiver,
+            long offset, long end) throws IOException {
+        long position = offset;
+        while (position < end) {
+            long window = Math.min(MAP_WINDOW, end - position);
+            MappedByteBuffer mapped = source.map(FileChannel.MapMode.READ_ONLY,
+                    position, window);
+            while (mapped.hasRemaining()) {
+                receiver.write(mapped);
+            }
+            position += window;
+        }
+        return position - offset;
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collection;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import se.simonsoft.cms.item.Checksum.Algorithm;
+
+/**
+ * Writes file contents in a single pass through a large direct buffer,
+ * calculating digests on the way so that the checksum cache never has to
+ * read a new file back. When the size of the data is known up front the file
+ * is extended to it before writing.
+ */
+public class LocalContentWriter {
+    private static final ThreadLocal<ByteBuffer> WRITE_BUFFER =
+            new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(LocalDigest.BUFFER_SIZE);
+        }
+    };
+
+    private LocalContentWriter() {
+    }
+
+    /**
+     * @return The number of bytes left in the stream if it can be told
+     *         without reading them, as for files, or -1.
+     */
+    public static long getKnownSize(InputStream data) {
+        if (data instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) data).getChannel();
+            try {
+                return channel.size() - channel.position();
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces the contents of a file and puts the digests of the new
+     * contents in the shared {@link LocalChecksumCache}. Does not close the
+     * data stream.
+     *
+     * @param algorithms
+     *            The digests to calculate, may be empty.
+     * @param syncPolicy
+     *            {@link LocalSyncPolicy#PER_FILE} forces the file to disk
+     *            before returning, for {@link LocalSyncPolicy#BATCH} the
+     *            caller should {@link #sync(File)} it later.
+     * @return The number of bytes written.
+     */
+    public static long write(File file, InputStream data,
+            Collection<Algorithm> algorithms, LocalSyncPolicy syncPolicy)
+            throws IOException {
+        LocalChecksumCache.getShared().invalidate(file);
+        LocalDigest digest = algorithms.isEmpty() ? null : new LocalDigest(algorithms);
+        long written;
+        try {
+            written = write(file, data, digest, syncPolicy);
+        } catch (IOException e) {
+            LocalChecksumCache.getShared().invalidate(file);
+            throw e;
+        }
+        if (digest != null) {
+            LocalChecksumCache.getShared().put(file, written, file.lastModified(),
+                    digest.getHex());
+        }
+        return written;
+    }
+
+    /**
+     * Replaces the contents of a file, leaving the checksum cache alone. Does
+     * not close the data stream.
+     *
+     * @param digest
+     *            Gets the data as it is written, may be null.
+     * @return The number of bytes written.
+     */
+    public static long write(File file, InputStream data, LocalDigest digest,
+            LocalSyncPolicy syncPolicy) throws IOException {
+        FileUtils.forceMkdir(file.getParentFile());
+        long known = getKnownSize(data);
+        ReadableByteChannel source = data instanceof FileInputStream
+                ? ((FileInputStream) data).getChannel() : Channels.newChannel(data);
+        long written = 0;
+        Closeable out;
+        FileChannel target;
+        if (known > 0) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            out = raf;
+            target = raf.getChannel();
+        } else {
+            // Truncates on open, saving the syscalls for small files.
+            FileOutputStream fos = new FileOutputStream(file);
+            out = fos;
+            target = fos.getChannel();
+        }
+        try {
+            if (known > 0) {
+                // Lets the filesystem lay the file out in one go, the JDK has
+                // no fallocate.
+                ((RandomAccessFile) out).setLength(known);
+            }
+            ByteBuffer buffer = WRITE_BUFFER.get();
+            boolean end = false;
+            while (!end) {
+                buffer.clear();
+                // Streams give a few KB per read, fill the buffer before
+                // writing.
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) == -1) {
+                        end = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                if (digest != null) {
+                    digest.update(buffer);
+                    buffer.rewind();
+                }
+                while (buffer.hasRemaining()) {
+                    written += target.write(buffer);
+                }
+            }
+            if (known > 0 && written != known) {
+                target.truncate(written);
+            }
+            if (syncPolicy == LocalSyncPolicy.PER_FILE) {
+                target.force(true);
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+            LocalMetrics.getShared().add(LocalMetrics.Counter.BYTES_WRITTEN, written);
+        }
+        return written;
+    }
+
+    /**
+     * Forces a file written earlier to disk.
+     */
+    public static void sync(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+}
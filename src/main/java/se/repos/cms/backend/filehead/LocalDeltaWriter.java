@@ -0,0 +1,655 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.io.IOUtils;
+
+import se.simonsoft.cms.item.Checksum.Algorithm;
+
+/**
+ * Writes new contents over an existing file, writing only what differs. The
+ * old contents are described by a signature of block checksums: a weak one
+ * that can be rolled along the new data a byte at a time, as in rsync, and an
+ * MD5 to confirm its matches. Blocks found where they were are left alone and
+ * only the rest is written into the file. If blocks have moved, a new file is
+ * put together from the old blocks and the new data and renamed over the old
+ * one. Identical contents are not written at all.
+ * <p>
+ * New data that matches no block is held in memory, up to a limit per write.
+ * Beyond it the rest of the data is streamed to the new file.
+ * <p>
+ * Signatures are cached, but only trusted if the file's modification time is
+ * well before the signature was taken, so that a change within the same
+ * timestamp is never missed.
+ */
+public class LocalDeltaWriter {
+    public static final int DEFAULT_BLOCK_SIZE = 8 * 1024;
+    public static final int DEFAULT_MAX_LITERAL = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SIGNATURES = 256;
+
+    /**
+     * FAT stores modification times in steps of two seconds.
+     */
+    private static final long MTIME_GRANULARITY = 2000;
+
+    private final int blockSize;
+    private final int maxLiteral;
+    private final Map<String, Signature> signatures;
+
+    public LocalDeltaWriter() {
+        this(DEFAULT_BLOCK_SIZE, DEFAULT_MAX_LITERAL, DEFAULT_MAX_SIGNATURES);
+    }
+
+    /**
+     * @param blockSize
+     *            The unit of comparison, smaller blocks find more matches
+     *            but make larger signatures.
+     * @param maxLiteral
+     *            The number of new bytes to hold in memory for one write.
+     * @param maxSignatures
+     *            The number of file signatures to cache.
+     */
+    public LocalDeltaWriter(int blockSize, int maxLiteral, final int maxSignatures) {
+        if (blockSize < 16 || maxLiteral < 0 || maxSignatures < 0) {
+            throw new IllegalArgumentException("Invalid delta writer settings");
+        }
+        this.blockSize = blockSize;
+        this.maxLiteral = maxLiteral;
+        this.signatures = new LinkedHashMap<String, Signature>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Signature> eldest) {
+                return this.size() > maxSignatures;
+            }
+        };
+    }
+
+    /**
+     * Replaces the contents of a file and puts the digests of the new
+     * contents in the shared {@link LocalChecksumCache}, like
+     * {@link LocalContentWriter#write(File, InputStream, Collection, LocalSyncPolicy)}
+     * which is used for files that don't exist or are empty. Does not close
+     * the data stream.
+     *
+     * @param syncPolicy
+     *            {@link LocalSyncPolicy#PER_FILE} forces the file to disk
+     *            before returning unless it was unchanged.
+     */
+    public LocalWriteResult write(File file, InputStream data,
+            Collection<Algorithm> algorithms, LocalSyncPolicy syncPolicy)
+            throws IOException {
+        if (!file.isFile() || file.length() == 0) {
+            return LocalWriteResult.full(LocalContentWriter.write(file, data, algorithms,
+                    syncPolicy));
+        }
+        Delta delta = new Delta(this.getSignature(file), data,
+                algorithms.isEmpty() ? null : new LocalDigest(algorithms));
+        delta.scan();
+        LocalWriteResult result;
+        if (delta.isUnchanged()) {
+            result = new LocalWriteResult(LocalWriteResult.Mode.UNCHANGED,
+                    delta.received, 0);
+        } else {
+            LocalChecksumCache.getShared().invalidate(file);
+            synchronized (this.signatures) {
+                this.signatures.remove(file.getAbsolutePath());
+            }
+            try {
+                if (delta.isInPlace()) {
+                    result = delta.patch(file, syncPolicy);
+                } else {
+                    result = delta.copyOnWrite(file, syncPolicy);
+                }
+            } catch (IOException e) {
+                LocalChecksumCache.getShared().invalidate(file);
+                throw e;
+            }
+            LocalMetrics.getShared().add(LocalMetrics.Counter.BYTES_WRITTEN,
+                    result.getWritten());
+        }
+        if (delta.digest != null) {
+            LocalChecksumCache.getShared().put(file, delta.received, file.lastModified(),
+                    delta.digest.getHex());
+        }
+        return result;
+    }
+
+    private Signature getSignature(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        Signature cached;
+        synchronized (this.signatures) {
+            cached = this.signatures.get(key);
+        }
+        if (cached != null && cached.isValid(length, lastModified)) {
+            return cached;
+        }
+        Signature signature = new Signature(file, this.blockSize, length, lastModified);
+        if (signature.isValid(length, lastModified)) {
+            synchronized (this.signatures) {
+                this.signatures.put(key, signature);
+            }
+        }
+        return signature;
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return The rsync weak checksum of a block, two 16 bit sums.
+     */
+    private static int weakSum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += (length - i) * (data[offset + i] & 0xff);
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * @return The number of bytes read, less than requested only at the end
+     *         of the stream.
+     */
+    private static int readFully(InputStream in, byte[] buffer, int offset, int length)
+            throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(buffer, offset + total, length - total);
+            if (n == -1) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * The block checksums of one file as it was at a given time.
+     */
+    private static class Signature {
+        private final int blockSize;
+        private final long length;
+        private final long lastModified;
+        private final long taken;
+        private final int blocks;
+        private final int fullBlocks;
+        private final int[] weak;
+        private final byte[] strong;
+        /**
+         * Full blocks by weak checksum, chained through next.
+         */
+        private final int[] heads;
+        private final int[] next;
+
+        private Signature(File file, int blockSize, long length, long lastModified)
+                throws IOException {
+            this.blockSize = blockSize;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.taken = System.currentTimeMillis();
+            if ((length + blockSize - 1) / blockSize > Integer.MAX_VALUE) {
+                throw new IOException("Too many blocks in " + file);
+            }
+            this.blocks = (int) ((length + blockSize - 1) / blockSize);
+            this.fullBlocks = (int) (length / blockSize);
+            this.weak = new int[this.blocks];
+            this.strong = new byte[this.blocks * 16];
+            MessageDigest md5 = newMd5();
+            byte[] block = new byte[blockSize];
+            InputStream in = new FileInputStream(file);
+            try {
+                for (int i = 0; i < this.blocks; i++) {
+                    int n = readFully(in, block, 0, this.getLength(i));
+                    if (n != this.getLength(i)) {
+                        throw new IOException("File changed while reading " + file);
+                    }
+                    this.weak[i] = weakSum(block, 0, n);
+                    md5.update(block, 0, n);
+                    System.arraycopy(md5.digest(), 0, this.strong, i * 16, 16);
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            int size = Integer.highestOneBit(Math.max(this.fullBlocks, 1)) << 1;
+            this.heads = new int[size];
+            Arrays.fill(this.heads, -1);
+            this.next = new int[this.fullBlocks];
+            // Backwards, so chains list lower blocks first.
+            for (int i = this.fullBlocks - 1; i >= 0; i--) {
+                int h = hash(this.weak[i]) & (size - 1);
+                this.next[i] = this.heads[h];
+                this.heads[h] = i;
+            }
+        }
+
+        private static int hash(int weak) {
+            return weak ^ (weak >>> 15);
+        }
+
+        private boolean isValid(long length, long lastModified) {
+            return this.length == length && this.lastModified == lastModified
+                    && this.taken - lastModified >= MTIME_GRANULARITY;
+        }
+
+        private int getLength(int block) {
+            return (int) Math.min(this.blockSize, this.length - (long) block
+                    * this.blockSize);
+        }
+
+        private long getOffset(int block) {
+            return (long) block * this.blockSize;
+        }
+
+        private boolean isStrong(int block, byte[] digest) {
+            for (int i = 0; i < 16; i++) {
+                if (this.strong[block * 16 + i] != digest[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @param preferred
+         *            The block to return if several match, or -1.
+         * @return A full block with the same contents as the data, or -1.
+         */
+        private int find(int weakSum, byte[] data, int offset, int preferred,
+                MessageDigest md5) {
+            byte[] digest = null;
+            int found = -1;
+            int i = this.heads[hash(weakSum) & (this.heads.length - 1)];
+            for (; i >= 0; i = this.next[i]) {
+                if (this.weak[i] != weakSum) {
+                    continue;
+                }
+                if (digest == null) {
+                    md5.update(data, offset, this.blockSize);
+                    digest = md5.digest();
+                }
+                if (this.isStrong(i, digest)) {
+                    if (i == preferred) {
+                        return i;
+                    }
+                    if (found == -1) {
+                        found = i;
+                    }
+                }
+            }
+            return found;
+        }
+
+        /**
+         * @return True if the data is the same as the last block, when that
+         *         is shorter than the others.
+         */
+        private boolean isLastPartial(byte[] data, int offset, int length,
+                MessageDigest md5) {
+            int last = this.blocks - 1;
+            if (this.blocks == this.fullBlocks || length != this.getLength(last)
+                    || this.weak[last] != weakSum(data, offset, length)) {
+                return false;
+            }
+            md5.update(data, offset, length);
+            return this.isStrong(last, md5.digest());
+        }
+    }
+
+    /**
+     * Matches the new data against a signature, as a list of operations:
+     * copies of old blocks and new bytes, held in memory.
+     */
+    private class Delta {
+        private final Signature signature;
+        private final InputStream in;
+        private final LocalDigest digest;
+        private final MessageDigest md5 = newMd5();
+        private final byte[] buffer;
+        /**
+         * Start of the current window.
+         */
+        private int position;
+        private int end;
+        /**
+         * Start of new bytes not yet added to the operations.
+         */
+        private int literalStart;
+        private boolean eof;
+        private long received;
+        /**
+         * The length of the new contents the operations make up.
+         */
+        private long length;
+        /**
+         * Copies of block n as -(n + 1), new bytes as their count.
+         */
+        private long[] operations = new long[64];
+        private int operationCount;
+        private byte[] literals = new byte[4096];
+        private int literalCount;
+        /**
+         * Set if the new bytes didn't fit in memory, the scan stopped with
+         * the rest of the data from literalStart on.
+         */
+        private boolean overflow;
+
+        private Delta(Signature signature, InputStream in, LocalDigest digest) {
+            this.signature = signature;
+            this.in = in;
+            this.digest = digest;
+            this.buffer = new byte[Math.max(8 * signature.blockSize, 256 * 1024)];
+        }
+
+        private void scan() throws IOException {
+            int blockSize = this.signature.blockSize;
+            boolean summed = false;
+            boolean checked = false;
+            int a = 0;
+            int b = 0;
+            while (true) {
+                if (!checked) {
+                    if (this.end - this.position < blockSize) {
+                        if (this.eof) {
+                            break;
+                        }
+                        if (!this.fill()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    if (!summed) {
+                        int sum = weakSum(this.buffer, this.position, blockSize);
+                        a = sum & 0xffff;
+                        b = sum >>> 16;
+                        summed = true;
+                    }
+                    // Prefers the block that was where the window is now.
+                    long offset = this.length + this.position - this.literalStart;
+                    int preferred = offset % blockSize == 0 ? (int) Math.min(offset
+                            / blockSize, Integer.MAX_VALUE) : -1;
+                    int block = this.signature.find(a | (b << 16), this.buffer,
+                            this.position, preferred, this.md5);
+                    if (block != -1) {
+                        if (!this.addLiteral(this.position)) {
+                            return;
+                        }
+                        this.addCopy(block);
+                        this.position += blockSize;
+                        this.literalStart = this.position;
+                        summed = false;
+                        continue;
+                    }
+                    checked = true;
+                }
+                if (this.end - this.position <= blockSize) {
+                    if (this.eof) {
+                        break;
+                    }
+                    if (!this.fill()) {
+                        return;
+                    }
+                    continue;
+                }
+                int out = this.buffer[this.position] & 0xff;
+                a = (a - out + (this.buffer[this.position + blockSize] & 0xff)) & 0xffff;
+                b = (b - blockSize * out + a) & 0xffff;
+                this.position++;
+                checked = false;
+            }
+            if (this.signature.isLastPartial(this.buffer, this.position, this.end
+                    - this.position, this.md5)) {
+                if (!this.addLiteral(this.position)) {
+                    return;
+                }
+                this.addCopy(this.signature.blocks - 1);
+                this.position = this.end;
+                this.literalStart = this.end;
+            }
+            this.addLiteral(this.end);
+        }
+
+        /**
+         * Moves the unmatched data to the start of the buffer and reads more.
+         *
+         * @return False if the new bytes so far don't fit in memory.
+         */
+        private boolean fill() throws IOException {
+            if (!this.addLiteral(this.position)) {
+                return false;
+            }
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, this.end
+                    - this.position);
+            this.end -= this.position;
+            this.position = 0;
+            this.literalStart = 0;
+            int n = this.read(this.buffer, this.end, this.buffer.length - this.end);
+            this.end += n;
+            this.eof = this.end < this.buffer.length;
+            return true;
+        }
+
+        /**
+         * Reads new data, digesting it.
+         */
+        private int read(byte[] into, int offset, int length) throws IOException {
+            int n = readFully(this.in, into, offset, length);
+            if (this.digest != null) {
+                this.digest.update(into, offset, n);
+            }
+            this.received += n;
+            return n;
+        }
+
+        /**
+         * Adds the new bytes from literalStart up to a position.
+         *
+         * @return False, with overflow set, if they don't fit in memory.
+         */
+        private boolean addLiteral(int upTo) {
+            int count = upTo - this.literalStart;
+            if (count == 0) {
+                return true;
+            }
+            if (this.literalCount + count > LocalDeltaWriter.this.maxLiteral) {
+                this.overflow = true;
+                return false;
+            }
+            if (this.literalCount + count > this.literals.length) {
+                this.literals = Arrays.copyOf(this.literals, Math.min(Math.max(
+                        this.literals.length * 2, this.literalCount + count),
+                        LocalDeltaWriter.this.maxLiteral));
+            }
+            System.arraycopy(this.buffer, this.literalStart, this.literals,
+                    this.literalCount, count);
+            this.literalCount += count;
+            if (this.operationCount > 0 && this.operations[this.operationCount - 1] > 0) {
+                this.operations[this.operationCount - 1] += count;
+            } else {
+                this.addOperation(count);
+            }
+            this.length += count;
+            this.literalStart = upTo;
+            return true;
+        }
+
+        private void addCopy(int block) {
+            this.addOperation(-(block + 1L));
+            this.length += this.signature.getLength(block);
+        }
+
+        private void addOperation(long operation) {
+            if (this.operationCount == this.operations.length) {
+                this.operations = Arrays.copyOf(this.operations, this.operationCount * 2);
+            }
+            this.operations[this.operationCount++] = operation;
+        }
+
+        private boolean isUnchanged() {
+            if (this.overflow || this.literalCount > 0
+                    || this.operationCount != this.signature.blocks
+                    || this.received != this.signature.length) {
+                return false;
+            }
+            for (int i = 0; i < this.operationCount; i++) {
+                if (this.operations[i] != -(i + 1L)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return True if every block copied is where it was.
+         */
+        private boolean isInPlace() {
+            if (this.overflow) {
+                return false;
+            }
+            long offset = 0;
+            for (int i = 0; i < this.operationCount; i++) {
+                long operation = this.operations[i];
+                if (operation > 0) {
+                    offset += operation;
+                } else {
+                    int block = (int) (-operation - 1);
+                    if (this.signature.getOffset(block) != offset) {
+                        return false;
+                    }
+                    offset += this.signature.getLength(block);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Writes the new bytes into the file where they belong.
+         */
+        private LocalWriteResult patch(File file, LocalSyncPolicy syncPolicy)
+                throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                long offset = 0;
+                int literal = 0;
+                for (int i = 0; i < this.operationCount; i++) {
+                    long operation = this.operations[i];
+                    if (operation > 0) {
+                        ByteBuffer bytes = ByteBuffer.wrap(this.literals, literal,
+                                (int) operation);
+                        long at = offset;
+                        while (bytes.hasRemaining()) {
+                            at += channel.write(bytes, at);
+                        }
+                        literal += operation;
+                        offset += operation;
+                    } else {
+                        offset += this.signature.getLength((int) (-operation - 1));
+                    }
+                }
+                if (channel.size() != this.received) {
+                    raf.setLength(this.received);
+                }
+                if (syncPolicy == LocalSyncPolicy.PER_FILE) {
+                    channel.force(true);
+                }
+            } finally {
+                IOUtils.closeQuietly(raf);
+            }
+            return new LocalWriteResult(LocalWriteResult.Mode.IN_PLACE, this.received,
+                    this.literalCount);
+        }
+
+        /**
+         * Writes the new contents to a file next to the old one, copying
+         * blocks from it, and renames the new file over it.
+         */
+        private LocalWriteResult copyOnWrite(File file, LocalSyncPolicy syncPolicy)
+                throws IOException {
+            File temp = new File(file.getParentFile(), "." + file.getName() + "."
+                    + UUID.randomUUID() + ".delta");
+            FileInputStream old = null;
+            FileOutputStream out = null;
+            boolean moved = false;
+            try {
+                old = new FileInputStream(file);
+                out = new FileOutputStream(temp);
+                FileChannel source = old.getChannel();
+                FileChannel target = out.getChannel();
+                int literal = 0;
+                for (int i = 0; i < this.operationCount; i++) {
+                    long operation = this.operations[i];
+                    if (operation > 0) {
+                        out.write(this.literals, literal, (int) operation);
+                        literal += operation;
+                    } else {
+                        int block = (int) (-operation - 1);
+                        long at = this.signature.getOffset(block);
+                        long left = this.signature.getLength(block);
+                        while (left > 0) {
+                            long n = source.transferTo(at, left, target);
+                            if (n <= 0) {
+                                throw new IOException("File changed while reading "
+                                        + file);
+                            }
+                            at += n;
+                            left -= n;
+                        }
+                    }
+                }
+                if (this.overflow) {
+                    out.write(this.buffer, this.literalStart, this.end
+                            - this.literalStart);
+                    int n;
+                    while ((n = this.read(this.buffer, 0, this.buffer.length)) > 0) {
+                        out.write(this.buffer, 0, n);
+                    }
+                }
+                if (syncPolicy == LocalSyncPolicy.PER_FILE) {
+                    target.force(true);
+                }
+                out.close();
+                old.close();
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                moved = true;
+            } finally {
+                IOUtils.closeQuietly(out);
+                IOUtils.closeQuietly(old);
+                if (!moved) {
+                    temp.delete();
+                }
+            }
+            return new LocalWriteResult(LocalWriteResult.Mode.COPY_ON_WRITE,
+                    this.received, this.received);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.io.IOUtils;
+
+import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.CmsItemPath;
+import se.simonsoft.cms.item.CmsRepository;
+
+/**
+ * Lazily walks a folder tree, depth first with each folder reported before
+ * its contents. Only the open directory streams from the start folder down to
+ * the current one are held, so memory use depends on the depth of the tree
+ * and not on its size, and every folder is listed exactly once.
+ * <p>
+ * Iterators close their directory streams when they run out. Callers that
+ * stop early should close them, see {@link DescendantIterator#close()}.
+ */
+public class LocalDescendants implements Iterable<CmsItemId> {
+    private final CmsRepository repository;
+    private final CmsItemPath parent;
+    private final int maxDepth;
+    private final DirectoryStream.Filter<Path> filter;
+
+    /**
+     * @param parent
+     *            The folder to list the descendants of, not included in the
+     *            results.
+     * @param maxDepth
+     *            How many levels below the parent to list, 1 for immediates
+     *            only.
+     * @param filter
+     *            Decides which entries are reported, null for all. Folders
+     *            that are not accepted are not descended into either. Lock
+     *            files are never reported.
+     */
+    public LocalDescendants(CmsRepository repository, CmsItemPath parent, int maxDepth,
+            final DirectoryStream.Filter<? super Path> filter) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("Depth must be at least 1: " + maxDepth);
+        }
+        this.repository = repository;
+        this.parent = parent;
+        this.maxDepth = maxDepth;
+        this.filter = new DirectoryStream.Filter<Path>() {
+            @Override
+            public boolean accept(Path entry) throws IOException {
+                return !LocalLockManager.isLockFile(entry)
+                        && (filter == null || filter.accept(entry));
+            }
+        };
+    }
+
+    @Override
+    public DescendantIterator iterator() {
+        return new DescendantIterator();
+    }
+
+    public class DescendantIterator implements Iterator<CmsItemId>, Closeable {
+        private final Deque<Level> levels = new ArrayDeque<Level>();
+        private CmsItemId next;
+
+        private DescendantIterator() {
+            Path start = Paths.get(LocalDescendants.this.parent.getPath());
+            if (Files.isDirectory(start)) {
+                this.levels.push(new Level(LocalDescendants.this.parent, start));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null && !this.levels.isEmpty()) {
+                Level level = this.levels.peek();
+                if (!level.entries.hasNext()) {
+                    this.levels.pop().close();
+                    continue;
+                }
+                Path entry = level.entries.next();
+                String name = entry.getFileName().toString();
+                CmsItemPath entryPath = level.interned.getPath(name);
+                this.next = level.interned.getId(name);
+                if (this.levels.size() < LocalDescendants.this.maxDepth
+                        && Files.isDirectory(entry)) {
+                    this.levels.push(new Level(entryPath, entry));
+                }
+            }
+            return this.next != null;
+        }
+
+        @Override
+        public CmsItemId next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            CmsItemId current = this.next;
+            this.next = null;
+            return current;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Closes the directory streams still open, for iterations that are
+         * abandoned before they run out.
+         */
+        @Override
+        public void close() {
+            while (!this.levels.isEmpty()) {
+                this.levels.pop().close();
+            }
+        }
+    }
+
+    private class Level {
+        private final LocalItemInterner.Folder interned;
+        private final DirectoryStream<Path> stream;
+        private final Iterator<Path> entries;
+
+        public Level(CmsItemPath path, Path folder) {
+            this.interned = LocalItemInterner.getShared().getFolder(
+                    LocalDescendants.this.repository, path);
+            try {
+                this.stream = Files.newDirectoryStream(folder,
+                        LocalDescendants.this.filter);
+                LocalMetrics.getShared().increment(LocalMetrics.Counter.FOLDERS_LISTED);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            this.entries = this.stream.iterator();
+        }
+
+        public void close() {
+            IOUtils.closeQuietly(this.stream);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+import se.simonsoft.cms.item.Checksum;
+import se.simonsoft.cms.item.Checksum.Algorithm;
+import se.simonsoft.cms.item.impl.ChecksumBase;
+
+/**
+ * Calculates any number of {@link Algorithm}s over the same data, so that a
+ * file only has to be read once no matter how many digests are wanted.
+ */
+public class LocalDigest {
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    private static final Set<Algorithm> SUPPORTED = findSupported();
+
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER =
+            new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private final Map<Algorithm, MessageDigest> digests;
+
+    public LocalDigest(Collection<Algorithm> algorithms) {
+        this.digests = new EnumMap<Algorithm, MessageDigest>(Algorithm.class);
+        for (Algorithm a : algorithms) {
+            this.digests.put(a, newMessageDigest(a));
+        }
+    }
+
+    /**
+     * @return The algorithms the running JVM can calculate.
+     */
+    public static Set<Algorithm> getSupported() {
+        return SUPPORTED;
+    }
+
+    /**
+     * Reads the given file once, calculating all the given digests.
+     */
+    public static Map<Algorithm, String> digest(File file,
+            Collection<Algorithm> algorithms) {
+        LocalMetrics metrics = LocalMetrics.getShared();
+        long start = System.nanoTime();
+        LocalDigest digest = new LocalDigest(algorithms);
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            metrics.increment(LocalMetrics.Counter.FILES_HASHED);
+            FileChannel channel = fis.getChannel();
+            ByteBuffer buffer = READ_BUFFER.get();
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            IOUtils.closeQuietly(fis);
+            metrics.recordSince(LocalMetrics.Histogram.HASH, start);
+        }
+        return digest.getHex();
+    }
+
+    /**
+     * Feeds the remaining bytes of the buffer to every digest. The buffer is
+     * left with no bytes remaining.
+     */
+    public void update(ByteBuffer data) {
+        int start = data.position();
+        for (MessageDigest md : this.digests.values()) {
+            data.position(start);
+            md.update(data);
+        }
+        data.position(data.limit());
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        for (MessageDigest md : this.digests.values()) {
+            md.update(data, offset, length);
+        }
+    }
+
+    /**
+     * Completes the digests. This object must not be used afterwards.
+     */
+    public Map<Algorithm, String> getHex() {
+        Map<Algorithm, String> hex = new EnumMap<Algorithm, String>(Algorithm.class);
+        for (Map.Entry<Algorithm, MessageDigest> d : this.digests.entrySet()) {
+            hex.put(d.getKey(), Hex.encodeHexString(d.getValue().digest()));
+        }
+        return hex;
+    }
+
+    /**
+     * Wraps already calculated digests as a {@link Checksum}.
+     */
+    public static Checksum toChecksum(final Map<Algorithm, String> hex) {
+        return new ChecksumBase() {
+            @Override
+            public boolean has(Algorithm a) {
+                return hex.containsKey(a);
+            }
+
+            @Override
+            public String getHex(Algorithm a) {
+                if (!hex.containsKey(a)) {
+                    throw new UnsupportedOperationException();
+                }
+                return hex.get(a);
+            }
+        };
+    }
+
+    private static MessageDigest newMessageDigest(Algorithm a) {
+        try {
+            return MessageDigest.getInstance(getDigestName(a));
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnsupportedOperationException("Checksum algorithm not supported: "
+                    + a, e);
+        }
+    }
+
+    /**
+     * Maps for example SHA256 to the JCA name SHA-256.
+     */
+    private static String getDigestName(Algorithm a) {
+        return a.name().replaceFirst("^SHA(\\d+)$", "SHA-$1");
+    }
+
+    private static Set<Algorithm> findSupported() {
+        Set<Algorithm> supported = EnumSet.noneOf(Algorithm.class);
+        for (Algorithm a : Algorithm.values()) {
+            try {
+                MessageDigest.getInstance(getDigestName(a));
+                supported.add(a);
+            } catch (NoSuchAlgorithmException e) {
+                // Not available in this JVM.
+            }
+        }
+        return Collections.unmodifiableSet(supported);
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+/**
+ * Totals for everything below a folder, not counting the folder itself.
+ */
+public class LocalFolderSize {
+    private final long fileCount;
+    private final long folderCount;
+    private final long bytes;
+
+    public LocalFolderSize(long fileCount, long folderCount, long bytes) {
+        this.fileCount = fileCount;
+        this.folderCount = folderCount;
+        this.bytes = bytes;
+    }
+
+    public long getFileCount() {
+        return this.fileCount;
+    }
+
+    public long getFolderCount() {
+        return this.folderCount;
+    }
+
+    /**
+     * @return The sum of the sizes of all files.
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    public LocalFolderSize add(LocalFolderSize other) {
+        return new LocalFolderSize(this.fileCount + other.fileCount, this.folderCount
+                + other.folderCount, this.bytes + other.bytes);
+    }
+
+    @Override
+    public String toString() {
+        return this.fileCount + " files, " + this.folderCount + " folders, "
+                + this.bytes + " bytes";
+    }
+}
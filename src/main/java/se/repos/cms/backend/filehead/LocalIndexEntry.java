@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * The attributes {@link LocalPathIndex} keeps for a file or folder, usable in
+ * place of attributes read from disk.
+ */
+public class LocalIndexEntry implements BasicFileAttributes {
+    private final String name;
+    private final boolean folder;
+    private final long size;
+    private final long lastModified;
+
+    public LocalIndexEntry(String name, boolean folder, long size, long lastModified) {
+        this.name = name;
+        this.folder = folder;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public LocalIndexEntry(String name, BasicFileAttributes attributes) {
+        this(name, attributes.isDirectory(), attributes.size(), attributes
+                .lastModifiedTime().toMillis());
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public long getLastModified() {
+        return this.lastModified;
+    }
+
+    /**
+     * @return True if the other entry has the same kind and, for files, size
+     *         and modification time.
+     */
+    public boolean isSame(LocalIndexEntry other) {
+        if (this.folder || other.folder) {
+            return this.folder == other.folder;
+        }
+        return this.size == other.size && this.lastModified == other.lastModified;
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return FileTime.fromMillis(this.lastModified);
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return this.lastModifiedTime();
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return this.lastModifiedTime();
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return !this.folder;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return this.folder;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return false;
+    }
+
+    @Override
+    public boolean isOther() {
+        return false;
+    }
+
+    @Override
+    public long size() {
+        return this.size;
+    }
+
+    @Override
+    public Object fileKey() {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return this.name + (this.folder ? "/" : " " + this.size) + " @"
+                + this.lastModified;
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.CmsItemPath;
+import se.simonsoft.cms.item.CmsRepository;
+import se.simonsoft.cms.item.impl.CmsItemIdUrl;
+
+/**
+ * Shares the paths and ids of folder entries between listings, so that
+ * listing a folder again, from any lookup, doesn't allocate a path and an id
+ * for every entry. Paths and ids are values, so they stay correct whatever
+ * happens on disk, and the cache is only bounded to limit memory: when it
+ * holds about the maximum number of entries the folders used least recently
+ * are dropped.
+ * <p>
+ * Items are not shared, as they keep attributes read when they were looked
+ * up.
+ */
+public class LocalItemInterner {
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    /**
+     * Keeps nothing, every path and id is new.
+     */
+    public static final LocalItemInterner NONE = new LocalItemInterner(0);
+
+    private static volatile LocalItemInterner shared = new LocalItemInterner(
+            DEFAULT_MAX_ENTRIES);
+
+    private final int maxEntries;
+    private final Map<String, Folder> folders;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param maxEntries
+     *            The number of folders and paths to keep, 0 for none.
+     */
+    public LocalItemInterner(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("Negative max entries " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.folders = new LinkedHashMap<String, Folder>(16, 0.75f, true);
+    }
+
+    /**
+     * @return The interner used by items, lookups and tree walks.
+     */
+    public static LocalItemInterner getShared() {
+        return shared;
+    }
+
+    public static void setShared(LocalItemInterner interner) {
+        if (interner == null) {
+            throw new NullPointerException();
+        }
+        shared = interner;
+    }
+
+    /**
+     * @return The entries of a folder. Can be kept while listing the folder.
+     */
+    Folder getFolder(CmsRepository repository, CmsItemPath path) {
+        if (this.maxEntries == 0) {
+            return new Folder(repository, path);
+        }
+        String key = repository.getUrl() + "\n" + path.getPath();
+        synchronized (this.folders) {
+            Folder folder = this.folders.get(key);
+            if (folder == null) {
+                folder = new Folder(repository, path);
+                this.folders.put(key, folder);
+                // Folders count too, or walks over many empty folders would
+                // grow the cache without bound.
+                if (this.size.incrementAndGet() > this.maxEntries) {
+                    this.evict(folder);
+                }
+            }
+            return folder;
+        }
+    }
+
+    /**
+     * @return The number of folders and paths kept.
+     */
+    public int size() {
+        return this.size.get();
+    }
+
+    public void clear() {
+        synchronized (this.folders) {
+            for (Folder folder : this.folders.values()) {
+                folder.evicted = true;
+            }
+            this.folders.clear();
+            this.size.set(0);
+        }
+    }
+
+    /**
+     * Drops the folders used least recently, except the one being added to,
+     * until the cache is within its bound.
+     */
+    private void evict(Folder adding) {
+        synchronized (this.folders) {
+            Iterator<Folder> eldest = this.folders.values().iterator();
+            while (this.size.get() > this.maxEntries && eldest.hasNext()) {
+                Folder folder = eldest.next();
+                if (folder != adding) {
+                    folder.evicted = true;
+                    eldest.remove();
+                    this.size.addAndGet(-1 - folder.children.size());
+                }
+            }
+        }
+    }
+
+    /**
+     * The paths and ids of the entries of a folder.
+     */
+    class Folder {
+        private final CmsRepository repository;
+        private final CmsItemPath path;
+        private final ConcurrentMap<String, Entry> children =
+                new ConcurrentHashMap<String, Entry>();
+        private volatile boolean evicted;
+
+        Folder(CmsRepository repository, CmsItemPath path) {
+            this.repository = repository;
+            this.path = path;
+        }
+
+        CmsItemPath getPath(String name) {
+            return this.getEntry(name).path;
+        }
+
+        CmsItemId getId(String name) {
+            return this.getEntry(name).id;
+        }
+
+        private Entry getEntry(String name) {
+            Entry entry = this.children.get(name);
+            if (entry != null) {
+                return entry;
+            }
+            CmsItemPath child = this.path.append(name);
+            entry = new Entry(child, new CmsItemIdUrl(this.repository, child));
+            LocalItemInterner interner = LocalItemInterner.this;
+            if (this.evicted || this.children.size() >= interner.maxEntries) {
+                return entry;
+            }
+            Entry raced = this.children.putIfAbsent(name, entry);
+            if (raced != null) {
+                return raced;
+            }
+            if (interner.size.incrementAndGet() > interner.maxEntries) {
+                interner.evict(this);
+            }
+            return entry;
+        }
+    }
+
+    private static class Entry {
+        private final CmsItemPath path;
+        private final CmsItemId id;
+
+        Entry(CmsItemPath path, CmsItemId id) {
+            this.path = path;
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Sorted, paged listings of large folders. A page is picked with a bounded
+ * heap of the entries that sort first, rather than by sorting the whole
+ * folder, and a window of the pages that follow is cached until the folder
+ * changes, so paging through a folder lists it about once every
+ * {@value #PREFETCH_PAGES} pages.
+ * <p>
+ * Continuation tokens hold the sort key of the last entry of a page, so the
+ * next page starts after it even if the folder has changed in between.
+ * <p>
+ * The cache is checked against the folder's modification time, which
+ * changes when entries are added, removed or renamed but not when a file is
+ * written to. Listings sorted by size or modification time may show a file
+ * at its old place until then.
+ */
+public class LocalListing {
+    public static final int DEFAULT_MAX_FOLDERS = 256;
+
+    /**
+     * Pages selected and cached beyond the one asked for.
+     */
+    static final int PREFETCH_PAGES = 10;
+
+    /**
+     * A folder modified more recently than this may be modified again within
+     * the timestamp granularity, so its listing isn't cached.
+     */
+    private static final long TRUST_MILLIS = 2000;
+
+    private static final LocalListing SHARED = new LocalListing(DEFAULT_MAX_FOLDERS);
+
+    public enum Sort {
+        NAME, SIZE, LAST_MODIFIED;
+
+        /**
+         * Orders by the key, then by name.
+         */
+        int compare(LocalIndexEntry a, LocalIndexEntry b) {
+            if (this == SIZE && a.size() != b.size()) {
+                return a.size() < b.size() ? -1 : 1;
+            }
+            if (this == LAST_MODIFIED && a.getLastModified() != b.getLastModified()) {
+                return a.getLastModified() < b.getLastModified() ? -1 : 1;
+            }
+            return a.getName().compareTo(b.getName());
+        }
+
+        String getToken(LocalIndexEntry entry) {
+            switch (this) {
+            case SIZE:
+                return entry.size() + ":" + entry.getName();
+            case LAST_MODIFIED:
+                return entry.getLastModified() + ":" + entry.getName();
+            default:
+                return entry.getName();
+            }
+        }
+
+        /**
+         * @return An entry that sorts where the token's entry did.
+         */
+        LocalIndexEntry parseToken(String token) {
+            if (this == NAME) {
+                return new LocalIndexEntry(token, false, 0, 0);
+            }
+            int colon = token.indexOf(':');
+            try {
+                long key = Long.parseLong(token.substring(0, colon));
+                String name = token.substring(colon + 1);
+                return this == SIZE ? new LocalIndexEntry(name, false, key, 0)
+                        : new LocalIndexEntry(name, false, 0, key);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Not a " + this
+                        + " continuation: " + token, e);
+            }
+        }
+    }
+
+    private final Map<String, Window> windows;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public LocalListing(final int maxFolders) {
+        if (maxFolders < 1) {
+            throw new IllegalArgumentException("Cache must hold at least one folder.");
+        }
+        this.windows = new LinkedHashMap<String, Window>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Window> eldest) {
+                return this.size() > maxFolders;
+            }
+        };
+    }
+
+    /**
+     * @return The listing cache used by lookups.
+     */
+    public static LocalListing getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Lists a page of a folder from disk, leaving out lock files.
+     *
+     * @param continuation
+     *            From the previous page, null for the first page.
+     */
+    public LocalListingPage<LocalIndexEntry> list(Path folder, ItemType type, Sort sort,
+            String continuation, int limit) {
+        LocalIndexEntry after = continuation == null ? null
+                : sort.parseToken(continuation);
+        return this.list(folder, type, sort, after, 0, limit);
+    }
+
+    /**
+     * Lists a page of a folder from disk, leaving out lock files.
+     *
+     * @param offset
+     *            The number of entries to skip.
+     */
+    public LocalListingPage<LocalIndexEntry> list(Path folder, ItemType type, Sort sort,
+            int offset, int limit) {
+        return this.list(folder, type, sort, null, offset, limit);
+    }
+
+    /**
+     * Pages entries that are already in memory, like those from a
+     * {@link LocalPathIndex}, without caching.
+     *
+     * @param continuation
+     *            From the previous page, null to use the offset.
+     */
+    public static LocalListingPage<LocalIndexEntry> list(
+            Iterable<LocalIndexEntry> entries, ItemType type, Sort sort,
+            String continuation, int offset, int limit) {
+        checkPage(offset, limit);
+        LocalIndexEntry after = continuation == null ? null
+                : sort.parseToken(continuation);
+        long size = after == null ? (long) offset + limit : limit;
+        Selection selection = new Selection(type, sort, after,
+                (int) Math.min(size, Integer.MAX_VALUE));
+        for (LocalIndexEntry entry : entries) {
+            selection.offer(entry);
+        }
+        return selection.toWindow(0).getPage(sort, after == null ? offset : 0, limit);
+    }
+
+    private LocalListingPage<LocalIndexEntry> list(Path folder, ItemType type, Sort sort,
+            LocalIndexEntry after, int offset, int limit) {
+        checkPage(offset, limit);
+        String key = folder + "\n" + type + "\n" + sort;
+        long modified = getLastModified(folder);
+        Window window;
+        synchronized (this.windows) {
+            window = this.windows.get(key);
+        }
+        if (window != null && window.modified == modified) {
+            int from = window.find(sort, after, offset, limit);
+            if (from >= 0) {
+                this.hits.incrementAndGet();
+                return window.getPage(sort, from, limit);
+            }
+        }
+        this.misses.incrementAndGet();
+        long size = offset + (long) limit * PREFETCH_PAGES;
+        window = this.scan(folder, new Selection(type, sort, after,
+                (int) Math.min(size, Integer.MAX_VALUE)), modified);
+        if (System.currentTimeMillis() - modified >= TRUST_MILLIS) {
+            synchronized (this.windows) {
+                this.windows.put(key, window);
+            }
+        }
+        return window.getPage(sort, after == null ? offset : 0, limit);
+    }
+
+    private Window scan(Path folder, Selection selection, long modified) {
+        DirectoryStream<Path> stream = null;
+        try {
+            stream = Files.newDirectoryStream(folder);
+            LocalMetrics.getShared().increment(LocalMetrics.Counter.FOLDERS_LISTED);
+            for (Path entry : stream) {
+                if (LocalLockManager.isLockFile(entry)) {
+                    continue;
+                }
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    // Removed while we were listing.
+                    continue;
+                }
+                selection.offer(new LocalIndexEntry(entry.getFileName().toString(),
+                        attrs));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list " + folder, e);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+        return selection.toWindow(modified);
+    }
+
+    private static long getLastModified(Path folder) {
+        try {
+            return Files.getLastModifiedTime(folder).toMillis();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + folder, e);
+        }
+    }
+
+    private static void checkPage(int offset, int limit) {
+        if (offset < 0 || limit < 1) {
+            throw new IllegalArgumentException("Invalid page offset " + offset
+                    + " limit " + limit);
+        }
+    }
+
+    public void clear() {
+        synchronized (this.windows) {
+            this.windows.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * Keeps the entries of a kind that sort first after a given entry.
+     */
+    private static class Selection {
+        private final ItemType type;
+        private final Sort sort;
+        private final LocalIndexEntry after;
+        private final int size;
+        /**
+         * The last entry kept is at the head.
+         */
+        private final PriorityQueue<LocalIndexEntry> heap;
+        private int total;
+        private int following;
+
+        Selection(ItemType type, final Sort sort, LocalIndexEntry after, int size) {
+            this.type = type;
+            this.sort = sort;
+            this.after = after;
+            this.size = size;
+            this.heap = new PriorityQueue<LocalIndexEntry>(Math.min(size, 1024) + 1,
+                    new Comparator<LocalIndexEntry>() {
+                        @Override
+                        public int compare(LocalIndexEntry a, LocalIndexEntry b) {
+                            return sort.compare(b, a);
+                        }
+                    });
+        }
+
+        void offer(LocalIndexEntry entry) {
+            if (this.type == ItemType.FILE && entry.isDirectory()
+                    || this.type == ItemType.FOLDER && !entry.isDirectory()) {
+                return;
+            }
+            this.total++;
+            if (this.after != null && this.sort.compare(entry, this.after) <= 0) {
+                return;
+            }
+            this.following++;
+            if (this.heap.size() < this.size) {
+                this.heap.add(entry);
+            } else if (this.sort.compare(entry, this.heap.peek()) < 0) {
+                this.heap.poll();
+                this.heap.add(entry);
+            }
+        }
+
+        Window toWindow(long modified) {
+            List<LocalIndexEntry> entries = new ArrayList<LocalIndexEntry>(this.heap);
+            Collections.sort(entries, this.heap.comparator());
+            Collections.reverse(entries);
+            return new Window(this.after, entries, this.following <= this.size,
+                    this.total, modified);
+        }
+    }
+
+    /**
+     * A sorted run of a folder's entries, from the first after an entry or
+     * from the start.
+     */
+    private static class Window {
+        private final LocalIndexEntry after;
+        private final List<LocalIndexEntry> entries;
+        /**
+         * True if nothing sorts after the last entry.
+         */
+        private final boolean complete;
+        private final int total;
+        private final long modified;
+
+        Window(LocalIndexEntry after, List<LocalIndexEntry> entries, boolean complete,
+                int total, long modified) {
+            this.after = after;
+            this.entries = entries;
+            this.complete = complete;
+            this.total = total;
+            this.modified = modified;
+        }
+
+        /**
+         * @return Where the page starts in this window, -1 if the window
+         *         doesn't hold the whole page.
+         */
+        int find(Sort sort, LocalIndexEntry pageAfter, int offset, int limit) {
+            int from;
+            if (pageAfter == null) {
+                if (this.after != null) {
+                    return -1;
+                }
+                from = offset;
+            } else {
+                if (this.after != null && sort.compare(pageAfter, this.after) < 0) {
+                    return -1;
+                }
+                from = this.findAfter(sort, pageAfter);
+            }
+            if (this.complete || (long) from + limit <= this.entries.size()) {
+                return from;
+            }
+            return -1;
+        }
+
+        /**
+         * @return The index of the first entry that sorts after the given
+         *         one.
+         */
+        private int findAfter(Sort sort, LocalIndexEntry entry) {
+            int low = 0;
+            int high = this.entries.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sort.compare(this.entries.get(mid), entry) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        LocalListingPage<LocalIndexEntry> getPage(Sort sort, int from, int limit) {
+            int size = this.entries.size();
+            int to = (int) Math.min((long) from + limit, size);
+            List<LocalIndexEntry> page = from >= size ? new ArrayList<LocalIndexEntry>()
+                    : new ArrayList<LocalIndexEntry>(this.entries.subList(from, to));
+            String continuation = null;
+            if (!page.isEmpty() && (to < size || !this.complete)) {
+                continuation = sort.getToken(page.get(page.size() - 1));
+            }
+            return new LocalListingPage<LocalIndexEntry>(page, continuation, this.total);
+        }
+    }
+}
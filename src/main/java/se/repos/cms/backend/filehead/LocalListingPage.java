@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of a sorted folder listing, see {@link LocalListing}.
+ *
+ * @param <T>
+ *            The listed entries or items.
+ */
+public class LocalListingPage<T> {
+    private final List<T> items;
+    private final String continuation;
+    private final int total;
+
+    public LocalListingPage(List<T> items, String continuation, int total) {
+        this.items = Collections.unmodifiableList(items);
+        this.continuation = continuation;
+        this.total = total;
+    }
+
+    public List<T> getItems() {
+        return this.items;
+    }
+
+    /**
+     * @return The token to get the next page with, null if this is the last
+     *         page.
+     */
+    public String getContinuation() {
+        return this.continuation;
+    }
+
+    /**
+     * @return The number of entries of the listed kind in the folder, as of
+     *         when it was last read.
+     */
+    public int getTotal() {
+        return this.total;
+    }
+
+    @Override
+    public String toString() {
+        return this.items.size() + " of " + this.total
+                + (this.continuation == null ? "" : " next " + this.continuation);
+    }
+}
@@ -0,0 +1,839 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.io.FileUtils;
+
+import se.simonsoft.cms.item.CmsItemPath;
+import se.simonsoft.cms.item.CmsRepository;
+import se.simonsoft.cms.item.commit.CmsItemLockedException;
+
+/**
+ * Keeps the locks of a repository in memory, so that lock checks cost no
+ * I/O and two users racing for a lock get exactly one winner. The lock files
+ * are read once, when the manager is created, and after that written behind
+ * in the order locks are taken and released.
+ * <p>
+ * Assumes that this process is the only one taking locks in the repository.
+ */
+public class LocalLockManager {
+    /**
+     * Starts the name of the file a lock is kept in, which is otherwise the
+     * name of the item. Reserved, so that no item is taken for a lock.
+     */
+    static final String LOCK_PREFIX = ".filehead-lock.";
+    static final String BATCH_PREFIX = ".filehead-lockbatch.";
+    /**
+     * Ends the names of lock files written by earlier versions, see
+     * {@link #migrateLegacyLocks()}.
+     */
+    static final String LEGACY_SUFFIX = ".lock";
+    /**
+     * Larger files with the legacy suffix are items, not locks.
+     */
+    private static final long LEGACY_MAX_SIZE = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long REAPER_TICK_MILLIS = 1000;
+    private static final int REAPER_TICKS_PER_WHEEL = 512;
+
+    private static final ConcurrentMap<String, LocalLockManager> managers =
+            new ConcurrentHashMap<String, LocalLockManager>();
+
+    private final CmsRepository repository;
+    private final ConcurrentMap<String, LocalLockRecord> locks =
+            new ConcurrentHashMap<String, LocalLockRecord>();
+    /**
+     * The paths of each batch, by token.
+     */
+    private final ConcurrentMap<String, List<String>> batches =
+            new ConcurrentHashMap<String, List<String>>();
+    /**
+     * The names of the locked items in each folder, so that a folder's locks
+     * are found without a lookup per item. Guarded by itself.
+     */
+    private final Map<String, Set<String>> byFolder = new HashMap<String, Set<String>>();
+    private final AtomicInteger recursiveCount = new AtomicInteger();
+    /**
+     * Taken for write by recursive locks, so that nothing is locked below
+     * them while they check, and for read by other locks.
+     */
+    private final ReadWriteLock structure = new ReentrantReadWriteLock();
+    private final LocalTimerWheel<LocalLockRecord> reaper;
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final ExecutorService writer;
+    private final AtomicReference<RuntimeException> writeFailure =
+            new AtomicReference<RuntimeException>();
+
+    /**
+     * Creates a manager and loads the repository's lock files. Use
+     * {@link #getInstance(CmsRepository)} unless the manager is injected.
+     */
+    public LocalLockManager(CmsRepository repository) {
+        this.repository = repository;
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "filehead-locks");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.reaper = new LocalTimerWheel<LocalLockRecord>(REAPER_TICK_MILLIS,
+                REAPER_TICKS_PER_WHEEL, "filehead-lock-reaper",
+                new LocalTimerWheel.Handler<LocalLockRecord>() {
+                    @Override
+                    public void expired(LocalLockRecord lock) {
+                        LocalLockManager.this.expire(lock);
+                    }
+                });
+        this.load();
+    }
+
+    /**
+     * @return The manager shared by everything using the repository in this
+     *         process.
+     */
+    public static LocalLockManager getInstance(CmsRepository repository) {
+        LocalLockManager manager = managers.get(repository.getUrl());
+        if (manager == null) {
+            synchronized (managers) {
+                manager = managers.get(repository.getUrl());
+                if (manager == null) {
+                    manager = new LocalLockManager(repository);
+                    managers.put(repository.getUrl(), manager);
+                }
+            }
+        }
+        return manager;
+    }
+
+    /**
+     * Takes a lock.
+     *
+     * @param timeout
+     *            Milliseconds until the lock expires, or 0 for never.
+     * @throws CmsItemLockedException
+     *             If the item is already locked, by anyone.
+     */
+    public LocalLockRecord lock(CmsItemPath item, String owner, String comment,
+            long timeout) throws CmsItemLockedException {
+        long start = System.nanoTime();
+        LocalLockRecord lock = LocalLockRecord.create(item.getPath(), owner, comment,
+                false, false, timeout);
+        this.structure.readLock().lock();
+        try {
+            if (this.getRecursive(lock.getPath()) != null || !this.acquire(lock)) {
+                throw new CmsItemLockedException(this.repository, item);
+            }
+        } finally {
+            this.structure.readLock().unlock();
+        }
+        this.persist(lock.getPath(), lock);
+        this.scheduleExpiry(lock);
+        recordTaken(1, start);
+        return lock;
+    }
+
+    /**
+     * Takes locks on all the items or none of them. The locks share a token
+     * and are written to a single batch file.
+     *
+     * @throws CmsItemLockedException
+     *             If any of the items is already locked, in which case no
+     *             locks are taken.
+     */
+    public List<LocalLockRecord> lock(List<CmsItemPath> items, String owner,
+            String comment, long timeout) throws CmsItemLockedException {
+        long start = System.nanoTime();
+        Set<String> paths = new LinkedHashSet<String>();
+        for (CmsItemPath item : items) {
+            paths.add(item.getPath());
+        }
+        if (paths.isEmpty()) {
+            return new ArrayList<LocalLockRecord>();
+        }
+        LocalLockRecord batch = LocalLockRecord.create(paths.iterator().next(), owner,
+                comment, false, true, timeout);
+        List<LocalLockRecord> acquired = new ArrayList<LocalLockRecord>(paths.size());
+        this.structure.readLock().lock();
+        try {
+            // Check everything first, so that a conflict usually costs no
+            // rollback.
+            for (CmsItemPath item : items) {
+                if (this.get(item) != null) {
+                    throw new CmsItemLockedException(this.repository, item);
+                }
+            }
+            for (String path : paths) {
+                LocalLockRecord lock = batch.forPath(path);
+                if (!this.acquire(lock)) {
+                    for (LocalLockRecord taken : acquired) {
+                        if (this.locks.remove(taken.getPath(), taken)) {
+                            this.indexRemove(taken.getPath());
+                        }
+                    }
+                    throw new CmsItemLockedException(this.repository, new CmsItemPath(
+                            path));
+                }
+                acquired.add(lock);
+            }
+        } finally {
+            this.structure.readLock().unlock();
+        }
+        this.batches.put(batch.getToken(), new ArrayList<String>(paths));
+        this.persistBatches(Collections.<String> emptyList(),
+                Collections.singleton(batch.getToken()));
+        for (LocalLockRecord lock : acquired) {
+            this.scheduleExpiry(lock);
+        }
+        recordTaken(acquired.size(), start);
+        return acquired;
+    }
+
+    private static void recordTaken(int count, long startNanos) {
+        LocalMetrics metrics = LocalMetrics.getShared();
+        metrics.add(LocalMetrics.Counter.LOCKS_TAKEN, count);
+        metrics.recordSince(LocalMetrics.Histogram.LOCK, startNanos);
+    }
+
+    /**
+     * Locks a folder and everything in it with a single lock.
+     *
+     * @throws CmsItemLockedException
+     *             If the folder, one of its parents or anything below it is
+     *             already locked.
+     */
+    public LocalLockRecord lockRecursive(CmsItemPath folder, String owner,
+            String comment, long timeout) throws CmsItemLockedException {
+        long start = System.nanoTime();
+        LocalLockRecord lock = LocalLockRecord.create(folder.getPath(), owner, comment,
+                true, false, timeout);
+        this.structure.writeLock().lock();
+        try {
+            if (this.get(folder) != null) {
+                throw new CmsItemLockedException(this.repository, folder);
+            }
+            long now = System.currentTimeMillis();
+            for (LocalLockRecord held : this.locks.values()) {
+                if (lock.covers(held.getPath()) && !held.isExpired(now)) {
+                    throw new CmsItemLockedException(this.repository, new CmsItemPath(
+                            held.getPath()));
+                }
+            }
+            if (!this.acquire(lock)) {
+                throw new CmsItemLockedException(this.repository, folder);
+            }
+            this.recursiveCount.incrementAndGet();
+        } finally {
+            this.structure.writeLock().unlock();
+        }
+        this.persist(lock.getPath(), lock);
+        this.scheduleExpiry(lock);
+        recordTaken(1, start);
+        return lock;
+    }
+
+    /**
+     * Puts a lock in the table unless there is one that hasn't expired.
+     *
+     * @return False if the path is locked.
+     */
+    private boolean acquire(LocalLockRecord lock) {
+        while (true) {
+            LocalLockRecord existing = this.locks.putIfAbsent(lock.getPath(), lock);
+            if (existing == null) {
+                this.indexAdd(lock.getPath());
+                return true;
+            }
+            if (!existing.isExpired(System.currentTimeMillis())) {
+                return false;
+            }
+            if (this.locks.replace(lock.getPath(), existing, lock)) {
+                // Beat the reaper to it. A batch file needs rewriting, and a
+                // single lock's file deleting, or a restart would load the
+                // expired lock again if the new one is written elsewhere.
+                this.expiredCount.incrementAndGet();
+                if (existing.isRecursive()) {
+                    this.recursiveCount.decrementAndGet();
+                }
+                if (existing.isBatched()) {
+                    this.persistBatches(Collections.<String> emptyList(),
+                            Collections.singleton(existing.getToken()));
+                } else {
+                    this.persist(existing.getPath(), null);
+                }
+                return true;
+            }
+        }
+    }
+
+    private void scheduleExpiry(LocalLockRecord lock) {
+        if (lock.getExpires() != 0) {
+            this.reaper.schedule(lock, lock.getExpires());
+        }
+    }
+
+    /**
+     * Called by the reaper, removes the lock unless it was already released.
+     */
+    private void expire(LocalLockRecord lock) {
+        if (!lock.isExpired(System.currentTimeMillis())) {
+            this.reaper.schedule(lock, lock.getExpires());
+            return;
+        }
+        this.expiredCount.addAndGet(this.unlock(Collections.singletonList(lock)));
+    }
+
+    /**
+     * Releases a lock, unless it has already been released and maybe taken
+     * again by someone else.
+     *
+     * @return True if the lock was released.
+     */
+    public boolean unlock(LocalLockRecord lock) {
+        return this.unlock(Collections.singletonList(lock)) == 1;
+    }
+
+    /**
+     * Releases locks, with a single write per batch.
+     *
+     * @return The number of locks released, not counting those that were
+     *         already released.
+     */
+    public int unlock(Collection<LocalLockRecord> locks) {
+        long start = System.nanoTime();
+        List<String> singles = new ArrayList<String>();
+        Set<String> tokens = new LinkedHashSet<String>();
+        int released = 0;
+        for (LocalLockRecord lock : locks) {
+            if (!this.locks.remove(lock.getPath(), lock)) {
+                continue;
+            }
+            this.indexRemove(lock.getPath());
+            released++;
+            if (lock.isRecursive()) {
+                this.recursiveCount.decrementAndGet();
+            }
+            if (lock.isBatched()) {
+                tokens.add(lock.getToken());
+            } else {
+                singles.add(lock.getPath());
+            }
+        }
+        if (singles.size() == 1 && tokens.isEmpty()) {
+            this.persist(singles.get(0), null);
+        } else if (!singles.isEmpty() || !tokens.isEmpty()) {
+            this.persistBatches(singles, tokens);
+        }
+        LocalMetrics metrics = LocalMetrics.getShared();
+        metrics.add(LocalMetrics.Counter.LOCKS_RELEASED, released);
+        metrics.recordSince(LocalMetrics.Histogram.UNLOCK, start);
+        return released;
+    }
+
+    /**
+     * @return The lock on the item or a recursive lock on one of its parents,
+     *         or null.
+     */
+    public LocalLockRecord get(CmsItemPath item) {
+        LocalLockRecord lock = this.locks.get(item.getPath());
+        if (lock != null && !lock.isExpired(System.currentTimeMillis())) {
+            return lock;
+        }
+        return this.getRecursive(item.getPath());
+    }
+
+    private LocalLockRecord getRecursive(String path) {
+        if (this.recursiveCount.get() == 0) {
+            return null;
+        }
+        for (String parent = getParent(path); parent != null; parent = getParent(parent)) {
+            LocalLockRecord lock = this.locks.get(parent);
+            if (lock != null && lock.isRecursive()
+                    && !lock.isExpired(System.currentTimeMillis())) {
+                return lock;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The locks on items directly in the folder, by name. Recursive
+     *         locks on the folder or its parents, that cover all its items,
+     *         are not included, see {@link #get(CmsItemPath)}.
+     */
+    public Map<String, LocalLockRecord> getChildLocks(CmsItemPath folder) {
+        String prefix = folder.getPath().endsWith("/") ? folder.getPath() : folder
+                .getPath() + "/";
+        List<String> names;
+        synchronized (this.byFolder) {
+            Set<String> locked = this.byFolder.get(folder.getPath());
+            if (locked == null) {
+                return Collections.emptyMap();
+            }
+            names = new ArrayList<String>(locked);
+        }
+        Map<String, LocalLockRecord> childLocks = new HashMap<String, LocalLockRecord>();
+        long now = System.currentTimeMillis();
+        for (String name : names) {
+            LocalLockRecord lock = this.locks.get(prefix + name);
+            if (lock != null && !lock.isExpired(now)) {
+                childLocks.put(name, lock);
+            }
+        }
+        return childLocks;
+    }
+
+    /**
+     * @return The locks on items anywhere below the folder. Recursive locks
+     *         on the folder or its parents are not included, see
+     *         {@link #get(CmsItemPath)}.
+     */
+    public List<LocalLockRecord> getDescendantLocks(CmsItemPath folder) {
+        List<LocalLockRecord> descendantLocks = new ArrayList<LocalLockRecord>();
+        long now = System.currentTimeMillis();
+        for (String path : this.getDescendantPaths(folder.getPath())) {
+            LocalLockRecord lock = this.locks.get(path);
+            if (lock != null && !lock.isExpired(now)) {
+                descendantLocks.add(lock);
+            }
+        }
+        return descendantLocks;
+    }
+
+    /**
+     * Releases the locks on an item that has been deleted and on everything
+     * below it, whoever holds them, so that the paths can be created and
+     * locked again. Call {@link #drain()} before deleting, so that no lock
+     * file is being written into a folder as it is deleted.
+     *
+     * @return The number of locks released.
+     */
+    public int delete(CmsItemPath item) {
+        List<LocalLockRecord> held = new ArrayList<LocalLockRecord>();
+        LocalLockRecord lock = this.locks.get(item.getPath());
+        if (lock != null) {
+            held.add(lock);
+        }
+        for (String path : this.getDescendantPaths(item.getPath())) {
+            lock = this.locks.get(path);
+            if (lock != null) {
+                held.add(lock);
+            }
+        }
+        return held.isEmpty() ? 0 : this.unlock(held);
+    }
+
+    /**
+     * @return The paths below the folder that are in the per-folder index.
+     */
+    private List<String> getDescendantPaths(String folder) {
+        String prefix = folder.endsWith("/") ? folder : folder + "/";
+        List<String> paths = new ArrayList<String>();
+        synchronized (this.byFolder) {
+            for (Map.Entry<String, Set<String>> entry : this.byFolder.entrySet()) {
+                String parent = entry.getKey();
+                if (!parent.equals(folder) && !parent.startsWith(prefix)) {
+                    continue;
+                }
+                String under = parent.endsWith("/") ? parent : parent + "/";
+                for (String name : entry.getValue()) {
+                    paths.add(under + name);
+                }
+            }
+        }
+        return paths;
+    }
+
+    private void indexAdd(String path) {
+        String parent = getParent(path);
+        if (parent == null) {
+            return;
+        }
+        synchronized (this.byFolder) {
+            Set<String> names = this.byFolder.get(parent);
+            if (names == null) {
+                names = new HashSet<String>();
+                this.byFolder.put(parent, names);
+            }
+            names.add(getName(path));
+        }
+    }
+
+    private void indexRemove(String path) {
+        String parent = getParent(path);
+        if (parent == null) {
+            return;
+        }
+        synchronized (this.byFolder) {
+            Set<String> names = this.byFolder.get(parent);
+            if (names != null && names.remove(getName(path)) && names.isEmpty()) {
+                this.byFolder.remove(parent);
+            }
+        }
+    }
+
+    private static String getName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static String getParent(String path) {
+        int slash = path.lastIndexOf('/');
+        if (slash < 0 || path.length() == 1) {
+            return null;
+        }
+        return slash == 0 ? "/" : path.substring(0, slash);
+    }
+
+    public boolean isLocked(CmsItemPath item) {
+        return this.get(item) != null;
+    }
+
+    /**
+     * @return The number of locks held, including expired locks the reaper
+     *         hasn't got to yet, at most a second late.
+     */
+    public int getActiveCount() {
+        return this.locks.size();
+    }
+
+    /**
+     * @return The number of locks that have expired since the manager was
+     *         created.
+     */
+    public long getExpiredCount() {
+        return this.expiredCount.get();
+    }
+
+    /**
+     * Waits for lock files to be written.
+     *
+     * @throws RuntimeException
+     *             If a lock file failed to be written or deleted since the
+     *             last flush.
+     */
+    public void flush() {
+        this.drain();
+        RuntimeException failure = this.writeFailure.getAndSet(null);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits for the lock files queued so far to be written. Unlike
+     * {@link #flush()} doesn't report earlier failures.
+     */
+    public void drain() {
+        try {
+            this.writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for lock files", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed waiting for lock files", e);
+        }
+    }
+
+    /**
+     * Writes the remaining lock files and stops the writer thread.
+     */
+    public void close() {
+        this.reaper.stop();
+        this.flush();
+        this.writer.shutdown();
+        managers.remove(this.repository.getUrl(), this);
+    }
+
+    /**
+     * @return True for the files locks are kept in, which are not items.
+     */
+    static boolean isLockFile(Path file) {
+        Path name = file.getFileName();
+        return name != null && (name.toString().startsWith(LOCK_PREFIX)
+                || name.toString().startsWith(BATCH_PREFIX));
+    }
+
+    /**
+     * @return The path of the file the lock on an item is kept in, relative
+     *         to the repository.
+     */
+    static String getLockPath(String path) {
+        int slash = path.lastIndexOf('/');
+        return path.substring(0, slash + 1) + LOCK_PREFIX + path.substring(slash + 1);
+    }
+
+    static File getLockFile(CmsRepository repository, String path) {
+        return new File(repository.getPath() + getLockPath(path));
+    }
+
+    /**
+     * @return The path of the file a batch of locks is kept in, relative to
+     *         the repository.
+     */
+    static String getBatchPath(String token) {
+        return "/" + BATCH_PREFIX + token;
+    }
+
+    private File getBatchFile(String token) {
+        return new File(this.repository.getPath() + getBatchPath(token));
+    }
+
+    /**
+     * Queues writing or, for a null lock, deleting a lock file.
+     */
+    private void persist(final String path, final LocalLockRecord lock) {
+        this.writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = getLockFile(LocalLockManager.this.repository, path);
+                try {
+                    if (lock == null) {
+                        Files.deleteIfExists(file.toPath());
+                        LocalMetrics.getShared().increment(
+                                LocalMetrics.Counter.LOCK_FILES_DELETED);
+                    } else if (LocalLockManager.this.locks.get(path) == lock
+                            && file.getParentFile().isDirectory()) {
+                        // Not for locks already released, or for items
+                        // deleted, whose folders would be created again.
+                        FileUtils.write(file, lock.format(), UTF8.name());
+                        LocalMetrics.getShared().increment(
+                                LocalMetrics.Counter.LOCK_FILES_WRITTEN);
+                    }
+                } catch (IOException e) {
+                    LocalLockManager.this.writeFailure.compareAndSet(null,
+                            new RuntimeException("Failed to persist lock " + file, e));
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues deleting single lock files and rewriting batch files with the
+     * batch members still locked, as one task.
+     */
+    private void persistBatches(final Collection<String> deletedSingles,
+            final Collection<String> tokens) {
+        this.writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                LocalLockManager manager = LocalLockManager.this;
+                LocalMetrics metrics = LocalMetrics.getShared();
+                try {
+                    for (String path : deletedSingles) {
+                        Files.deleteIfExists(getLockFile(manager.repository, path)
+                                .toPath());
+                        metrics.increment(LocalMetrics.Counter.LOCK_FILES_DELETED);
+                    }
+                    for (String token : tokens) {
+                        List<String> paths = manager.batches.get(token);
+                        if (paths == null) {
+                            // Already deleted by an earlier task.
+                            continue;
+                        }
+                        List<LocalLockRecord> remaining = new ArrayList<LocalLockRecord>();
+                        for (String path : paths) {
+                            LocalLockRecord lock = manager.locks.get(path);
+                            if (lock != null && lock.isBatched()
+                                    && lock.getToken().equals(token)) {
+                                remaining.add(lock);
+                            }
+                        }
+                        File file = manager.getBatchFile(token);
+                        if (remaining.isEmpty()) {
+                            Files.deleteIfExists(file.toPath());
+                            manager.batches.remove(token);
+                            metrics.increment(LocalMetrics.Counter.LOCK_FILES_DELETED);
+                        } else if (file.getParentFile().isDirectory()) {
+                            FileUtils.write(file, LocalLockRecord.formatBatch(remaining),
+                                    UTF8.name());
+                            metrics.increment(LocalMetrics.Counter.LOCK_FILES_WRITTEN);
+                        }
+                    }
+                } catch (IOException e) {
+                    manager.writeFailure.compareAndSet(null, new RuntimeException(
+                            "Failed to persist locks", e));
+                }
+            }
+        });
+    }
+
+    private void load(LocalLockRecord lock) {
+        this.locks.put(lock.getPath(), lock);
+        this.indexAdd(lock.getPath());
+        if (lock.isRecursive()) {
+            this.recursiveCount.incrementAndGet();
+        }
+        // Locks that expired while we were down go on the next tick.
+        this.scheduleExpiry(lock);
+    }
+
+    private void loadBatch(List<LocalLockRecord> batch) {
+        List<String> paths = new ArrayList<String>(batch.size());
+        for (LocalLockRecord lock : batch) {
+            this.load(lock);
+            paths.add(lock.getPath());
+        }
+        if (!batch.isEmpty()) {
+            this.batches.put(batch.get(0).getToken(), paths);
+        }
+    }
+
+    private void load() {
+        if (this.repository.getPath().isEmpty()) {
+            return;
+        }
+        final Path root = new File(this.repository.getPath()).toPath();
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        final int prefix = root.toString().length();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                        throws IOException {
+                    String name = file.getFileName().toString();
+                    boolean batch = name.startsWith(BATCH_PREFIX)
+                            && file.getParent().equals(root);
+                    boolean single = name.startsWith(LOCK_PREFIX);
+                    if (!attrs.isRegularFile() || !batch && !single) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    String contents = new String(Files.readAllBytes(file), UTF8);
+                    String folder = file.getParent().toString().substring(prefix) + "/";
+                    try {
+                        if (batch) {
+                            LocalLockManager.this.loadBatch(LocalLockRecord
+                                    .parseBatch(contents));
+                        } else {
+                            LocalLockManager.this.load(LocalLockRecord.parse(folder
+                                    + name.substring(LOCK_PREFIX.length()), contents));
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // Cut short by a crash.
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // Removed while we were loading.
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to load locks from " + root, e);
+        }
+    }
+
+    /**
+     * Takes over the lock files written by earlier versions, named like the
+     * item they lock with {@link #LEGACY_SUFFIX}, and renames them. To be run
+     * once, when upgrading, before any locks are taken. A file is only taken
+     * for a lock if the item is next to it, it is small and its contents
+     * parse as a lock, so items like yarn.lock are left alone. Locks on items
+     * that are already locked are left too.
+     *
+     * @return The number of locks taken over.
+     */
+    public int migrateLegacyLocks() {
+        if (this.repository.getPath().isEmpty()) {
+            return 0;
+        }
+        final Path root = new File(this.repository.getPath()).toPath();
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        final int prefix = root.toString().length();
+        final List<Path> legacyFiles = new ArrayList<Path>();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                        throws IOException {
+                    String name = file.getFileName().toString();
+                    if (!attrs.isRegularFile() || isLockFile(file)
+                            || !name.endsWith(LEGACY_SUFFIX)
+                            || name.length() == LEGACY_SUFFIX.length()
+                            || attrs.size() > LEGACY_MAX_SIZE) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    String item = name.substring(0, name.length()
+                            - LEGACY_SUFFIX.length());
+                    if (!Files.exists(file.resolveSibling(item),
+                            LinkOption.NOFOLLOW_LINKS)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    String contents = new String(Files.readAllBytes(file), UTF8);
+                    String folder = file.getParent().toString().substring(prefix) + "/";
+                    LocalLockRecord lock;
+                    try {
+                        lock = LocalLockRecord.parse(folder + item, contents);
+                    } catch (IllegalArgumentException e) {
+                        // An item that happens to have the suffix.
+                        return FileVisitResult.CONTINUE;
+                    }
+                    if (!LocalLockManager.this.locks.containsKey(lock.getPath())) {
+                        LocalLockManager.this.load(lock);
+                        legacyFiles.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // Removed while we were migrating.
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            // Renamed after the walk, which could see them again.
+            for (Path file : legacyFiles) {
+                String name = file.getFileName().toString();
+                Files.move(file, file.resolveSibling(LOCK_PREFIX + name.substring(0,
+                        name.length() - LEGACY_SUFFIX.length())),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to migrate locks in " + root, e);
+        }
+        return legacyFiles.size();
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One lock as kept by {@link LocalLockManager}. Immutable, so a lock read
+ * once can be used without going back to the manager or the disk.
+ */
+public class LocalLockRecord {
+    /**
+     * Lock files written before owners were stored: creation time, a colon
+     * and the comment.
+     */
+    private static final Pattern LEGACY = Pattern.compile("^(\\d+):(.*)$", Pattern.DOTALL);
+
+    private final String path;
+    private final String owner;
+    private final String comment;
+    private final long created;
+    private final String token;
+    private final boolean recursive;
+    private final boolean batched;
+    private final long expires;
+
+    public LocalLockRecord(String path, String owner, String comment, long created,
+            String token) {
+        this(path, owner, comment, created, token, false, false, 0);
+    }
+
+    /**
+     * @param recursive
+     *            True if the lock covers everything below the item too.
+     * @param batched
+     *            True if the lock was taken together with others, sharing
+     *            their token.
+     * @param expires
+     *            When the lock expires, in milliseconds since the epoch, or 0
+     *            for never.
+     */
+    public LocalLockRecord(String path, String owner, String comment, long created,
+            String token, boolean recursive, boolean batched, long expires) {
+        this.path = path;
+        this.owner = owner;
+        this.comment = comment;
+        this.created = created;
+        this.token = token;
+        this.recursive = recursive;
+        this.batched = batched;
+        this.expires = expires;
+    }
+
+    /**
+     * Creates a new lock with a unique token.
+     *
+     * @param timeout
+     *            Milliseconds until the lock expires, or 0 for never.
+     */
+    public static LocalLockRecord create(String path, String owner, String comment,
+            boolean recursive, boolean batched, long timeout) {
+        long created = System.currentTimeMillis();
+        return new LocalLockRecord(path, owner, comment, created, UUID.randomUUID()
+                .toString(), recursive, batched, timeout > 0 ? created + timeout : 0);
+    }
+
+    /**
+     * @return A lock like this one but for another item.
+     */
+    LocalLockRecord forPath(String otherPath) {
+        return new LocalLockRecord(otherPath, this.owner, this.comment, this.created,
+                this.token, this.recursive, this.batched, this.expires);
+    }
+
+    /**
+     * @return The path of the locked item.
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * @return The user who took the lock, null for locks from lock files that
+     *         didn't store it.
+     */
+    public String getOwner() {
+        return this.owner;
+    }
+
+    public boolean isOwner(String username) {
+        return this.owner != null && this.owner.equals(username);
+    }
+
+    public String getComment() {
+        return this.comment;
+    }
+
+    public long getCreated() {
+        return this.created;
+    }
+
+    public String getToken() {
+        return this.token;
+    }
+
+    /**
+     * @return When the lock expires, in milliseconds since the epoch, or 0
+     *         for never.
+     */
+    public long getExpires() {
+        return this.expires;
+    }
+
+    public boolean isExpired(long now) {
+        return this.expires != 0 && this.expires <= now;
+    }
+
+    public boolean isRecursive() {
+        return this.recursive;
+    }
+
+    /**
+     * @return True if the lock is stored with the others of its batch, in
+     *         one file named by the token.
+     */
+    public boolean isBatched() {
+        return this.batched;
+    }
+
+    /**
+     * @return True if the lock is on the path or, for recursive locks, on
+     *         one of its parents.
+     */
+    public boolean covers(String path) {
+        if (this.path.equals(path)) {
+            return true;
+        }
+        return this.recursive && path.startsWith(this.path)
+                && (this.path.endsWith("/") || path.charAt(this.path.length()) == '/');
+    }
+
+    /**
+     * @return The contents of a lock file for this lock.
+     */
+    String format() {
+        Properties properties = new Properties();
+        properties.setProperty("created", Long.toString(this.created));
+        properties.setProperty("token", this.token);
+        if (this.owner != null) {
+            properties.setProperty("owner", this.owner);
+        }
+        if (this.comment != null) {
+            properties.setProperty("comment", this.comment);
+        }
+        if (this.recursive) {
+            properties.setProperty("recursive", "true");
+        }
+        if (this.expires != 0) {
+            properties.setProperty("expires", Long.toString(this.expires));
+        }
+        StringWriter out = new StringWriter();
+        try {
+            properties.store(out, "repos-filehead lock");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return The contents of a batch file for locks with the same owner,
+     *         comment, creation time and token.
+     */
+    static String formatBatch(List<LocalLockRecord> batch) {
+        LocalLockRecord first = batch.get(0);
+        Properties properties = new Properties();
+        properties.setProperty("created", Long.toString(first.created));
+        properties.setProperty("token", first.token);
+        if (first.owner != null) {
+            properties.setProperty("owner", first.owner);
+        }
+        if (first.comment != null) {
+            properties.setProperty("comment", first.comment);
+        }
+        if (first.expires != 0) {
+            properties.setProperty("expires", Long.toString(first.expires));
+        }
+        properties.setProperty("count", Integer.toString(batch.size()));
+        for (int i = 0; i < batch.size(); i++) {
+            properties.setProperty("path." + i, batch.get(i).path);
+        }
+        StringWriter out = new StringWriter();
+        try {
+            properties.store(out, "repos-filehead lock batch");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return out.toString();
+    }
+
+    static List<LocalLockRecord> parseBatch(String contents) {
+        Properties properties = new Properties();
+        try {
+            properties.load(new StringReader(contents));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        String created = properties.getProperty("created");
+        String token = properties.getProperty("token");
+        String count = properties.getProperty("count");
+        if (created == null || token == null || count == null) {
+            throw new IllegalArgumentException("Not a lock batch file");
+        }
+        long expires = Long.parseLong(properties.getProperty("expires", "0"));
+        List<LocalLockRecord> batch = new ArrayList<LocalLockRecord>();
+        for (int i = 0; i < Integer.parseInt(count); i++) {
+            batch.add(new LocalLockRecord(properties.getProperty("path." + i),
+                    properties.getProperty("owner"), properties.getProperty("comment"),
+                    Long.parseLong(created), token, false, true, expires));
+        }
+        return batch;
+    }
+
+    /**
+     * Reads the contents of a lock file, in this format or the legacy one.
+     */
+    static LocalLockRecord parse(String path, String contents) {
+        Matcher legacy = LEGACY.matcher(contents);
+        if (legacy.matches()) {
+            // Legacy locks used the file contents as token.
+            return new LocalLockRecord(path, null, legacy.group(2),
+                    Long.parseLong(legacy.group(1)), contents);
+        }
+        Properties properties = new Properties();
+        try {
+            properties.load(new StringReader(contents));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        String created = properties.getProperty("created");
+        String token = properties.getProperty("token");
+        if (created == null || token == null) {
+            throw new IllegalArgumentException("Not a lock file for " + path);
+        }
+        return new LocalLockRecord(path, properties.getProperty("owner"),
+                properties.getProperty("comment"), Long.parseLong(created), token,
+                Boolean.parseBoolean(properties.getProperty("recursive")), false,
+                Long.parseLong(properties.getProperty("expires", "0")));
+    }
+
+    @Override
+    public String toString() {
+        return this.path + (this.recursive ? "/**" : "") + " locked by " + this.owner
+                + " @" + this.created;
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file mapped into memory in fixed size segments, mapped as they are first
+ * used, so the file grows a segment at a time without remapping what is
+ * already mapped. Reads and writes may span segments; the primitive getters
+ * don't allocate when the value is within one.
+ * <p>
+ * Not thread safe, callers synchronize.
+ */
+public class LocalMappedFile {
+    private final File file;
+    private final int segmentSize;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+    public LocalMappedFile(File file, int segmentSize) throws IOException {
+        this.file = file;
+        this.segmentSize = segmentSize;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = this.raf.getChannel();
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    public int getSegmentSize() {
+        return this.segmentSize;
+    }
+
+    /**
+     * @return The file length, a whole number of segments once anything is
+     *         mapped.
+     */
+    public long size() throws IOException {
+        return this.channel.size();
+    }
+
+    public void put(long position, byte[] data) throws IOException {
+        int done = 0;
+        while (done < data.length) {
+            long at = position + done;
+            ByteBuffer segment = this.getSegment(at).duplicate();
+            segment.position(this.getOffset(at));
+            int n = Math.min(data.length - done, segment.remaining());
+            segment.put(data, done, n);
+            done += n;
+        }
+    }
+
+    public void get(long position, byte[] data) throws IOException {
+        int done = 0;
+        while (done < data.length) {
+            long at = position + done;
+            ByteBuffer segment = this.getSegment(at).duplicate();
+            segment.position(this.getOffset(at));
+            int n = Math.min(data.length - done, segment.remaining());
+            segment.get(data, done, n);
+            done += n;
+        }
+    }
+
+    public byte getByte(long position) throws IOException {
+        return this.getSegment(position).get(this.getOffset(position));
+    }
+
+    public int getInt(long position) throws IOException {
+        int offset = this.getOffset(position);
+        if (offset + 4 <= this.segmentSize) {
+            return this.getSegment(position).getInt(offset);
+        }
+        byte[] bytes = new byte[4];
+        this.get(position, bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    public long getLong(long position) throws IOException {
+        int offset = this.getOffset(position);
+        if (offset + 8 <= this.segmentSize) {
+            return this.getSegment(position).getLong(offset);
+        }
+        byte[] bytes = new byte[8];
+        this.get(position, bytes);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    /**
+     * Writes the segments holding the given range to disk.
+     */
+    public void force(long from, long to) throws IOException {
+        for (long s = from / this.segmentSize; s <= (to - 1) / this.segmentSize; s++) {
+            this.getSegment(s * this.segmentSize).force();
+        }
+    }
+
+    public void close() throws IOException {
+        for (MappedByteBuffer segment : this.segments) {
+            segment.force();
+        }
+        this.segments.clear();
+        this.raf.close();
+    }
+
+    private int getOffset(long position) {
+        return (int) (position % this.segmentSize);
+    }
+
+    private MappedByteBuffer getSegment(long position) throws IOException {
+        int index = (int) (position / this.segmentSize);
+        while (this.segments.size() <= index) {
+            // Mapping past the end grows the file.
+            this.segments.add(this.channel.map(FileChannel.MapMode.READ_WRITE,
+                    (long) this.segments.size() * this.segmentSize, this.segmentSize));
+        }
+        return this.segments.get(index);
+    }
+}
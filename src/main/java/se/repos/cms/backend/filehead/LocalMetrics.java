@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+/**
+ * Where the backend reports what it does: counts of bytes and file system
+ * calls, and distributions of operation latencies and commit sizes.
+ * Implementations are called on hot paths from many threads and must not
+ * block or allocate.
+ * <p>
+ * The shared instance is a {@link LocalMetricsRegistry} unless replaced
+ * with {@link #setShared(LocalMetrics)}, for example with {@link #NONE} or
+ * an adapter to another metrics library.
+ */
+public abstract class LocalMetrics {
+    public enum Counter {
+        /**
+         * Bytes of file contents sent to receivers.
+         */
+        BYTES_READ,
+        /**
+         * Bytes of file contents that went to disk.
+         */
+        BYTES_WRITTEN,
+        /**
+         * Files read to calculate digests.
+         */
+        FILES_HASHED,
+        /**
+         * Folders listed from disk, not from the path index.
+         */
+        FOLDERS_LISTED,
+        LOCK_FILES_WRITTEN,
+        LOCK_FILES_DELETED,
+        LOCKS_TAKEN,
+        LOCKS_RELEASED,
+        COMMITS,
+        /**
+         * Asynchronous requests answered by an identical one in flight.
+         */
+        ASYNC_COALESCED,
+        /**
+         * Asynchronous requests refused because too many were queued.
+         */
+        ASYNC_REJECTED
+    }
+
+    /**
+     * Operation latencies are in nanoseconds.
+     */
+    public enum Histogram {
+        GET_ITEM,
+        GET_IMMEDIATES,
+        GET_DESCENDANTS,
+        GET_IMMEDIATES_LOCKED,
+        GET_FOLDER_SIZE,
+        GET_CONTENTS,
+        WRITE_CONTENTS,
+        HASH,
+        LOCK,
+        UNLOCK,
+        COMMIT,
+        /**
+         * The number of changes in a commit.
+         */
+        COMMIT_CHANGES,
+        /**
+         * The bytes written by a commit, received rather than what went to
+         * disk. Not recorded for commits through a journal.
+         */
+        COMMIT_BYTES,
+        /**
+         * The time asynchronous requests wait before they start.
+         */
+        ASYNC_WAIT
+    }
+
+    /**
+     * Discards everything.
+     */
+    public static final LocalMetrics NONE = new LocalMetrics() {
+        @Override
+        public void add(Counter counter, long delta) {
+        }
+
+        @Override
+        public void record(Histogram histogram, long value) {
+        }
+    };
+
+    private static volatile LocalMetrics shared = new LocalMetricsRegistry();
+
+    public static LocalMetrics getShared() {
+        return shared;
+    }
+
+    public static void setShared(LocalMetrics metrics) {
+        if (metrics == null) {
+            throw new NullPointerException();
+        }
+        shared = metrics;
+    }
+
+    public abstract void add(Counter counter, long delta);
+
+    public abstract void record(Histogram histogram, long value);
+
+    public void increment(Counter counter) {
+        this.add(counter, 1);
+    }
+
+    /**
+     * Records the time since an earlier {@link System#nanoTime()}.
+     */
+    public void recordSince(Histogram histogram, long startNanos) {
+        this.record(histogram, System.nanoTime() - startNanos);
+    }
+}
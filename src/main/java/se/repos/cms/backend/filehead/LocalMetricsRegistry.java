@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Keeps metrics in memory, counters striped and histograms log-linear, and
+ * shows them over JMX once {@link #register()}ed. Counters are attributes
+ * named like the counter, histograms have attributes for count, mean, max
+ * and percentiles, like GET_ITEM_p99.
+ */
+public class LocalMetricsRegistry extends LocalMetrics implements DynamicMBean {
+    public static final String OBJECT_NAME = "se.repos.cms.backend.filehead:type=Metrics";
+
+    private static final String[] STATISTICS = { "count", "mean", "max", "p50", "p90",
+            "p99", "p999" };
+
+    private final LocalStripedCounter[] counters;
+    private final LocalHistogram[] histograms;
+    private ObjectName registered;
+
+    public LocalMetricsRegistry() {
+        this.counters = new LocalStripedCounter[Counter.values().length];
+        for (int i = 0; i < this.counters.length; i++) {
+            this.counters[i] = new LocalStripedCounter();
+        }
+        this.histograms = new LocalHistogram[Histogram.values().length];
+        for (int i = 0; i < this.histograms.length; i++) {
+            this.histograms[i] = new LocalHistogram();
+        }
+    }
+
+    @Override
+    public void add(Counter counter, long delta) {
+        this.counters[counter.ordinal()].add(delta);
+    }
+
+    @Override
+    public void record(Histogram histogram, long value) {
+        this.histograms[histogram.ordinal()].record(value);
+    }
+
+    public long get(Counter counter) {
+        return this.counters[counter.ordinal()].get();
+    }
+
+    public LocalHistogram get(Histogram histogram) {
+        return this.histograms[histogram.ordinal()];
+    }
+
+    public void reset() {
+        for (LocalStripedCounter counter : this.counters) {
+            counter.reset();
+        }
+        for (LocalHistogram histogram : this.histograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Registers with the platform MBean server as {@link #OBJECT_NAME}.
+     *
+     * @throws IllegalStateException
+     *             If another registry is registered already.
+     */
+    public synchronized void register() {
+        if (this.registered != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            this.registered = name;
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register metrics", e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (this.registered == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(this.registered);
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to unregister metrics", e);
+        } finally {
+            this.registered = null;
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        int split = attribute.lastIndexOf('_');
+        if (split > 0) {
+            String statistic = attribute.substring(split + 1);
+            for (Histogram h : Histogram.values()) {
+                if (attribute.length() == h.name().length() + 1 + statistic.length()
+                        && attribute.startsWith(h.name())) {
+                    return getStatistic(this.get(h), statistic, attribute);
+                }
+            }
+        }
+        for (Counter c : Counter.values()) {
+            if (c.name().equals(attribute)) {
+                return this.get(c);
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    private static Object getStatistic(LocalHistogram histogram, String statistic,
+            String attribute) throws AttributeNotFoundException {
+        if ("count".equals(statistic)) {
+            return histogram.getCount();
+        } else if ("mean".equals(statistic)) {
+            return histogram.getMean();
+        } else if ("max".equals(statistic)) {
+            return histogram.getMax();
+        } else if ("p50".equals(statistic)) {
+            return histogram.getPercentile(50);
+        } else if ("p90".equals(statistic)) {
+            return histogram.getPercentile(90);
+        } else if ("p99".equals(statistic)) {
+            return histogram.getPercentile(99);
+        } else if ("p999".equals(statistic)) {
+            return histogram.getPercentile(99.9);
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            try {
+                list.add(new Attribute(name, this.getAttribute(name)));
+            } catch (AttributeNotFoundException e) {
+                // Left out, as the interface says.
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws ReflectionException {
+        if ("reset".equals(actionName)) {
+            this.reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Counter c : Counter.values()) {
+            attributes.add(new MBeanAttributeInfo(c.name(), "long", c.name(), true,
+                    false, false));
+        }
+        for (Histogram h : Histogram.values()) {
+            for (String statistic : STATISTICS) {
+                attributes.add(new MBeanAttributeInfo(h.name() + "_" + statistic,
+                        "mean".equals(statistic) ? "double" : "long", h.name() + " "
+                                + statistic, true, false, false));
+            }
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo("reset",
+                "Sets all metrics to 0", null, "void", MBeanOperationInfo.ACTION);
+        return new MBeanInfo(this.getClass().getName(), "Filehead backend metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+                new MBeanOperationInfo[] { reset }, null);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Counter c : Counter.values()) {
+            s.append(c).append('=').append(this.get(c)).append('\n');
+        }
+        for (Histogram h : Histogram.values()) {
+            s.append(h).append(' ').append(this.get(h)).append('\n');
+        }
+        return s.toString();
+    }
+}
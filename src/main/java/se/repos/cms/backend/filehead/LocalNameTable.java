@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.util.Arrays;
+
+/**
+ * Interns file names to int ids, so that a name shared by many files, like
+ * index.xml, is stored once. Ids are never reused. Not thread safe.
+ */
+public class LocalNameTable {
+    public static final int NONE = -1;
+
+    private String[] names = new String[1024];
+    private int[] slots = newSlots(2048);
+    private int count;
+
+    /**
+     * @return The id of the name, added to the table if it wasn't already
+     *         there.
+     */
+    public int intern(String name) {
+        int slot = this.findSlot(name);
+        if (this.slots[slot] != NONE) {
+            return this.slots[slot];
+        }
+        if (this.count == this.names.length) {
+            this.names = Arrays.copyOf(this.names, this.count * 2);
+        }
+        int id = this.count++;
+        this.names[id] = name;
+        this.slots[slot] = id;
+        if (this.count * 2 > this.slots.length) {
+            this.rehash();
+        }
+        return id;
+    }
+
+    /**
+     * @return The id of the name, or {@link #NONE} if it isn't in the table.
+     */
+    public int find(String name) {
+        return this.slots[this.findSlot(name)];
+    }
+
+    public String get(int id) {
+        return this.names[id];
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    private int findSlot(String name) {
+        int mask = this.slots.length - 1;
+        int slot = mix(name.hashCode()) & mask;
+        while (this.slots[slot] != NONE && !this.names[this.slots[slot]].equals(name)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        this.slots = newSlots(this.slots.length * 2);
+        int mask = this.slots.length - 1;
+        for (int id = 0; id < this.count; id++) {
+            int slot = mix(this.names[id].hashCode()) & mask;
+            while (this.slots[slot] != NONE) {
+                slot = (slot + 1) & mask;
+            }
+            this.slots[slot] = id;
+        }
+    }
+
+    private static int[] newSlots(int size) {
+        int[] slots = new int[size];
+        Arrays.fill(slots, NONE);
+        return slots;
+    }
+
+    static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
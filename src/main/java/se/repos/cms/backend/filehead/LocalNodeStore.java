@@ -0,0 +1,339 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.util.Arrays;
+
+/**
+ * A file tree held in primitive arrays, for repositories too large to keep an
+ * object per file. Every node is an int index into parallel arrays of
+ * interned name, parent, first child and next and previous sibling links,
+ * size and modification time, about 60 bytes per node including the child
+ * lookup table. Children are iterated with {@link #getFirstChild(int)} and
+ * {@link #getNextSibling(int)} without allocating, and items or ids are
+ * created from nodes only when needed.
+ * <p>
+ * Not thread safe, readers and writers must be synchronized by the caller.
+ */
+public class LocalNodeStore {
+    public static final int NONE = -1;
+
+    /**
+     * Stored as the size of folders.
+     */
+    private static final long FOLDER = -1L;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final LocalNameTable names;
+    private int[] nameIds = new int[INITIAL_CAPACITY];
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private int[] firstChildren = new int[INITIAL_CAPACITY];
+    private int[] nextSiblings = new int[INITIAL_CAPACITY];
+    private int[] previousSiblings = new int[INITIAL_CAPACITY];
+    private long[] sizes = new long[INITIAL_CAPACITY];
+    private long[] lastModified = new long[INITIAL_CAPACITY];
+    private int allocated;
+    private int live;
+    /**
+     * Freed nodes, linked through nextSiblings.
+     */
+    private int free = NONE;
+
+    /**
+     * Open addressing table from parent and name id to child node.
+     */
+    private long[] childKeys;
+    private int[] childNodes;
+    private int childCount;
+
+    private final int root;
+
+    /**
+     * Creates a store holding only a root folder.
+     */
+    public LocalNodeStore(String rootName, long rootLastModified) {
+        this(new LocalNameTable(), rootName, rootLastModified);
+    }
+
+    /**
+     * Creates a store that shares its names with another, so that rebuilding
+     * a store doesn't duplicate them.
+     */
+    public LocalNodeStore(LocalNameTable names, String rootName, long rootLastModified) {
+        this.names = names;
+        this.newChildTable(INITIAL_CAPACITY * 2);
+        this.root = this.allocate(NONE, names.intern(rootName), FOLDER, rootLastModified);
+    }
+
+    public LocalNameTable getNames() {
+        return this.names;
+    }
+
+    public int getRoot() {
+        return this.root;
+    }
+
+    /**
+     * @return The number of nodes, including the root.
+     */
+    public int size() {
+        return this.live;
+    }
+
+    /**
+     * Adds a child, replacing any existing child with the same name and
+     * everything below it.
+     *
+     * @return The new node.
+     */
+    public int add(int parent, String name, boolean folder, long size, long modified) {
+        if (!this.isFolder(parent)) {
+            throw new IllegalArgumentException("Not a folder: " + this.getName(parent));
+        }
+        int nameId = this.names.intern(name);
+        int existing = this.findChild(parent, nameId);
+        if (existing != NONE) {
+            this.remove(existing);
+        }
+        int node = this.allocate(parent, nameId, folder ? FOLDER : size, modified);
+        int first = this.firstChildren[parent];
+        this.nextSiblings[node] = first;
+        if (first != NONE) {
+            this.previousSiblings[first] = node;
+        }
+        this.firstChildren[parent] = node;
+        this.putChild(parent, nameId, node);
+        return node;
+    }
+
+    /**
+     * @return The child with the given name, or {@link #NONE}.
+     */
+    public int find(int parent, String name) {
+        int nameId = this.names.find(name);
+        if (nameId == NONE) {
+            return NONE;
+        }
+        return this.findChild(parent, nameId);
+    }
+
+    /**
+     * Removes a node and everything below it. The node ids may be reused by
+     * later additions.
+     */
+    public void remove(int node) {
+        if (node == this.root) {
+            throw new IllegalArgumentException("Can't remove the root");
+        }
+        int parent = this.parents[node];
+        int previous = this.previousSiblings[node];
+        int next = this.nextSiblings[node];
+        if (previous == NONE) {
+            this.firstChildren[parent] = next;
+        } else {
+            this.nextSiblings[previous] = next;
+        }
+        if (next != NONE) {
+            this.previousSiblings[next] = previous;
+        }
+        this.removeChild(parent, this.nameIds[node]);
+        // Free the subtree depth first, using the freed nodes' own links as
+        // the stack.
+        int stack = node;
+        this.nextSiblings[node] = NONE;
+        while (stack != NONE) {
+            int current = stack;
+            stack = this.nextSiblings[current];
+            for (int child = this.firstChildren[current]; child != NONE;) {
+                int following = this.nextSiblings[child];
+                this.removeChild(current, this.nameIds[child]);
+                this.nextSiblings[child] = stack;
+                stack = child;
+                child = following;
+            }
+            this.release(current);
+        }
+    }
+
+    /**
+     * Updates the size and modification time of a node.
+     */
+    public void setAttributes(int node, long size, long modified) {
+        if (!this.isFolder(node)) {
+            this.sizes[node] = size;
+        }
+        this.lastModified[node] = modified;
+    }
+
+    public int getParent(int node) {
+        return this.parents[node];
+    }
+
+    public int getFirstChild(int node) {
+        return this.firstChildren[node];
+    }
+
+    public int getNextSibling(int node) {
+        return this.nextSiblings[node];
+    }
+
+    public int getNameId(int node) {
+        return this.nameIds[node];
+    }
+
+    public String getName(int node) {
+        return this.names.get(this.nameIds[node]);
+    }
+
+    public boolean isFolder(int node) {
+        return this.sizes[node] == FOLDER;
+    }
+
+    /**
+     * @return The size of a file, 0 for folders.
+     */
+    public long getSize(int node) {
+        return this.isFolder(node) ? 0L : this.sizes[node];
+    }
+
+    public long getLastModified(int node) {
+        return this.lastModified[node];
+    }
+
+    public LocalIndexEntry getEntry(int node) {
+        return new LocalIndexEntry(this.getName(node), this.isFolder(node),
+                this.getSize(node), this.lastModified[node]);
+    }
+
+    /**
+     * @return The names from the root down to the node, joined with slashes
+     *         and not including the root's name.
+     */
+    public String getPath(int node) {
+        int depth = 0;
+        for (int n = node; n != this.root; n = this.parents[n]) {
+            depth++;
+        }
+        String[] segments = new String[depth];
+        for (int n = node; n != this.root; n = this.parents[n]) {
+            segments[--depth] = this.getName(n);
+        }
+        StringBuilder path = new StringBuilder();
+        for (String segment : segments) {
+            path.append('/').append(segment);
+        }
+        return path.toString();
+    }
+
+    private int allocate(int parent, int nameId, long size, long modified) {
+        int node;
+        if (this.free != NONE) {
+            node = this.free;
+            this.free = this.nextSiblings[node];
+        } else {
+            if (this.allocated == this.nameIds.length) {
+                this.grow();
+            }
+            node = this.allocated++;
+        }
+        this.nameIds[node] = nameId;
+        this.parents[node] = parent;
+        this.firstChildren[node] = NONE;
+        this.nextSiblings[node] = NONE;
+        this.previousSiblings[node] = NONE;
+        this.sizes[node] = size;
+        this.lastModified[node] = modified;
+        this.live++;
+        return node;
+    }
+
+    private void release(int node) {
+        this.parents[node] = NONE;
+        this.firstChildren[node] = NONE;
+        this.previousSiblings[node] = NONE;
+        this.nextSiblings[node] = this.free;
+        this.free = node;
+        this.live--;
+    }
+
+    private void grow() {
+        int capacity = this.nameIds.length + (this.nameIds.length >> 1);
+        this.nameIds = Arrays.copyOf(this.nameIds, capacity);
+        this.parents = Arrays.copyOf(this.parents, capacity);
+        this.firstChildren = Arrays.copyOf(this.firstChildren, capacity);
+        this.nextSiblings = Arrays.copyOf(this.nextSiblings, capacity);
+        this.previousSiblings = Arrays.copyOf(this.previousSiblings, capacity);
+        this.sizes = Arrays.copyOf(this.sizes, capacity);
+        this.lastModified = Arrays.copyOf(this.lastModified, capacity);
+    }
+
+    private static long childKey(int parent, int nameId) {
+        return ((long) parent << 32) | (nameId & 0xFFFFFFFFL);
+    }
+
+    private int childSlot(long key) {
+        int mask = this.childKeys.length - 1;
+        int slot = LocalNameTable.mix((int) (key ^ (key >>> 32))) & mask;
+        while (this.childNodes[slot] != NONE && this.childKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int findChild(int parent, int nameId) {
+        return this.childNodes[this.childSlot(childKey(parent, nameId))];
+    }
+
+    private void putChild(int parent, int nameId, int node) {
+        long key = childKey(parent, nameId);
+        int slot = this.childSlot(key);
+        if (this.childNodes[slot] == NONE) {
+            this.childCount++;
+        }
+        this.childKeys[slot] = key;
+        this.childNodes[slot] = node;
+        if (this.childCount * 2 > this.childKeys.length) {
+            long[] keys = this.childKeys;
+            int[] nodes = this.childNodes;
+            this.newChildTable(keys.length * 2);
+            for (int i = 0; i < keys.length; i++) {
+                if (nodes[i] != NONE) {
+                    int s = this.childSlot(keys[i]);
+                    this.childKeys[s] = keys[i];
+                    this.childNodes[s] = nodes[i];
+                }
+            }
+        }
+    }
+
+    private void removeChild(int parent, int nameId) {
+        int slot = this.childSlot(childKey(parent, nameId));
+        if (this.childNodes[slot] == NONE) {
+            return;
+        }
+        this.childNodes[slot] = NONE;
+        this.childCount--;
+        // Shift back entries that probed past the freed slot.
+        int mask = this.childKeys.length - 1;
+        int hole = slot;
+        for (int s = (slot + 1) & mask; this.childNodes[s] != NONE; s = (s + 1) & mask) {
+            long key = this.childKeys[s];
+            int home = LocalNameTable.mix((int) (key ^ (key >>> 32))) & mask;
+            boolean movable = hole <= s ? (home <= hole || home > s)
+                    : (home <= hole && home > s);
+            if (movable) {
+                this.childKeys[hole] = key;
+                this.childNodes[hole] = this.childNodes[s];
+                this.childNodes[s] = NONE;
+                hole = s;
+            }
+        }
+    }
+
+    private void newChildTable(int size) {
+        this.childKeys = new long[size];
+        this.childNodes = new int[size];
+        Arrays.fill(this.childNodes, NONE);
+    }
+}
@@ -0,0 +1,525 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps the names, kinds, sizes and modification times of everything below a
+ * root folder in memory, so that lookups don't touch the disk. The tree is
+ * scanned once at {@link #start()} and then kept current by a
+ * {@link WatchService} and by {@link #refresh(Path)} calls from the write
+ * paths. If the watch service loses events, or applying them fails, the
+ * whole tree is rescanned. If that fails too the index is no longer used.
+ * <p>
+ * The tree is held in a {@link LocalNodeStore}, so large repositories cost a
+ * few tens of bytes per path.
+ */
+public class LocalPathIndex implements Closeable {
+    private final Path root;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<WatchKey, Path> watched = new ConcurrentHashMap<WatchKey, Path>();
+    private final AtomicLong eventCount = new AtomicLong();
+    private final AtomicLong rescanCount = new AtomicLong();
+    private LocalNodeStore store;
+    private WatchService watcher;
+    private Thread watcherThread;
+    private volatile boolean stale;
+
+    public LocalPathIndex(File root) {
+        this.root = root.toPath().toAbsolutePath().normalize();
+    }
+
+    public Path getRoot() {
+        return this.root;
+    }
+
+    /**
+     * Scans the tree and starts watching it for changes.
+     */
+    public synchronized void start() throws IOException {
+        if (this.watcher != null) {
+            throw new IllegalStateException("Index already started for " + this.root);
+        }
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.rescan();
+        this.watcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                LocalPathIndex.this.watch();
+            }
+        }, "filehead-index " + this.root);
+        this.watcherThread.setDaemon(true);
+        this.watcherThread.start();
+    }
+
+    /**
+     * Stops watching for changes. The index must not be used afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.watcher != null) {
+            this.watcher.close();
+            this.watcherThread.interrupt();
+        }
+    }
+
+    /**
+     * @return True if the path is in the indexed tree, whether it exists or
+     *         not, and the index can be used for it.
+     */
+    public boolean covers(Path path) {
+        return !this.stale && path.toAbsolutePath().normalize().startsWith(this.root);
+    }
+
+    /**
+     * @return True if the index may have missed changes, because keeping it
+     *         current failed. It is not used until it has been rescanned.
+     */
+    public boolean isStale() {
+        return this.stale;
+    }
+
+    /**
+     * @return The indexed attributes of the given path, or null if it does
+     *         not exist.
+     */
+    public LocalIndexEntry get(Path path) {
+        this.lock.readLock().lock();
+        try {
+            int node = this.find(path);
+            return node == LocalNodeStore.NONE ? null : this.store.getEntry(node);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The entries in the given folder, or null if it is not an
+     *         existing folder.
+     */
+    public List<LocalIndexEntry> getChildren(Path folder) {
+        this.lock.readLock().lock();
+        try {
+            int node = this.find(folder);
+            if (node == LocalNodeStore.NONE || !this.store.isFolder(node)) {
+                return null;
+            }
+            List<LocalIndexEntry> children = new ArrayList<LocalIndexEntry>();
+            for (int child = this.store.getFirstChild(node); child != LocalNodeStore.NONE;
+                    child = this.store.getNextSibling(child)) {
+                children.add(this.store.getEntry(child));
+            }
+            return children;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the given path from disk again, including everything below it if
+     * it is a folder. Called by writers so that the index is current before
+     * the watch service catches up.
+     */
+    public void refresh(Path path) {
+        if (this.stale) {
+            return;
+        }
+        Path absolute = path.toAbsolutePath().normalize();
+        if (!absolute.startsWith(this.root)) {
+            return;
+        }
+        if (absolute.equals(this.root)) {
+            this.rescan();
+            return;
+        }
+        if (LocalLockManager.isLockFile(absolute)) {
+            return;
+        }
+        BasicFileAttributes attrs;
+        LocalNodeStore scanned = null;
+        try {
+            attrs = Files.readAttributes(absolute, BasicFileAttributes.class);
+            if (attrs.isDirectory()) {
+                // Read outside the lock, into a store of its own.
+                scanned = new LocalNodeStore(getName(absolute), attrs.lastModifiedTime()
+                        .toMillis());
+                this.scan(absolute, scanned);
+            }
+        } catch (NoSuchFileException e) {
+            attrs = null;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to index " + absolute, e);
+        }
+        boolean parentMissing;
+        this.lock.writeLock().lock();
+        try {
+            int parent = this.find(absolute.getParent());
+            parentMissing = parent == LocalNodeStore.NONE || !this.store.isFolder(parent);
+            if (!parentMissing) {
+                String name = getName(absolute);
+                if (attrs == null) {
+                    int existing = this.store.find(parent, name);
+                    if (existing != LocalNodeStore.NONE) {
+                        this.store.remove(existing);
+                    }
+                } else {
+                    int node = this.store.add(parent, name, attrs.isDirectory(),
+                            attrs.size(), attrs.lastModifiedTime().toMillis());
+                    if (scanned != null) {
+                        copy(scanned, scanned.getRoot(), this.store, node);
+                    }
+                }
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        if (parentMissing && attrs != null) {
+            // Created together with its folder, which we haven't seen yet.
+            this.refresh(absolute.getParent());
+        } else {
+            this.refreshAttributes(absolute.getParent());
+        }
+    }
+
+    /**
+     * Throws away the index and scans the whole tree again.
+     */
+    public void rescan() {
+        LocalNodeStore rescanned;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(this.root,
+                    BasicFileAttributes.class);
+            // A new name table too, so that names of removed files are dropped.
+            rescanned = new LocalNodeStore(getName(this.root), attrs.lastModifiedTime()
+                    .toMillis());
+            this.scan(this.root, rescanned);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to index " + this.root, e);
+        }
+        this.lock.writeLock().lock();
+        try {
+            this.store = rescanned;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        this.rescanCount.incrementAndGet();
+    }
+
+    /**
+     * Compares the index with the disk.
+     *
+     * @return A description of every difference found, empty if the index is
+     *         consistent.
+     */
+    public List<String> verify() throws IOException {
+        final List<String> problems = new ArrayList<String>();
+        final Set<Path> seen = new HashSet<Path>();
+        Files.walkFileTree(this.root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,
+                    BasicFileAttributes attrs) {
+                this.check(dir, attrs);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                this.check(file, attrs);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+
+            private void check(Path path, BasicFileAttributes attrs) {
+                seen.add(path);
+                LocalIndexEntry indexed = LocalPathIndex.this.get(path);
+                LocalIndexEntry actual = new LocalIndexEntry(getName(path), attrs);
+                if (indexed == null) {
+                    problems.add("Not indexed: " + path);
+                } else if (!indexed.isSame(actual)) {
+                    problems.add("Changed: " + path + " indexed " + indexed + " actual "
+                            + actual);
+                }
+            }
+        });
+        this.lock.readLock().lock();
+        try {
+            Deque<Integer> folders = new ArrayDeque<Integer>();
+            folders.push(this.store.getRoot());
+            while (!folders.isEmpty()) {
+                int folder = folders.pop();
+                for (int child = this.store.getFirstChild(folder);
+                        child != LocalNodeStore.NONE;
+                        child = this.store.getNextSibling(child)) {
+                    Path path = this.resolve(child);
+                    if (!seen.contains(path)) {
+                        problems.add("Indexed but missing: " + path);
+                    } else if (this.store.isFolder(child)) {
+                        folders.push(child);
+                    }
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return problems;
+    }
+
+    public long getEventCount() {
+        return this.eventCount.get();
+    }
+
+    /**
+     * @return How many times the whole tree was scanned, including the
+     *         initial scan.
+     */
+    public long getRescanCount() {
+        return this.rescanCount.get();
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = this.watcher.take();
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            try {
+                this.process(key);
+            } catch (RuntimeException e) {
+                if (!this.recover()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void process(WatchKey key) {
+        Path folder = this.watched.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            this.eventCount.incrementAndGet();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else if (folder != null && !overflow) {
+                Path changed = folder.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY
+                        && Files.isDirectory(changed)) {
+                    // A folder's contents have their own watch.
+                    this.refreshAttributes(changed);
+                } else {
+                    this.refresh(changed);
+                }
+            }
+        }
+        if (!key.reset()) {
+            this.watched.remove(key);
+            if (folder != null) {
+                this.refresh(folder);
+            }
+        }
+        if (overflow) {
+            this.rescan();
+        }
+    }
+
+    /**
+     * Called when applying events failed, so the index may have missed
+     * changes. Lookups read the disk until the tree has been scanned again.
+     *
+     * @return False if the scan failed too, and the index is no longer used.
+     */
+    private boolean recover() {
+        this.stale = true;
+        try {
+            this.rescan();
+        } catch (RuntimeException e) {
+            try {
+                this.watcher.close();
+            } catch (IOException closing) {
+                // Not watching anyway.
+            }
+            return false;
+        }
+        this.stale = false;
+        return true;
+    }
+
+    /**
+     * Updates the attributes of a single entry without rescanning its
+     * contents.
+     */
+    private void refreshAttributes(Path path) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return;
+        }
+        this.lock.writeLock().lock();
+        try {
+            int node = this.find(path);
+            if (node != LocalNodeStore.NONE) {
+                this.store.setAttributes(node, attrs.size(), attrs.lastModifiedTime()
+                        .toMillis());
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads everything in a folder into a store, registering watches for the
+     * folders before they are listed.
+     * 
+     * @param store
+     *            Has the folder as its root.
+     */
+    private void scan(final Path folder, final LocalNodeStore store) throws IOException {
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            private int[] folders = new int[16];
+            private int depth = 0;
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                    throws IOException {
+                LocalPathIndex.this.register(dir);
+                int node = this.depth == 0 ? store.getRoot() : store.add(
+                        this.folders[this.depth - 1], getName(dir), true, attrs.size(),
+                        attrs.lastModifiedTime().toMillis());
+                if (this.depth == this.folders.length) {
+                    this.folders = Arrays.copyOf(this.folders, this.depth * 2);
+                }
+                this.folders[this.depth++] = node;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                // At depth 0 the folder was replaced by a file, the watch will
+                // tell us.
+                if (this.depth == 0 || LocalLockManager.isLockFile(file)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                store.add(this.folders[this.depth - 1], getName(file), false,
+                        attrs.size(), attrs.lastModifiedTime().toMillis());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e)
+                    throws IOException {
+                if (file.equals(folder)) {
+                    throw e;
+                }
+                // Removed while we were scanning, the watch will tell us.
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                this.depth--;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Adds everything below a node of one store below a node of another.
+     */
+    private static void copy(LocalNodeStore from, int fromFolder, LocalNodeStore to,
+            int toFolder) {
+        Deque<int[]> folders = new ArrayDeque<int[]>();
+        folders.push(new int[] { fromFolder, toFolder });
+        while (!folders.isEmpty()) {
+            int[] folder = folders.pop();
+            for (int child = from.getFirstChild(folder[0]); child != LocalNodeStore.NONE;
+                    child = from.getNextSibling(child)) {
+                int added = to.add(folder[1], from.getName(child), from.isFolder(child),
+                        from.getSize(child), from.getLastModified(child));
+                if (from.isFolder(child)) {
+                    folders.push(new int[] { child, added });
+                }
+            }
+        }
+    }
+
+    private void register(Path folder) throws IOException {
+        if (this.watcher != null) {
+            WatchKey key = folder.register(this.watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            this.watched.put(key, folder);
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     * 
+     * @return The node for the path, or {@link LocalNodeStore#NONE}.
+     */
+    private int find(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        if (!absolute.startsWith(this.root) || this.store == null) {
+            return LocalNodeStore.NONE;
+        }
+        int node = this.store.getRoot();
+        for (Path name : this.root.relativize(absolute)) {
+            if (name.toString().isEmpty()) {
+                continue;
+            }
+            node = this.store.find(node, name.toString());
+            if (node == LocalNodeStore.NONE) {
+                return LocalNodeStore.NONE;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private Path resolve(int node) {
+        return this.root.resolve(this.store.getPath(node).substring(1));
+    }
+
+    private static String getName(Path path) {
+        Path name = path.getFileName();
+        return name == null ? "" : name.toString();
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import se.simonsoft.cms.item.RepoRevision;
+
+/**
+ * One commit as recorded in a {@link LocalRevisionLog}.
+ */
+public class LocalRevisionEntry {
+    private final long number;
+    private final long timestamp;
+    private final String author;
+    private final Map<String, LocalRevisionLog.Action> changes;
+
+    public LocalRevisionEntry(long number, long timestamp, String author,
+            Map<String, LocalRevisionLog.Action> changes) {
+        this.number = number;
+        this.timestamp = timestamp;
+        this.author = author;
+        this.changes = Collections.unmodifiableMap(changes);
+    }
+
+    public RepoRevision getRevision() {
+        return new RepoRevision(this.number, new Date(this.timestamp));
+    }
+
+    public long getNumber() {
+        return this.number;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public String getAuthor() {
+        return this.author;
+    }
+
+    /**
+     * @return The changed paths in the order they were changed.
+     */
+    public Map<String, LocalRevisionLog.Action> getChanges() {
+        return this.changes;
+    }
+
+    @Override
+    public String toString() {
+        return "r" + this.number + " " + this.author + " " + this.changes;
+    }
+}
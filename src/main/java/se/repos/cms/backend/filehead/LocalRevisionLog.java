@@ -0,0 +1,432 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import se.simonsoft.cms.item.CmsRepository;
+import se.simonsoft.cms.item.RepoRevision;
+import se.simonsoft.cms.item.commit.CmsPatchItem;
+import se.simonsoft.cms.item.commit.FileAdd;
+import se.simonsoft.cms.item.commit.FileDelete;
+import se.simonsoft.cms.item.commit.FileModification;
+import se.simonsoft.cms.item.commit.FolderAdd;
+import se.simonsoft.cms.item.commit.FolderDelete;
+
+/**
+ * Numbers commits and records what they changed, in a memory mapped file
+ * that is only ever appended to. Revisions are numbered from 1. The last
+ * changed revision of every path, and the author and time of every revision,
+ * are kept in memory, so items can report them without reading the log;
+ * {@link #getChangesSince(long)} reads only the records after the given
+ * revision.
+ * <p>
+ * Each record is written before its length, and has a CRC, so a record torn
+ * by a crash is ignored when the log is opened and then overwritten.
+ */
+public class LocalRevisionLog {
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentMap<String, LocalRevisionLog> logs =
+            new ConcurrentHashMap<String, LocalRevisionLog>();
+
+    public enum Action {
+        ADD('A'), MODIFY('M'), DELETE('D');
+
+        private final byte code;
+
+        private Action(char code) {
+            this.code = (byte) code;
+        }
+
+        /**
+         * @return How a change to a path is recorded.
+         */
+        public static Action of(CmsPatchItem change) {
+            if (change instanceof FileAdd || change instanceof FolderAdd) {
+                return ADD;
+            }
+            if (change instanceof FileModification) {
+                return MODIFY;
+            }
+            if (change instanceof FileDelete || change instanceof FolderDelete) {
+                return DELETE;
+            }
+            throw new UnsupportedOperationException("No revision log action for "
+                    + change.getClass().getSimpleName());
+        }
+
+        private static Action of(byte code) {
+            for (Action action : values()) {
+                if (action.code == code) {
+                    return action;
+                }
+            }
+            throw new IllegalArgumentException("Unknown revision log action " + code);
+        }
+    }
+
+    private final File file;
+    private final LocalSyncPolicy syncPolicy;
+    private final LocalMappedFile mapped;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Where the next record goes.
+     */
+    private long end;
+    /**
+     * Record offsets, timestamps and authors by revision number - 1.
+     */
+    private long[] offsets = new long[1024];
+    private long[] timestamps = new long[1024];
+    private String[] authors = new String[1024];
+    private int head;
+    private final Map<String, String> authorNames = new HashMap<String, String>();
+    /**
+     * Sorted, so that the paths below a deleted folder are a range.
+     */
+    private final TreeMap<String, Long> lastChanged = new TreeMap<String, Long>();
+
+    public LocalRevisionLog(File file) {
+        this(file, DEFAULT_SEGMENT_SIZE, LocalSyncPolicy.PER_FILE);
+    }
+
+    /**
+     * Opens a log, creating it if needed.
+     *
+     * @param segmentSize
+     *            The size of each mapping, the file grows by this much at a
+     *            time.
+     * @param syncPolicy
+     *            Anything but {@link LocalSyncPolicy#NONE} forces each record
+     *            to disk before its revision is returned.
+     */
+    public LocalRevisionLog(File file, int segmentSize, LocalSyncPolicy syncPolicy) {
+        this.file = file;
+        this.syncPolicy = syncPolicy;
+        try {
+            this.mapped = new LocalMappedFile(file, segmentSize);
+            this.load();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open revision log " + file, e);
+        }
+    }
+
+    /**
+     * Makes commits in a repository record revisions, and its items report
+     * them.
+     */
+    public static void enable(CmsRepository repository, LocalRevisionLog log) {
+        logs.put(repository.getUrl(), log);
+    }
+
+    public static void disable(CmsRepository repository) {
+        logs.remove(repository.getUrl());
+    }
+
+    /**
+     * @return The log for a repository, or null if it doesn't keep one.
+     */
+    public static LocalRevisionLog get(CmsRepository repository) {
+        return logs.get(repository.getUrl());
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Records a commit as the next revision.
+     *
+     * @param changes
+     *            Paths and what was done to them, in order.
+     * @return The new revision.
+     */
+    public RepoRevision append(String author, Map<String, Action> changes) {
+        if (author == null) {
+            author = "";
+        }
+        this.lock.writeLock().lock();
+        try {
+            long number = this.head + 1;
+            long timestamp = System.currentTimeMillis();
+            byte[] record = format(number, timestamp, author, changes);
+            this.mapped.put(this.end + 4, record);
+            if (this.syncPolicy != LocalSyncPolicy.NONE) {
+                this.mapped.force(this.end, this.end + 4 + record.length);
+            }
+            // The length makes the record valid.
+            this.mapped.put(this.end, ByteBuffer.allocate(4).putInt(record.length)
+                    .array());
+            if (this.syncPolicy != LocalSyncPolicy.NONE) {
+                this.mapped.force(this.end, this.end + 4);
+            }
+            this.index(this.end, number, timestamp, author, changes);
+            this.end += 4 + record.length;
+            return new RepoRevision(number, new Date(timestamp));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to append to revision log " + this.file,
+                    e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return The latest revision, or null if nothing is recorded.
+     */
+    public RepoRevision getHead() {
+        this.lock.readLock().lock();
+        try {
+            return this.head == 0 ? null : this.getRevision(this.head);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The revision that last changed a path, or null if it hasn't
+     *         changed since the log was started.
+     */
+    public RepoRevision getLastChanged(String path) {
+        this.lock.readLock().lock();
+        try {
+            Long number = this.lastChanged.get(path);
+            return number == null ? null : this.getRevision(number);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The author of a revision.
+     */
+    public String getAuthor(long number) {
+        this.lock.readLock().lock();
+        try {
+            this.checkRevision(number);
+            return this.authors[(int) number - 1];
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The revisions after the given one, oldest first. 0 gives all.
+     */
+    public List<LocalRevisionEntry> getChangesSince(long number) {
+        List<LocalRevisionEntry> entries = new ArrayList<LocalRevisionEntry>();
+        this.lock.readLock().lock();
+        try {
+            for (long r = Math.max(number, 0) + 1; r <= this.head; r++) {
+                entries.add(this.read(this.offsets[(int) r - 1]));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read revision log " + this.file, e);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return entries;
+    }
+
+    /**
+     * @return What happened to each path after the given revision, with
+     *         changes to the same path combined: an add followed by a delete
+     *         cancels out, a delete followed by an add is a modification.
+     */
+    public Map<String, Action> getChangedPathsSince(long number) {
+        Map<String, Action> combined = new LinkedHashMap<String, Action>();
+        for (LocalRevisionEntry entry : this.getChangesSince(number)) {
+            for (Map.Entry<String, Action> change : entry.getChanges().entrySet()) {
+                combine(combined, change.getKey(), change.getValue());
+            }
+        }
+        return combined;
+    }
+
+    /**
+     * Adds a change to a path, combined with any earlier change to it, see
+     * {@link #getChangedPathsSince(long)}. The path moves to the end.
+     */
+    public static void combine(Map<String, Action> changes, String path, Action action) {
+        Action previous = changes.remove(path);
+        if (previous == Action.ADD && action == Action.DELETE) {
+            return;
+        }
+        if (previous == Action.ADD) {
+            action = Action.ADD;
+        } else if (previous == Action.DELETE && action == Action.ADD) {
+            action = Action.MODIFY;
+        }
+        changes.put(path, action);
+    }
+
+    public void close() {
+        this.lock.writeLock().lock();
+        try {
+            this.mapped.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close revision log " + this.file, e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private RepoRevision getRevision(long number) {
+        return new RepoRevision(number, new Date(this.timestamps[(int) number - 1]));
+    }
+
+    private void checkRevision(long number) {
+        if (number < 1 || number > this.head) {
+            throw new IllegalArgumentException("No revision " + number + " in "
+                    + this.file);
+        }
+    }
+
+    /**
+     * Reads the records up to the first incomplete one.
+     */
+    private void load() throws IOException {
+        long size = this.mapped.size();
+        long position = 0;
+        CRC32 crc = new CRC32();
+        while (position + 4 <= size) {
+            int length = this.mapped.getInt(position);
+            if (length <= 4 || position + 4 + length > size) {
+                break;
+            }
+            byte[] record = new byte[length];
+            this.mapped.get(position + 4, record);
+            crc.reset();
+            crc.update(record, 0, length - 4);
+            if ((int) crc.getValue() != ByteBuffer.wrap(record, length - 4, 4).getInt()) {
+                break;
+            }
+            LocalRevisionEntry entry = parse(record);
+            if (entry.getNumber() != this.head + 1) {
+                break;
+            }
+            this.index(position, entry.getNumber(), entry.getTimestamp(),
+                    entry.getAuthor(), entry.getChanges());
+            position += 4 + length;
+        }
+        this.end = position;
+        if (position < size) {
+            // Clears what a crash left, so it can't be taken for a record.
+            this.mapped.put(position, new byte[(int) Math.min(size - position, 4)]);
+        }
+    }
+
+    private void index(long offset, long number, long timestamp, String author,
+            Map<String, Action> changes) {
+        int i = (int) number - 1;
+        if (i == this.offsets.length) {
+            this.offsets = Arrays.copyOf(this.offsets, i * 2);
+            this.timestamps = Arrays.copyOf(this.timestamps, i * 2);
+            this.authors = Arrays.copyOf(this.authors, i * 2);
+        }
+        this.offsets[i] = offset;
+        this.timestamps[i] = timestamp;
+        String name = this.authorNames.get(author);
+        if (name == null) {
+            name = author;
+            this.authorNames.put(name, name);
+        }
+        this.authors[i] = name;
+        this.head = (int) number;
+        for (Map.Entry<String, Action> change : changes.entrySet()) {
+            String path = change.getKey();
+            if (change.getValue() == Action.DELETE) {
+                this.lastChanged.remove(path);
+                Iterator<String> below = this.lastChanged.subMap(path + "/", path + "0")
+                        .keySet().iterator();
+                while (below.hasNext()) {
+                    below.next();
+                    below.remove();
+                }
+            } else {
+                this.lastChanged.put(path, number);
+            }
+            if (change.getValue() != Action.MODIFY) {
+                // Adding or deleting changes the folder.
+                int slash = path.lastIndexOf('/');
+                if (slash > 0) {
+                    this.lastChanged.put(path.substring(0, slash), number);
+                }
+            }
+        }
+    }
+
+    private LocalRevisionEntry read(long offset) throws IOException {
+        byte[] record = new byte[this.mapped.getInt(offset)];
+        this.mapped.get(offset + 4, record);
+        return parse(record);
+    }
+
+    private static byte[] format(long number, long timestamp, String author,
+            Map<String, Action> changes) {
+        byte[] authorBytes = author.getBytes(UTF8);
+        List<byte[]> paths = new ArrayList<byte[]>(changes.size());
+        int length = 8 + 8 + 4 + authorBytes.length + 4 + 4;
+        for (String path : changes.keySet()) {
+            byte[] bytes = path.getBytes(UTF8);
+            paths.add(bytes);
+            length += 1 + 4 + bytes.length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putLong(number);
+        record.putLong(timestamp);
+        record.putInt(authorBytes.length);
+        record.put(authorBytes);
+        record.putInt(changes.size());
+        int i = 0;
+        for (Action action : changes.values()) {
+            byte[] path = paths.get(i++);
+            record.put(action.code);
+            record.putInt(path.length);
+            record.put(path);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, length - 4);
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+
+    private static LocalRevisionEntry parse(byte[] bytes) {
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        long number = record.getLong();
+        long timestamp = record.getLong();
+        byte[] author = new byte[record.getInt()];
+        record.get(author);
+        int count = record.getInt();
+        Map<String, Action> changes = new LinkedHashMap<String, Action>();
+        for (int i = 0; i < count; i++) {
+            Action action = Action.of(record.get());
+            byte[] path = new byte[record.getInt()];
+            record.get(path);
+            changes.put(new String(path, UTF8), action);
+        }
+        return new LocalRevisionEntry(number, timestamp, new String(author, UTF8),
+                changes);
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+/**
+ * A path found by a {@link LocalSearchIndex}, with its attributes as
+ * indexed.
+ */
+public class LocalSearchHit {
+    private final String path;
+    private final LocalIndexEntry entry;
+    private final String md5;
+
+    public LocalSearchHit(String path, LocalIndexEntry entry, String md5) {
+        this.path = path;
+        this.entry = entry;
+        this.md5 = md5;
+    }
+
+    /**
+     * @return The absolute path, like
+     *         {@link se.simonsoft.cms.item.CmsItemPath#getPath()}.
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    public LocalIndexEntry getEntry() {
+        return this.entry;
+    }
+
+    /**
+     * @return The checksum if it was known when the file was indexed,
+     *         otherwise null.
+     */
+    public String getMd5() {
+        return this.md5;
+    }
+
+    @Override
+    public String toString() {
+        return this.path + " " + this.entry + (this.md5 == null ? "" : " " + this.md5);
+    }
+}
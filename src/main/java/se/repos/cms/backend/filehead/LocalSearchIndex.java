@@ -0,0 +1,617 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import se.simonsoft.cms.item.Checksum;
+import se.simonsoft.cms.item.CmsRepository;
+
+/**
+ * The kind, size, modification time and, when the checksum cache knows it,
+ * MD5 of every path below a root folder, kept in a memory mapped file that
+ * survives restarts. Searches read the mapped records and never touch the
+ * tree.
+ * <p>
+ * The file is a log of records that are only ever appended, each written
+ * before its length and with a CRC like in {@link LocalRevisionLog}. Only a
+ * sorted map from path to record offset is held on the heap. The log is
+ * compacted when it is mostly superseded records.
+ * <p>
+ * Commits keep the index current with {@link #refresh(File)}. Changes made
+ * while the index wasn't open are picked up by {@link #update()}, which
+ * walks the tree and writes only what differs, or, for repositories that
+ * keep a {@link LocalRevisionLog}, by {@link #update(LocalRevisionLog)},
+ * which only looks at the paths changed since the revision the index last
+ * saw.
+ */
+public class LocalSearchIndex {
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentMap<String, LocalSearchIndex> indexes =
+            new ConcurrentHashMap<String, LocalSearchIndex>();
+
+    private static final byte UPSERT = 'U';
+    private static final byte REMOVE = 'R';
+    private static final byte REVISION = 'V';
+    private static final byte FILE = 'F';
+    private static final byte FOLDER = 'D';
+    /**
+     * A length that says the rest of the segment is unused, as records don't
+     * span segments.
+     */
+    private static final int SKIP = -1;
+
+    // Field offsets from the start of a record, after its length.
+    private static final int OP = 0;
+    private static final int KIND = 1;
+    private static final int HAS_MD5 = 2;
+    private static final int SIZE = 3;
+    private static final int LAST_MODIFIED = 11;
+    private static final int MD5 = 19;
+    private static final int PATH_LENGTH = 35;
+    private static final int PATH = 39;
+
+    private final Path root;
+    private final File file;
+    private final int segmentSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private LocalMappedFile mapped;
+    /**
+     * Paths below the root, with a leading slash, to the offset of their
+     * latest record.
+     */
+    private TreeMap<String, Long> offsets = new TreeMap<String, Long>();
+    private long end;
+    /**
+     * Bytes taken by records that have been superseded.
+     */
+    private long dead;
+    private long revision;
+
+    public LocalSearchIndex(File root, File file) {
+        this(root, file, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens an index, creating it empty if needed. A new index should be
+     * {@link #update()}d.
+     *
+     * @param segmentSize
+     *            The size of each mapping, the file grows by this much at a
+     *            time. Longer paths can't be indexed.
+     */
+    public LocalSearchIndex(File root, File file, int segmentSize) {
+        this.root = root.toPath().toAbsolutePath().normalize();
+        this.file = file;
+        this.segmentSize = segmentSize;
+        try {
+            this.mapped = new LocalMappedFile(file, segmentSize);
+            this.load();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open search index " + file, e);
+        }
+    }
+
+    /**
+     * Makes commits in a repository update the index, and searches use it.
+     */
+    public static void enable(CmsRepository repository, LocalSearchIndex index) {
+        indexes.put(repository.getUrl(), index);
+    }
+
+    public static void disable(CmsRepository repository) {
+        indexes.remove(repository.getUrl());
+    }
+
+    /**
+     * @return The index for a repository, or null if it doesn't keep one.
+     */
+    public static LocalSearchIndex get(CmsRepository repository) {
+        return indexes.get(repository.getUrl());
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * @return True if the path is the root or below it.
+     */
+    public boolean covers(File path) {
+        return path.toPath().toAbsolutePath().normalize().startsWith(this.root);
+    }
+
+    /**
+     * @return The number of paths indexed.
+     */
+    public int size() {
+        this.lock.readLock().lock();
+        try {
+            return this.offsets.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The last revision given to {@link #setRevision(long)}, 0 if
+     *         none.
+     */
+    public long getRevision() {
+        this.lock.readLock().lock();
+        try {
+            return this.revision;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Records that the index is current with a revision of the repository's
+     * {@link LocalRevisionLog}.
+     */
+    public void setRevision(long revision) {
+        this.lock.writeLock().lock();
+        try {
+            byte[] record = format(REVISION, FILE, revision, 0, null, "");
+            this.append(record);
+            this.dead += 4 + record.length;
+            this.revision = revision;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write search index " + this.file, e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads a path that may have been added, changed or deleted, and for a
+     * folder everything below it, and writes what differs from the index.
+     */
+    public void refresh(File changed) {
+        Path path = changed.toPath().toAbsolutePath().normalize();
+        if (!path.startsWith(this.root) || LocalLockManager.isLockFile(path)) {
+            return;
+        }
+        Map<String, BasicFileAttributes> scanned;
+        try {
+            scanned = this.scan(path);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + path, e);
+        }
+        String key = this.getKey(path);
+        this.lock.writeLock().lock();
+        try {
+            if (scanned == null) {
+                this.removeIndexed(key);
+                return;
+            }
+            // Whatever is indexed below but wasn't found is gone.
+            List<String> gone = new ArrayList<String>();
+            for (String below : this.getBelow(key).keySet()) {
+                if (!scanned.containsKey(below)) {
+                    gone.add(below);
+                }
+            }
+            for (String below : gone) {
+                this.removeIndexed(below);
+            }
+            for (Map.Entry<String, BasicFileAttributes> entry : scanned.entrySet()) {
+                this.upsert(entry.getKey(), entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write search index " + this.file, e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Walks the whole tree and writes what differs from the index, then
+     * compacts the index if it is mostly superseded records.
+     */
+    public void update() {
+        this.refresh(this.root.toFile());
+        this.compactIfWasteful();
+    }
+
+    /**
+     * Refreshes only the paths changed since the revision the index last
+     * saw, or the whole tree if the index hasn't seen a revision of the log.
+     */
+    public void update(LocalRevisionLog log) {
+        long since = this.getRevision();
+        long head = log.getHead() == null ? 0 : log.getHead().getNumber();
+        if (since == head && since > 0) {
+            return;
+        }
+        if (since == 0 || since > head) {
+            this.update();
+        } else {
+            for (String path : log.getChangedPathsSince(since).keySet()) {
+                this.refresh(new File(path));
+            }
+            this.compactIfWasteful();
+        }
+        this.setRevision(head);
+    }
+
+    /**
+     * Finds the items below a folder that match a query.
+     */
+    public List<LocalSearchHit> search(File folder, LocalSearchQuery query) {
+        Path path = folder.toPath().toAbsolutePath().normalize();
+        List<LocalSearchHit> hits = new ArrayList<LocalSearchHit>();
+        if (!path.startsWith(this.root)) {
+            return hits;
+        }
+        String prefix = this.getKey(path);
+        this.lock.readLock().lock();
+        try {
+            for (Map.Entry<String, Long> indexed : this.getBelow(prefix).entrySet()) {
+                long at = indexed.getValue() + 4;
+                boolean isFolder = this.mapped.getByte(at + KIND) == FOLDER;
+                long size = this.mapped.getLong(at + SIZE);
+                long lastModified = this.mapped.getLong(at + LAST_MODIFIED);
+                if (!query.matches(isFolder, size, lastModified)) {
+                    continue;
+                }
+                String key = indexed.getKey();
+                if (!query.matchesGlob(key.substring(prefix.length() + 1))) {
+                    continue;
+                }
+                String hex = this.getMd5(at);
+                if (query.getMd5() != null && !query.getMd5().equals(hex)) {
+                    continue;
+                }
+                hits.add(new LocalSearchHit(this.root + key, new LocalIndexEntry(
+                        key.substring(key.lastIndexOf('/') + 1), isFolder, size,
+                        lastModified), hex));
+                if (hits.size() >= query.getLimit()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read search index " + this.file, e);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return hits;
+    }
+
+    /**
+     * Rewrites the index with only the current record of each path.
+     */
+    public void compact() {
+        this.lock.writeLock().lock();
+        try {
+            File compacted = new File(this.file.getPath() + ".compact");
+            Files.deleteIfExists(compacted.toPath());
+            LocalMappedFile target = new LocalMappedFile(compacted, this.segmentSize);
+            TreeMap<String, Long> moved = new TreeMap<String, Long>();
+            long position = 0;
+            try {
+                for (Map.Entry<String, Long> indexed : this.offsets.entrySet()) {
+                    byte[] record = new byte[this.mapped.getInt(indexed.getValue())];
+                    this.mapped.get(indexed.getValue() + 4, record);
+                    position = append(target, position, record);
+                    moved.put(indexed.getKey(), position - 4 - record.length);
+                }
+                if (this.revision > 0) {
+                    position = append(target, position, format(REVISION, FILE,
+                            this.revision, 0, null, ""));
+                }
+            } finally {
+                target.close();
+            }
+            this.mapped.close();
+            Files.move(compacted.toPath(), this.file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.mapped = new LocalMappedFile(this.file, this.segmentSize);
+            this.offsets = moved;
+            this.end = position;
+            this.dead = 0;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compact search index " + this.file, e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public void close() {
+        this.lock.writeLock().lock();
+        try {
+            this.mapped.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close search index " + this.file, e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void compactIfWasteful() {
+        boolean wasteful;
+        this.lock.readLock().lock();
+        try {
+            wasteful = this.dead > this.segmentSize && this.dead > this.end / 2;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        if (wasteful) {
+            this.compact();
+        }
+    }
+
+    /**
+     * Must be called with the write lock held. Writes a record unless the
+     * path is indexed with the same attributes.
+     */
+    private void upsert(String key, BasicFileAttributes attrs) throws IOException {
+        boolean isFolder = attrs.isDirectory();
+        long size = isFolder ? 0 : attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        String md5 = isFolder ? null : LocalChecksumCache.getShared().getCachedHex(
+                new File(this.root + key), Checksum.Algorithm.MD5);
+        Long existing = this.offsets.get(key);
+        if (existing != null) {
+            long at = existing + 4;
+            if ((this.mapped.getByte(at + KIND) == FOLDER) == isFolder
+                    && this.mapped.getLong(at + SIZE) == size
+                    && this.mapped.getLong(at + LAST_MODIFIED) == lastModified
+                    && (md5 == null || this.mapped.getByte(at + HAS_MD5) != 0)) {
+                return;
+            }
+            this.dead += 4 + this.mapped.getInt(existing);
+        }
+        byte[] digest = null;
+        if (md5 != null) {
+            try {
+                digest = Hex.decodeHex(md5.toCharArray());
+            } catch (DecoderException e) {
+                throw new IllegalStateException("Cached MD5 is not hex: " + md5, e);
+            }
+        }
+        long at = this.append(format(UPSERT, isFolder ? FOLDER : FILE, size,
+                lastModified, digest, key));
+        this.offsets.put(key, at);
+    }
+
+    /**
+     * Must be called with the write lock held. Writes that a path and
+     * everything below it is gone, if it is indexed.
+     */
+    private void removeIndexed(String key) throws IOException {
+        if (this.offsets.containsKey(key)) {
+            byte[] record = format(REMOVE, FILE, 0, 0, null, key);
+            this.append(record);
+            this.dead += 4 + record.length;
+            this.remove(key);
+        }
+    }
+
+    /**
+     * Must be called with the write lock held. Forgets a path and everything
+     * below it.
+     */
+    private void remove(String key) throws IOException {
+        Long existing = this.offsets.remove(key);
+        if (existing != null) {
+            this.dead += 4 + this.mapped.getInt(existing);
+        }
+        Iterator<Long> below = this.getBelow(key).values().iterator();
+        while (below.hasNext()) {
+            this.dead += 4 + this.mapped.getInt(below.next());
+            below.remove();
+        }
+    }
+
+    private SortedMap<String, Long> getBelow(String key) {
+        return this.offsets.subMap(key + "/", key + "0");
+    }
+
+    private String getMd5(long at) throws IOException {
+        if (this.mapped.getByte(at + HAS_MD5) == 0) {
+            return null;
+        }
+        byte[] md5 = new byte[16];
+        this.mapped.get(at + MD5, md5);
+        return Hex.encodeHexString(md5);
+    }
+
+    /**
+     * @return The path below the root with a leading slash, empty for the
+     *         root.
+     */
+    private String getKey(Path path) {
+        String relative = this.root.relativize(path).toString();
+        if (relative.isEmpty()) {
+            return "";
+        }
+        return "/" + relative.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Reads a path and everything below it, leaving out the root and lock
+     * files.
+     *
+     * @return Attributes by key, null if the path doesn't exist.
+     */
+    private Map<String, BasicFileAttributes> scan(final Path start) throws IOException {
+        final Map<String, BasicFileAttributes> scanned =
+                new TreeMap<String, BasicFileAttributes>();
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir,
+                        BasicFileAttributes attrs) {
+                    this.add(dir, attrs);
+                    LocalMetrics.getShared().increment(
+                            LocalMetrics.Counter.FOLDERS_LISTED);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!LocalLockManager.isLockFile(file)) {
+                        this.add(file, attrs);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e)
+                        throws IOException {
+                    if (file.equals(start)) {
+                        throw e;
+                    }
+                    // Removed while we were scanning.
+                    return FileVisitResult.CONTINUE;
+                }
+
+                private void add(Path path, BasicFileAttributes attrs) {
+                    if (!path.equals(LocalSearchIndex.this.root)) {
+                        scanned.put(LocalSearchIndex.this.getKey(path), attrs);
+                    }
+                }
+            });
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return scanned;
+    }
+
+    /**
+     * Reads the records up to the first incomplete one.
+     */
+    private void load() throws IOException {
+        long size = this.mapped.size();
+        long position = 0;
+        CRC32 crc = new CRC32();
+        while (position + 4 <= size) {
+            long inSegment = this.segmentSize - position % this.segmentSize;
+            int length = inSegment < 4 ? SKIP : this.mapped.getInt(position);
+            if (length == SKIP) {
+                position += inSegment;
+                continue;
+            }
+            if (length < PATH + 4 || length > inSegment - 4) {
+                break;
+            }
+            byte[] record = new byte[length];
+            this.mapped.get(position + 4, record);
+            crc.reset();
+            crc.update(record, 0, length - 4);
+            if ((int) crc.getValue() != ByteBuffer.wrap(record, length - 4, 4).getInt()) {
+                break;
+            }
+            ByteBuffer fields = ByteBuffer.wrap(record);
+            byte[] path = new byte[fields.getInt(PATH_LENGTH)];
+            fields.position(PATH);
+            fields.get(path);
+            String key = new String(path, UTF8);
+            byte op = record[OP];
+            if (op == UPSERT) {
+                Long previous = this.offsets.put(key, position);
+                if (previous != null) {
+                    this.dead += 4 + this.mapped.getInt(previous);
+                }
+            } else if (op == REMOVE) {
+                this.remove(key);
+                this.dead += 4 + length;
+            } else if (op == REVISION) {
+                this.revision = fields.getLong(SIZE);
+                this.dead += 4 + length;
+            } else {
+                break;
+            }
+            position += 4 + length;
+        }
+        this.end = position;
+        if (position + 4 <= size) {
+            // Clears what a crash left, so it can't be taken for a record.
+            this.mapped.put(position, new byte[4]);
+        }
+    }
+
+    /**
+     * Must be called with the write lock held.
+     *
+     * @return Where the record starts, at its length.
+     */
+    private long append(byte[] record) throws IOException {
+        this.end = append(this.mapped, this.end, record);
+        return this.end - 4 - record.length;
+    }
+
+    /**
+     * Writes a record at or after a position, in the next segment if it
+     * doesn't fit in this one.
+     *
+     * @return The position after the record.
+     */
+    private static long append(LocalMappedFile target, long position, byte[] record)
+            throws IOException {
+        int segmentSize = target.getSegmentSize();
+        if (4 + record.length > segmentSize) {
+            throw new IllegalArgumentException("Record of " + record.length
+                    + " bytes does not fit in a segment");
+        }
+        long inSegment = segmentSize - position % segmentSize;
+        if (4 + record.length > inSegment) {
+            if (inSegment >= 4) {
+                target.put(position, ByteBuffer.allocate(4).putInt(SKIP).array());
+            }
+            position += inSegment;
+        }
+        target.put(position + 4, record);
+        // The length makes the record valid.
+        target.put(position, ByteBuffer.allocate(4).putInt(record.length).array());
+        return position + 4 + record.length;
+    }
+
+    private static byte[] format(byte op, byte kind, long size, long lastModified,
+            byte[] md5, String key) {
+        byte[] path = key.getBytes(UTF8);
+        ByteBuffer record = ByteBuffer.allocate(PATH + path.length + 4);
+        record.put(op);
+        record.put(kind);
+        record.put((byte) (md5 == null ? 0 : 1));
+        record.putLong(size);
+        record.putLong(lastModified);
+        record.put(md5 == null ? new byte[16] : md5);
+        record.putInt(path.length);
+        record.put(path);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.util.Date;
+import java.util.regex.Pattern;
+
+/**
+ * What to find below a folder, see {@link LocalCmsItemLookup#search}. Everything
+ * matches until criteria are set, and all criteria must match.
+ */
+public class LocalSearchQuery {
+    private ItemType type = ItemType.BOTH;
+    private String glob;
+    private Pattern pattern;
+    private boolean matchPath;
+    private long minSize = -1;
+    private long maxSize = -1;
+    private long modifiedFrom = Long.MIN_VALUE;
+    private long modifiedTo = Long.MAX_VALUE;
+    private String md5;
+    private int limit = Integer.MAX_VALUE;
+
+    public ItemType getType() {
+        return this.type;
+    }
+
+    public void setType(ItemType type) {
+        this.type = type;
+    }
+
+    public String getGlob() {
+        return this.glob;
+    }
+
+    /**
+     * A pattern like *.xml, where * and ? don't match a slash and **
+     * matches anything. A pattern without a slash is matched against names
+     * at any depth, like find -name, one with a slash against the path
+     * below the folder searched, like images/**.png.
+     */
+    public void setGlob(String glob) {
+        this.glob = glob;
+        this.pattern = glob == null ? null : toPattern(glob);
+        this.matchPath = glob != null && glob.indexOf('/') != -1;
+    }
+
+    /**
+     * Files smaller than this don't match, and no folders do.
+     */
+    public void setMinSize(long minSize) {
+        this.minSize = minSize;
+    }
+
+    /**
+     * Files larger than this don't match, and no folders do.
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param from
+     *            Matches items modified at or after this time.
+     */
+    public void setModifiedFrom(Date from) {
+        this.modifiedFrom = from == null ? Long.MIN_VALUE : from.getTime();
+    }
+
+    /**
+     * @param to
+     *            Matches items modified before this time.
+     */
+    public void setModifiedTo(Date to) {
+        this.modifiedTo = to == null ? Long.MAX_VALUE : to.getTime();
+    }
+
+    public String getMd5() {
+        return this.md5;
+    }
+
+    /**
+     * Matches files with the given contents. With a {@link LocalSearchIndex}
+     * only files whose checksum was cached when they were indexed match,
+     * without one the files found are hashed.
+     */
+    public void setMd5(String md5) {
+        this.md5 = md5 == null ? null : md5.toLowerCase();
+    }
+
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * Stops the search after this many matches.
+     */
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Checks everything but the checksum and the glob, which cost more.
+     */
+    boolean matches(boolean folder, long size, long lastModified) {
+        if (folder ? this.type == ItemType.FILE : this.type == ItemType.FOLDER) {
+            return false;
+        }
+        if (this.minSize >= 0 || this.maxSize >= 0) {
+            if (folder || size < this.minSize
+                    || (this.maxSize >= 0 && size > this.maxSize)) {
+                return false;
+            }
+        }
+        return lastModified >= this.modifiedFrom && lastModified < this.modifiedTo;
+    }
+
+    /**
+     * @param relative
+     *            The path below the folder searched, without a leading slash.
+     */
+    boolean matchesGlob(String relative) {
+        if (this.pattern == null) {
+            return true;
+        }
+        if (this.matchPath) {
+            return this.pattern.matcher(relative).matches();
+        }
+        return this.pattern.matcher(relative.substring(relative.lastIndexOf('/') + 1))
+                .matches();
+    }
+
+    static Pattern toPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    @Override
+    public String toString() {
+        return this.type + (this.glob == null ? "" : " " + this.glob)
+                + (this.minSize < 0 ? "" : " >=" + this.minSize)
+                + (this.maxSize < 0 ? "" : " <=" + this.maxSize)
+                + (this.modifiedFrom == Long.MIN_VALUE ? ""
+                        : " from " + this.modifiedFrom)
+                + (this.modifiedTo == Long.MAX_VALUE ? "" : " to " + this.modifiedTo)
+                + (this.md5 == null ? "" : " md5 " + this.md5);
+    }
+}
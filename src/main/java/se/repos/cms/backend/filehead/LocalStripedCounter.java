@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without contending: each thread
+ * adds to one of a number of cells, picked by its id, that are a cache line
+ * apart. Reading sums the cells, so a read while others add is not a
+ * snapshot.
+ */
+public class LocalStripedCounter {
+    /**
+     * Longs between cells, 64 bytes.
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public LocalStripedCounter() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param stripes
+     *            The number of cells, rounded up to a power of two.
+     */
+    public LocalStripedCounter(int stripes) {
+        int size = Integer.highestOneBit(Math.max(stripes, 1));
+        if (size < stripes) {
+            size <<= 1;
+        }
+        this.cells = new AtomicLongArray(size * PADDING);
+        this.mask = size - 1;
+    }
+
+    public void add(long delta) {
+        this.cells.addAndGet(this.getCell(), delta);
+    }
+
+    public void increment() {
+        this.add(1);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < this.cells.length(); i += PADDING) {
+            sum += this.cells.get(i);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < this.cells.length(); i += PADDING) {
+            this.cells.set(i, 0);
+        }
+    }
+
+    private int getCell() {
+        // Thread ids are sequential, spread them so neighbours don't share.
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (id >>> 32) & this.mask) * PADDING;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(this.get());
+    }
+}
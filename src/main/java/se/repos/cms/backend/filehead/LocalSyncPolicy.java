@@ -0,0 +1,23 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+/**
+ * When written file contents are forced to disk.
+ */
+public enum LocalSyncPolicy {
+    /**
+     * Leave it to the operating system.
+     */
+    NONE,
+    /**
+     * Force each file as soon as it is written.
+     */
+    PER_FILE,
+    /**
+     * Force all files written by an operation together at its end, letting
+     * the filesystem combine the work.
+     */
+    BATCH
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timer wheel: timeouts are hashed by their tick into a ring of
+ * buckets, so scheduling is O(1) and each tick only looks at one bucket.
+ * Timeouts can't be cancelled, handlers should check that what they get is
+ * still current. Timeouts fire on a single daemon thread, started on first
+ * use, up to one tick late.
+ *
+ * @param <T>
+ *            What is scheduled.
+ */
+public class LocalTimerWheel<T> {
+    private final long tickMillis;
+    private final Handler<T> handler;
+    private final String threadName;
+    private final List<List<Timeout<T>>> buckets;
+    private final int mask;
+    private final long start;
+    /**
+     * The last tick that was processed.
+     */
+    private long tick;
+    private int pending;
+    private Thread thread;
+    private boolean stopped;
+
+    public interface Handler<T> {
+        void expired(T item);
+    }
+
+    /**
+     * @param ticksPerWheel
+     *            The number of buckets, rounded up to a power of two.
+     *            Timeouts further away than a full turn are looked at once
+     *            per turn until they are due.
+     */
+    public LocalTimerWheel(long tickMillis, int ticksPerWheel, String threadName,
+            Handler<T> handler) {
+        if (tickMillis <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        }
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.handler = handler;
+        this.threadName = threadName;
+        this.buckets = new ArrayList<List<Timeout<T>>>(size);
+        for (int i = 0; i < size; i++) {
+            this.buckets.add(new ArrayList<Timeout<T>>());
+        }
+        this.mask = size - 1;
+        this.start = System.currentTimeMillis();
+    }
+
+    /**
+     * Schedules an item to be handed to the handler at a time, given in
+     * milliseconds since the epoch.
+     */
+    public synchronized void schedule(T item, long deadline) {
+        if (this.stopped) {
+            throw new IllegalStateException("Timer wheel stopped");
+        }
+        // Rounded up, so that a timeout never fires before its deadline.
+        long due = Math.max((deadline - this.start + this.tickMillis - 1)
+                / this.tickMillis, this.tick + 1);
+        this.buckets.get((int) (due & this.mask)).add(new Timeout<T>(item, due));
+        this.pending++;
+        if (this.thread == null) {
+            this.thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    LocalTimerWheel.this.run();
+                }
+            }, this.threadName);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+    }
+
+    /**
+     * @return The number of timeouts that haven't fired.
+     */
+    public synchronized int getPending() {
+        return this.pending;
+    }
+
+    public void stop() {
+        Thread running;
+        synchronized (this) {
+            this.stopped = true;
+            running = this.thread;
+        }
+        if (running != null) {
+            running.interrupt();
+        }
+    }
+
+    private void run() {
+        List<T> expired = new ArrayList<T>();
+        while (true) {
+            synchronized (this) {
+                if (this.stopped) {
+                    return;
+                }
+                long now = (System.currentTimeMillis() - this.start) / this.tickMillis;
+                if (now - this.tick > this.buckets.size()) {
+                    // A full turn or more was missed, every bucket is due.
+                    this.tick = now;
+                    for (List<Timeout<T>> bucket : this.buckets) {
+                        this.expire(bucket, expired);
+                    }
+                }
+                // Catches up on ticks missed while the handler was busy.
+                while (this.tick < now) {
+                    this.tick++;
+                    this.expire(this.buckets.get((int) (this.tick & this.mask)), expired);
+                }
+            }
+            for (T item : expired) {
+                try {
+                    this.handler.expired(item);
+                } catch (RuntimeException e) {
+                    // The wheel must keep turning.
+                }
+            }
+            expired.clear();
+            try {
+                Thread.sleep(this.tickMillis);
+            } catch (InterruptedException e) {
+                // Checks stopped.
+            }
+        }
+    }
+
+    private void expire(List<Timeout<T>> bucket, List<T> expired) {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Timeout<T> timeout = bucket.get(i);
+            if (timeout.due <= this.tick) {
+                expired.add(timeout.item);
+                this.pending--;
+            } else {
+                bucket.set(kept++, timeout);
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    private static class Timeout<T> {
+        private final T item;
+        private final long due;
+
+        private Timeout(T item, long due) {
+            this.item = item;
+            this.due = due;
+        }
+    }
+}
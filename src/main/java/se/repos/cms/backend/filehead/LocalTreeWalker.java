@@ -0,0 +1,331 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.commons.io.IOUtils;
+
+import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.CmsItemPath;
+import se.simonsoft.cms.item.CmsRepository;
+
+/**
+ * Runs recursive operations on folder trees in parallel, one fork/join task
+ * per folder. Listing a folder is latency bound on fast disks and network
+ * filesystems, so listing many at once pays off even with few cores.
+ */
+public class LocalTreeWalker {
+    private final ForkJoinPool pool;
+
+    /**
+     * @param parallelism
+     *            The number of folders to work on at the same time.
+     */
+    public LocalTreeWalker(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public int getParallelism() {
+        return this.pool.getParallelism();
+    }
+
+    /**
+     * Lists everything below a folder.
+     * 
+     * @param ordered
+     *            True to get the ids in the same order as
+     *            {@link LocalDescendants}, false to get them in whatever order
+     *            they are found, which saves waiting for slow folders.
+     */
+    public List<CmsItemId> getDescendants(CmsRepository repository, CmsItemPath parent,
+            boolean ordered) {
+        if (ordered) {
+            return this.pool.invoke(new OrderedListTask(repository, parent));
+        }
+        Queue<CmsItemId> found = new ConcurrentLinkedQueue<CmsItemId>();
+        this.pool.invoke(new UnorderedListTask(repository, parent, found));
+        return new ArrayList<CmsItemId>(found);
+    }
+
+    /**
+     * Deletes a folder and everything in it, or a single file.
+     */
+    public void delete(CmsItemPath path) {
+        this.delete(path, null);
+    }
+
+    /**
+     * Like {@link #delete(CmsItemPath)}, for repositories with a blob store.
+     *
+     * @param store
+     *            Gets each file unlinked before it is deleted, or null.
+     */
+    public void delete(CmsItemPath path, LocalBlobStore store) {
+        Path target = toPath(path);
+        if (Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+            this.pool.invoke(new DeleteTask(target, store));
+        } else {
+            deleteFile(target, store);
+        }
+    }
+
+    /**
+     * Counts files, folders and bytes below a folder.
+     */
+    public LocalFolderSize getSize(CmsItemPath folder) {
+        return this.pool.invoke(new SizeTask(toPath(folder)));
+    }
+
+    /**
+     * Counts files, folders and bytes below a folder on the calling thread,
+     * one folder at a time.
+     */
+    public static LocalFolderSize getSizeSequential(CmsItemPath folder) {
+        return getSizeSequential(toPath(folder));
+    }
+
+    private static LocalFolderSize getSizeSequential(Path folder) {
+        long files = 0;
+        long folders = 0;
+        long bytes = 0;
+        List<Path> subfolders = new ArrayList<Path>();
+        for (Path entry : list(folder)) {
+            BasicFileAttributes attrs = readAttributes(entry);
+            if (attrs == null) {
+                continue;
+            }
+            if (attrs.isDirectory()) {
+                folders++;
+                subfolders.add(entry);
+            } else {
+                files++;
+                bytes += attrs.size();
+            }
+        }
+        LocalFolderSize size = new LocalFolderSize(files, folders, bytes);
+        for (Path subfolder : subfolders) {
+            size = size.add(getSizeSequential(subfolder));
+        }
+        return size;
+    }
+
+    /**
+     * @return The attributes of an entry, not following links, or null if it
+     *         was removed while we were counting.
+     */
+    private static BasicFileAttributes readAttributes(Path entry) {
+        try {
+            return Files.readAttributes(entry, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stops the worker threads. Operations in progress are completed.
+     */
+    public void shutdown() {
+        this.pool.shutdown();
+    }
+
+    private static Path toPath(CmsItemPath path) {
+        return Paths.get(path.getPath());
+    }
+
+    private static List<Path> list(Path folder) {
+        return list(folder, false);
+    }
+
+    /**
+     * @param withLockFiles
+     *            True to include lock files, which are not items but must be
+     *            deleted with their folder.
+     */
+    private static List<Path> list(Path folder, boolean withLockFiles) {
+        List<Path> entries = new ArrayList<Path>();
+        DirectoryStream<Path> stream = null;
+        try {
+            stream = Files.newDirectoryStream(folder);
+            LocalMetrics.getShared().increment(LocalMetrics.Counter.FOLDERS_LISTED);
+            for (Path entry : stream) {
+                if (withLockFiles || !LocalLockManager.isLockFile(entry)) {
+                    entries.add(entry);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+        return entries;
+    }
+
+    private static void deleteFile(Path file, LocalBlobStore store) {
+        LocalChecksumCache.getShared().invalidate(file.toFile());
+        if (store != null) {
+            store.unlink(file.toFile());
+        }
+        try {
+            Files.delete(file);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to delete local file: " + file, e);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class OrderedListTask extends RecursiveTask<List<CmsItemId>> {
+        private final CmsRepository repository;
+        private final CmsItemPath folder;
+
+        public OrderedListTask(CmsRepository repository, CmsItemPath folder) {
+            this.repository = repository;
+            this.folder = folder;
+        }
+
+        @Override
+        protected List<CmsItemId> compute() {
+            List<Path> entries = list(toPath(this.folder));
+            List<CmsItemId> ids = new ArrayList<CmsItemId>(entries.size());
+            List<OrderedListTask> subfolders = new ArrayList<OrderedListTask>(
+                    entries.size());
+            LocalItemInterner.Folder interned = LocalItemInterner.getShared().getFolder(
+                    this.repository, this.folder);
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                CmsItemPath path = interned.getPath(name);
+                ids.add(interned.getId(name));
+                if (Files.isDirectory(entry)) {
+                    OrderedListTask task = new OrderedListTask(this.repository, path);
+                    task.fork();
+                    subfolders.add(task);
+                } else {
+                    subfolders.add(null);
+                }
+            }
+            // Each folder's contents go right after the folder itself.
+            List<CmsItemId> result = new ArrayList<CmsItemId>(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                result.add(ids.get(i));
+                if (subfolders.get(i) != null) {
+                    result.addAll(subfolders.get(i).join());
+                }
+            }
+            return result;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class UnorderedListTask extends RecursiveAction {
+        private final CmsRepository repository;
+        private final CmsItemPath folder;
+        private final Collection<CmsItemId> found;
+
+        public UnorderedListTask(CmsRepository repository, CmsItemPath folder,
+                Collection<CmsItemId> found) {
+            this.repository = repository;
+            this.folder = folder;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            List<UnorderedListTask> subfolders = new ArrayList<UnorderedListTask>();
+            LocalItemInterner.Folder interned = LocalItemInterner.getShared().getFolder(
+                    this.repository, this.folder);
+            for (Path entry : list(toPath(this.folder))) {
+                String name = entry.getFileName().toString();
+                CmsItemPath path = interned.getPath(name);
+                this.found.add(interned.getId(name));
+                if (Files.isDirectory(entry)) {
+                    subfolders.add(new UnorderedListTask(this.repository, path,
+                            this.found));
+                }
+            }
+            ForkJoinTask.invokeAll(subfolders);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class DeleteTask extends RecursiveAction {
+        private final Path folder;
+        private final LocalBlobStore store;
+
+        public DeleteTask(Path folder, LocalBlobStore store) {
+            this.folder = folder;
+            this.store = store;
+        }
+
+        @Override
+        protected void compute() {
+            List<DeleteTask> subfolders = new ArrayList<DeleteTask>();
+            for (Path entry : list(this.folder, true)) {
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    DeleteTask task = new DeleteTask(entry, this.store);
+                    task.fork();
+                    subfolders.add(task);
+                } else {
+                    deleteFile(entry, this.store);
+                }
+            }
+            for (DeleteTask task : subfolders) {
+                task.join();
+            }
+            deleteFile(this.folder, null);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class SizeTask extends RecursiveTask<LocalFolderSize> {
+        private final Path folder;
+
+        public SizeTask(Path folder) {
+            this.folder = folder;
+        }
+
+        @Override
+        protected LocalFolderSize compute() {
+            long files = 0;
+            long folders = 0;
+            long bytes = 0;
+            List<SizeTask> subfolders = new ArrayList<SizeTask>();
+            for (Path entry : list(this.folder)) {
+                BasicFileAttributes attrs = readAttributes(entry);
+                if (attrs == null) {
+                    continue;
+                }
+                if (attrs.isDirectory()) {
+                    folders++;
+                    SizeTask task = new SizeTask(entry);
+                    task.fork();
+                    subfolders.add(task);
+                } else {
+                    files++;
+                    bytes += attrs.size();
+                }
+            }
+            LocalFolderSize size = new LocalFolderSize(files, folders, bytes);
+            for (SizeTask task : subfolders) {
+                size = size.add(task.join());
+            }
+            return size;
+        }
+    }
+}
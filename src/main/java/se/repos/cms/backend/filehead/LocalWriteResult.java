@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+/**
+ * How the contents of one file were written.
+ */
+public class LocalWriteResult {
+
+    public enum Mode {
+        /**
+         * All the data was written over the old contents.
+         */
+        FULL,
+        /**
+         * The data was the same as the old contents, nothing was written.
+         */
+        UNCHANGED,
+        /**
+         * Only the parts that differed were written, into the file itself.
+         */
+        IN_PLACE,
+        /**
+         * A new file was put together from the old contents and the parts
+         * that differed, and renamed over the old one.
+         */
+        COPY_ON_WRITE,
+        /**
+         * The data was already in the {@link LocalBlobStore}, the file was
+         * linked to it. The copy staged to find that out is not counted as
+         * written.
+         */
+        LINKED
+    }
+
+    private final Mode mode;
+    private final long received;
+    private final long written;
+
+    public LocalWriteResult(Mode mode, long received, long written) {
+        this.mode = mode;
+        this.received = received;
+        this.written = written;
+    }
+
+    public static LocalWriteResult full(long written) {
+        return new LocalWriteResult(Mode.FULL, written, written);
+    }
+
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * @return The length of the data, which is the new length of the file.
+     */
+    public long getReceived() {
+        return this.received;
+    }
+
+    /**
+     * @return The number of bytes actually written to disk.
+     */
+    public long getWritten() {
+        return this.written;
+    }
+
+    @Override
+    public String toString() {
+        return this.mode + " " + this.written + "/" + this.received + " bytes";
+    }
+}
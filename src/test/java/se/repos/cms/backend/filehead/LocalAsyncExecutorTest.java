@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import se.simonsoft.cms.item.CmsRepository;
+
+public class LocalAsyncExecutorTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final CmsRepository repository = new CmsRepository("http://localhost/a");
+    private final CmsRepository other = new CmsRepository("http://localhost/b");
+    private final CountDownLatch release = new CountDownLatch(1);
+    private LocalAsyncExecutor executor;
+
+    @After
+    public void tearDown() {
+        this.release.countDown();
+        if (this.executor != null) {
+            this.executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        this.executor = new LocalAsyncExecutor(1, 1, 4);
+        final AtomicInteger runs = new AtomicInteger();
+        CompletableFuture<String> first = this.executor.submit(this.repository, "k",
+                () -> {
+                    runs.incrementAndGet();
+                    this.await();
+                    return "x";
+                });
+        CompletableFuture<String> second = this.executor.submit(this.repository, "k",
+                () -> {
+                    runs.incrementAndGet();
+                    return "y";
+                });
+        this.release.countDown();
+
+        assertEquals("x", get(first));
+        assertEquals("x", get(second));
+        assertEquals(1, runs.get());
+        // Once done, the key runs again.
+        assertEquals("z", get(this.executor.submit(this.repository, "k", () -> "z")));
+    }
+
+    @Test
+    public void testCallersCantCompleteShared() throws Exception {
+        this.executor = new LocalAsyncExecutor(1, 1, 4);
+        CompletableFuture<String> first = this.executor.submit(this.repository, "k",
+                () -> {
+                    this.await();
+                    return "x";
+                });
+        CompletableFuture<String> second = this.executor.submit(this.repository, "k",
+                () -> "y");
+        first.complete("mine");
+        this.release.countDown();
+
+        assertEquals("mine", get(first));
+        assertEquals("x", get(second));
+    }
+
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        this.executor = new LocalAsyncExecutor(1, 1, 2);
+        CompletableFuture<String> running = this.executor.submit(this.repository, null,
+                () -> {
+                    this.await();
+                    return "a";
+                });
+        CompletableFuture<String> queued = this.executor.submit(this.repository, null,
+                () -> "b");
+        CompletableFuture<String> refused = this.executor.submit(this.repository, null,
+                () -> "c");
+        assertRejected(refused);
+
+        this.release.countDown();
+        assertEquals("a", get(running));
+        assertEquals("b", get(queued));
+        // The permits are back.
+        assertEquals("d", get(this.executor.submit(this.repository, null, () -> "d")));
+    }
+
+    @Test
+    public void testRepositoryShare() throws Exception {
+        this.executor = new LocalAsyncExecutor(2, 1, 10);
+        final AtomicBoolean started = new AtomicBoolean();
+        CompletableFuture<String> slow = this.executor.submit(this.repository, null,
+                () -> {
+                    this.await();
+                    return "a";
+                });
+        CompletableFuture<String> waiting = this.executor.submit(this.repository, null,
+                () -> {
+                    started.set(true);
+                    return "b";
+                });
+
+        // The other repository isn't held up by the slow one.
+        assertEquals("c", get(this.executor.submit(this.other, null, () -> "c")));
+        assertFalse(started.get());
+        this.release.countDown();
+        assertEquals("a", get(slow));
+        assertEquals("b", get(waiting));
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        this.executor = new LocalAsyncExecutor(1, 1, 4);
+        CompletableFuture<String> failed = this.executor.submit(this.repository, "k",
+                () -> {
+                    throw new IOException("disk");
+                });
+        try {
+            get(failed);
+            fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testShutdownRejectsQueued() throws Exception {
+        this.executor = new LocalAsyncExecutor(1, 1, 10);
+        CompletableFuture<String> running = this.executor.submit(this.repository, null,
+                () -> {
+                    this.await();
+                    return "a";
+                });
+        List<CompletableFuture<String>> queued =
+                new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 3; i++) {
+            queued.add(this.executor.submit(this.repository, "k" + i, () -> "b"));
+        }
+        this.executor.shutdown();
+        this.release.countDown();
+
+        assertEquals("a", get(running));
+        for (CompletableFuture<String> future : queued) {
+            assertRejected(future);
+        }
+        assertRejected(this.executor.submit(this.repository, null, () -> "c"));
+    }
+
+    private void await() throws InterruptedException {
+        if (!this.release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Not released");
+        }
+    }
+
+    private static <T> T get(CompletableFuture<T> future) throws Exception {
+        return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void assertRejected(CompletableFuture<?> future) throws Exception {
+        try {
+            get(future);
+            fail("Expected RejectedExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.simonsoft.cms.item.CmsItemPath;
+
+public class LocalBlobStoreTest {
+    private File folder;
+    private File tree;
+    private File storeFolder;
+    private LocalBlobStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        this.folder = Files.createTempDirectory("filehead-blobs").toFile();
+        this.tree = new File(this.folder, "tree");
+        this.storeFolder = new File(this.folder, "store");
+        this.store = new LocalBlobStore(this.storeFolder);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.store.close();
+        FileUtils.deleteDirectory(this.folder);
+    }
+
+    @Test
+    public void testSameContentsStoredOnce() throws IOException {
+        assertEquals(LocalWriteResult.Mode.FULL, this.write("a", "same").getMode());
+        assertEquals(LocalWriteResult.Mode.LINKED, this.write("b/c", "same").getMode());
+        assertEquals(LocalWriteResult.Mode.UNCHANGED, this.write("a", "same").getMode());
+
+        assertEquals(1, this.store.getBlobCount());
+        assertEquals(2, this.store.getReferences(this.getSha1("a")));
+        assertEquals("same", FileUtils.readFileToString(this.file("b/c"), "UTF-8"));
+    }
+
+    @Test
+    public void testReplaceReleasesOldBlob() throws IOException {
+        this.write("a", "same");
+        this.write("b", "same");
+        String same = this.getSha1("a");
+        this.write("a", "other");
+
+        assertEquals(1, this.store.getReferences(same));
+        assertEquals(1, this.store.getReferences(this.getSha1("a")));
+        assertEquals(0, this.store.gc());
+        assertEquals(2, this.store.getBlobCount());
+    }
+
+    @Test
+    public void testGcAfterUnlink() throws IOException {
+        this.write("a", "same");
+        this.write("b", "same");
+        String same = this.getSha1("a");
+
+        this.store.unlink(this.file("a"));
+        this.file("a").delete();
+        assertEquals(1, this.store.getReferences(same));
+        assertEquals(0, this.store.gc());
+
+        this.store.unlink(this.file("b"));
+        this.file("b").delete();
+        assertEquals(0, this.store.getReferences(same));
+        assertEquals(1, this.store.gc());
+        assertEquals(0, this.store.getBlobCount());
+    }
+
+    @Test
+    public void testGcAfterDeleteBehindStore() throws IOException {
+        this.write("a", "same");
+        String same = this.getSha1("a");
+        this.file("a").delete();
+        assertEquals(1, this.store.getReferences(same));
+
+        assertEquals(1, this.store.gc());
+        assertEquals(0, this.store.getReferences(same));
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        this.write("a", "same");
+        this.write("b", "same");
+        this.write("c", "other");
+        this.store.unlink(this.file("c"));
+        this.file("c").delete();
+        String same = this.getSha1("a");
+        this.store.close();
+
+        this.store = new LocalBlobStore(this.storeFolder);
+        assertEquals(2, this.store.getBlobCount());
+        assertEquals(2, this.store.getReferences(same));
+        assertEquals(1, this.store.gc());
+        assertEquals(1, this.store.getBlobCount());
+    }
+
+    @Test
+    public void testTreeWalkerDeleteUnlinks() throws IOException {
+        this.write("d/a", "same");
+        this.write("d/e/b", "same");
+        this.write("c", "same");
+        String same = this.getSha1("c");
+
+        LocalTreeWalker walker = new LocalTreeWalker(2);
+        try {
+            walker.delete(new CmsItemPath(this.file("d").getAbsolutePath()), this.store);
+        } finally {
+            walker.shutdown();
+        }
+        assertFalse(this.file("d").exists());
+        assertEquals(1, this.store.getReferences(same));
+    }
+
+    private LocalWriteResult write(String name, String contents) throws IOException {
+        File file = this.file(name);
+        FileUtils.forceMkdir(file.getParentFile());
+        return this.store.write(file, new ByteArrayInputStream(contents
+                .getBytes("UTF-8")), LocalSyncPolicy.NONE);
+    }
+
+    private File file(String name) {
+        return new File(this.tree, name);
+    }
+
+    private String getSha1(String name) {
+        return this.store.getChecksum(this.file(name)).getSha1();
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.EnumSet;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.simonsoft.cms.item.Checksum.Algorithm;
+
+public class LocalChecksumCacheTest {
+    private static final String MD5_A = "0cc175b9c0f1b6a831c399e269772661";
+    private static final String MD5_ABC = "900150983cd24fb0d6963f7d28e17f72";
+    private static final String SHA1_A = "86f7e437faa5a7fce15d1ddcb9eaeaea377667b8";
+
+    private File folder;
+
+    @Before
+    public void setUp() throws IOException {
+        this.folder = Files.createTempDirectory("filehead-checksum").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.folder);
+    }
+
+    @Test
+    public void testHitUntilChanged() throws IOException {
+        LocalChecksumCache cache = new LocalChecksumCache(10);
+        File file = this.write("a", "a");
+        assertEquals(MD5_A, cache.getHex(file, Algorithm.MD5));
+        assertEquals(MD5_A, cache.getHex(file, Algorithm.MD5));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+
+        // Written behind the cache's back, a new length is a miss.
+        this.write("a", "abc");
+        assertNull(cache.getCachedHex(file, Algorithm.MD5));
+        assertEquals(MD5_ABC, cache.getHex(file, Algorithm.MD5));
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        LocalChecksumCache cache = new LocalChecksumCache(10);
+        File file = this.write("a", "a");
+        assertNull(cache.getCachedHex(file, Algorithm.MD5));
+        cache.getHex(file, Algorithm.MD5);
+        assertEquals(MD5_A, cache.getCachedHex(file, Algorithm.MD5));
+
+        cache.invalidate(file);
+        assertNull(cache.getCachedHex(file, Algorithm.MD5));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testAlgorithmsInOneRead() throws IOException {
+        LocalChecksumCache cache = new LocalChecksumCache(10);
+        cache.setAlgorithms(EnumSet.of(Algorithm.MD5, Algorithm.SHA1));
+        File file = this.write("a", "a");
+        cache.getHex(file, Algorithm.MD5);
+        assertEquals(SHA1_A, cache.getCachedHex(file, Algorithm.SHA1));
+        assertEquals(SHA1_A, cache.getHex(file, Algorithm.SHA1));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws IOException {
+        LocalChecksumCache cache = new LocalChecksumCache(2);
+        File a = this.write("a", "a");
+        File b = this.write("b", "b");
+        File c = this.write("c", "c");
+        cache.getHex(a, Algorithm.MD5);
+        cache.getHex(b, Algorithm.MD5);
+        cache.getHex(a, Algorithm.MD5);
+        cache.getHex(c, Algorithm.MD5);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(MD5_A, cache.getCachedHex(a, Algorithm.MD5));
+        assertNull(cache.getCachedHex(b, Algorithm.MD5));
+    }
+
+    private File write(String name, String contents) throws IOException {
+        File file = new File(this.folder, name);
+        FileUtils.write(file, contents, "UTF-8");
+        return file;
+    }
+}
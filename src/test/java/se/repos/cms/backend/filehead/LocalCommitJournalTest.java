@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalCommitJournalTest {
+    private File folder;
+    private File tree;
+    private LocalCommitJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        this.folder = Files.createTempDirectory("filehead-journal").toFile();
+        this.tree = new File(this.folder, "tree");
+        FileUtils.forceMkdir(this.tree);
+        File directory = new File(this.folder, "journal");
+        FileUtils.forceMkdir(directory);
+        this.journal = new LocalCommitJournal(directory);
+        this.journal.setSyncPolicy(LocalSyncPolicy.NONE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.folder);
+    }
+
+    @Test
+    public void testRecoverNothing() {
+        assertEquals(0, this.journal.recover());
+    }
+
+    @Test
+    public void testRecoverDiscardsUncommitted() throws IOException {
+        LocalCommitJournal.Transaction transaction = this.journal.begin();
+        transaction.write(this.file("a"), data("a"));
+        transaction.delete(this.file("b"));
+        this.write("b", "b");
+
+        assertEquals(0, this.journal.recover());
+        assertFalse(this.file("a").exists());
+        assertEquals("b", this.read("b"));
+        assertEquals(0, this.journal.getDirectory().list().length);
+    }
+
+    @Test
+    public void testRecoverDiscardsPartialJournal() throws IOException {
+        LocalCommitJournal.Transaction transaction = this.journal.begin();
+        transaction.write(this.file("a"), data("a"));
+        // Crashed while the journal was written, before the commit point.
+        String id = this.journal.getDirectory().list()[0];
+        FileUtils.writeByteArrayToFile(new File(this.journal.getDirectory(), id
+                + ".partial"), new byte[] { 'W', 0 });
+
+        assertEquals(0, this.journal.recover());
+        assertFalse(this.file("a").exists());
+        assertEquals(0, this.journal.getDirectory().list().length);
+    }
+
+    @Test
+    public void testRecoverRollsForward() throws IOException {
+        this.write("old", "old");
+        this.write("blocker", "not a folder");
+        LocalCommitJournal.Transaction transaction = this.journal.begin();
+        transaction.write(this.file("a"), data("a"));
+        transaction.delete(this.file("old"));
+        transaction.write(this.file("blocker/b"), data("b"));
+        this.commitFailing(transaction);
+        assertEquals("a", this.read("a"));
+        assertFalse(this.file("old").exists());
+
+        this.file("blocker").delete();
+        assertEquals(1, this.journal.recover());
+        assertEquals("a", this.read("a"));
+        assertFalse(this.file("old").exists());
+        assertEquals("b", this.read("blocker/b"));
+        assertEquals(0, this.journal.getDirectory().list().length);
+        assertEquals(0, this.journal.recover());
+    }
+
+    @Test
+    public void testRecoverDoesNotRepeatDoneDelete() throws IOException {
+        this.write("folder/old", "old");
+        this.write("blocker", "not a folder");
+        LocalCommitJournal.Transaction transaction = this.journal.begin();
+        transaction.delete(this.file("folder"));
+        transaction.write(this.file("folder/new"), data("new"));
+        transaction.write(this.file("blocker/b"), data("b"));
+        this.commitFailing(transaction);
+
+        this.file("blocker").delete();
+        assertEquals(1, this.journal.recover());
+        assertFalse(this.file("folder/old").exists());
+        assertEquals("new", this.read("folder/new"));
+        assertEquals("b", this.read("blocker/b"));
+    }
+
+    @Test
+    public void testRecoverWithTornDoneMarker() throws IOException {
+        this.write("folder/old", "old");
+        this.write("blocker", "not a folder");
+        LocalCommitJournal.Transaction transaction = this.journal.begin();
+        transaction.delete(this.file("folder"));
+        transaction.write(this.file("folder/new"), data("new"));
+        transaction.write(this.file("blocker/b"), data("b"));
+        this.commitFailing(transaction);
+        // A second done marker cut short by a crash.
+        File written = null;
+        for (File entry : this.journal.getDirectory().listFiles()) {
+            if (entry.getName().endsWith(".journal")) {
+                written = entry;
+            }
+        }
+        FileOutputStream out = new FileOutputStream(written, true);
+        try {
+            out.write(new byte[] { 'X', 0, 0 });
+        } finally {
+            out.close();
+        }
+
+        this.file("blocker").delete();
+        assertEquals(1, this.journal.recover());
+        assertEquals("new", this.read("folder/new"));
+        assertEquals("b", this.read("blocker/b"));
+        assertEquals(0, this.journal.getDirectory().list().length);
+    }
+
+    /**
+     * Commits a transaction whose last change fails after the commit point,
+     * leaving it to recovery.
+     */
+    private void commitFailing(LocalCommitJournal.Transaction transaction) {
+        try {
+            transaction.commit();
+            fail("Expected the commit to fail after its commit point");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("recovery"));
+        }
+    }
+
+    private File file(String path) {
+        return new File(this.tree, path);
+    }
+
+    private void write(String path, String contents) throws IOException {
+        FileUtils.write(this.file(path), contents, "UTF-8");
+    }
+
+    private String read(String path) throws IOException {
+        return FileUtils.readFileToString(this.file(path), "UTF-8");
+    }
+
+    private static ByteArrayInputStream data(String contents) {
+        return new ByteArrayInputStream(contents.getBytes());
+    }
+}
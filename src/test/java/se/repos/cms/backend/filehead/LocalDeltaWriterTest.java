@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.simonsoft.cms.item.Checksum.Algorithm;
+
+public class LocalDeltaWriterTest {
+    private static final int BLOCK_SIZE = 16;
+
+    private File folder;
+    private File file;
+    private LocalDeltaWriter writer;
+
+    @Before
+    public void setUp() throws IOException {
+        this.folder = Files.createTempDirectory("filehead-delta").toFile();
+        this.file = new File(this.folder, "file");
+        this.writer = new LocalDeltaWriter(BLOCK_SIZE, 1024, 4);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.folder);
+    }
+
+    @Test
+    public void testFullForNewFile() throws IOException {
+        byte[] data = random(4 * BLOCK_SIZE, 1);
+        LocalWriteResult result = this.write(data);
+        assertEquals(LocalWriteResult.Mode.FULL, result.getMode());
+        assertEquals(data.length, result.getWritten());
+        this.assertContents(data);
+    }
+
+    @Test
+    public void testUnchanged() throws IOException {
+        byte[] data = random(4 * BLOCK_SIZE + 5, 1);
+        FileUtils.writeByteArrayToFile(this.file, data);
+        long lastModified = this.file.lastModified();
+
+        LocalWriteResult result = this.write(data.clone());
+        assertEquals(LocalWriteResult.Mode.UNCHANGED, result.getMode());
+        assertEquals(0, result.getWritten());
+        assertEquals(data.length, result.getReceived());
+        assertEquals(lastModified, this.file.lastModified());
+        this.assertContents(data);
+    }
+
+    @Test
+    public void testInPlace() throws IOException {
+        byte[] old = random(8 * BLOCK_SIZE, 1);
+        FileUtils.writeByteArrayToFile(this.file, old);
+        byte[] data = old.clone();
+        data[3 * BLOCK_SIZE + 2] ^= 0x55;
+
+        LocalWriteResult result = this.write(data);
+        assertEquals(LocalWriteResult.Mode.IN_PLACE, result.getMode());
+        assertTrue("only the changed block is written",
+                result.getWritten() <= BLOCK_SIZE);
+        this.assertContents(data);
+    }
+
+    @Test
+    public void testInPlaceTruncates() throws IOException {
+        byte[] old = random(8 * BLOCK_SIZE, 1);
+        FileUtils.writeByteArrayToFile(this.file, old);
+        byte[] data = Arrays.copyOf(old, 3 * BLOCK_SIZE);
+
+        LocalWriteResult result = this.write(data);
+        assertEquals(LocalWriteResult.Mode.IN_PLACE, result.getMode());
+        assertEquals(0, result.getWritten());
+        this.assertContents(data);
+    }
+
+    @Test
+    public void testCopyOnWriteWhenBlocksMove() throws IOException {
+        byte[] old = random(8 * BLOCK_SIZE, 1);
+        FileUtils.writeByteArrayToFile(this.file, old);
+        // An insert at the start moves every block.
+        byte[] data = new byte[old.length + 3];
+        System.arraycopy(old, 0, data, 3, old.length);
+
+        LocalWriteResult result = this.write(data);
+        assertEquals(LocalWriteResult.Mode.COPY_ON_WRITE, result.getMode());
+        assertEquals(data.length, result.getReceived());
+        this.assertContents(data);
+        assertEquals(Collections.singletonList("file"),
+                Arrays.asList(this.folder.list()));
+    }
+
+    @Test
+    public void testCopyOnWriteBeyondMaxLiteral() throws IOException {
+        FileUtils.writeByteArrayToFile(this.file, random(8 * BLOCK_SIZE, 1));
+        byte[] data = random(4096, 2);
+
+        LocalWriteResult result = this.write(data);
+        assertEquals(LocalWriteResult.Mode.COPY_ON_WRITE, result.getMode());
+        this.assertContents(data);
+    }
+
+    @Test
+    public void testDigestsCached() throws IOException {
+        byte[] old = random(8 * BLOCK_SIZE, 1);
+        FileUtils.writeByteArrayToFile(this.file, old);
+        byte[] data = old.clone();
+        data[0] ^= 0x55;
+
+        this.write(data);
+        String md5 = LocalDigest.digest(this.file, EnumSet.of(Algorithm.MD5)).get(
+                Algorithm.MD5);
+        assertEquals(md5, LocalChecksumCache.getShared().getCachedHex(this.file,
+                Algorithm.MD5));
+    }
+
+    private LocalWriteResult write(byte[] data) throws IOException {
+        return this.writer.write(this.file, new ByteArrayInputStream(data),
+                EnumSet.of(Algorithm.MD5), LocalSyncPolicy.NONE);
+    }
+
+    private void assertContents(byte[] expected) throws IOException {
+        assertTrue("contents", Arrays.equals(expected,
+                FileUtils.readFileToByteArray(this.file)));
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
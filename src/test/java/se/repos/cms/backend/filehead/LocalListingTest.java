@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalListingTest {
+    private File folder;
+
+    @Before
+    public void setUp() throws IOException {
+        this.folder = Files.createTempDirectory("filehead-listing").toFile();
+        for (int i = 0; i < 25; i++) {
+            this.write(String.format("f%02d", i), i % 5);
+        }
+        new File(this.folder, "sub").mkdir();
+        this.write(LocalLockManager.LOCK_PREFIX + "f00", 1);
+        this.age(60000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.folder);
+    }
+
+    @Test
+    public void testContinuation() {
+        LocalListing listing = new LocalListing(4);
+        List<String> names = new ArrayList<String>();
+        String continuation = null;
+        int pages = 0;
+        do {
+            LocalListingPage<LocalIndexEntry> page = listing.list(this.folder.toPath(),
+                    ItemType.FILE, LocalListing.Sort.NAME, continuation, 10);
+            assertEquals(25, page.getTotal());
+            names.addAll(getNames(page));
+            continuation = page.getContinuation();
+            pages++;
+        } while (continuation != null);
+
+        assertEquals(3, pages);
+        assertEquals(25, names.size());
+        assertEquals("f00", names.get(0));
+        assertEquals("f24", names.get(24));
+        // Paging on lists the folder once.
+        assertEquals(1, listing.getMissCount());
+        assertEquals(2, listing.getHitCount());
+    }
+
+    @Test
+    public void testContinuationAfterChange() throws IOException {
+        LocalListing listing = new LocalListing(4);
+        LocalListingPage<LocalIndexEntry> first = listing.list(this.folder.toPath(),
+                ItemType.FILE, LocalListing.Sort.NAME, null, 10);
+        assertEquals("f09", first.getContinuation());
+        // Neither an entry added before the token nor one removed after it
+        // shifts the next page.
+        this.write("a", 0);
+        new File(this.folder, "f10").delete();
+        this.age(30000);
+
+        LocalListingPage<LocalIndexEntry> next = listing.list(this.folder.toPath(),
+                ItemType.FILE, LocalListing.Sort.NAME, first.getContinuation(), 3);
+        assertEquals(Arrays.asList("f11", "f12", "f13"), getNames(next));
+        assertEquals(25, next.getTotal());
+    }
+
+    @Test
+    public void testSortBySize() {
+        LocalListing listing = new LocalListing(4);
+        LocalListingPage<LocalIndexEntry> first = listing.list(this.folder.toPath(),
+                ItemType.FILE, LocalListing.Sort.SIZE, null, 6);
+        assertEquals(Arrays.asList("f00", "f05", "f10", "f15", "f20", "f01"),
+                getNames(first));
+        assertEquals("1:f01", first.getContinuation());
+
+        LocalListingPage<LocalIndexEntry> next = listing.list(this.folder.toPath(),
+                ItemType.FILE, LocalListing.Sort.SIZE, first.getContinuation(), 2);
+        assertEquals(Arrays.asList("f06", "f11"), getNames(next));
+    }
+
+    @Test
+    public void testFolders() {
+        LocalListingPage<LocalIndexEntry> page = new LocalListing(4).list(
+                this.folder.toPath(), ItemType.FOLDER, LocalListing.Sort.NAME, null, 10);
+        assertEquals(Arrays.asList("sub"), getNames(page));
+        assertNull(page.getContinuation());
+    }
+
+    @Test
+    public void testInvalidContinuation() {
+        try {
+            new LocalListing(4).list(this.folder.toPath(), ItemType.FILE,
+                    LocalListing.Sort.SIZE, "f09", 10);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testEntriesInMemory() {
+        List<LocalIndexEntry> entries = new ArrayList<LocalIndexEntry>();
+        for (String name : new String[] { "c", "a", "d", "b" }) {
+            entries.add(new LocalIndexEntry(name, false, 0, 0));
+        }
+        LocalListingPage<LocalIndexEntry> page = LocalListing.list(entries,
+                ItemType.BOTH, LocalListing.Sort.NAME, null, 1, 2);
+        assertEquals(Arrays.asList("b", "c"), getNames(page));
+        assertEquals("c", page.getContinuation());
+
+        page = LocalListing.list(entries, ItemType.BOTH, LocalListing.Sort.NAME,
+                page.getContinuation(), 0, 2);
+        assertEquals(Arrays.asList("d"), getNames(page));
+        assertNull(page.getContinuation());
+    }
+
+    private void write(String name, int size) throws IOException {
+        FileUtils.writeByteArrayToFile(new File(this.folder, name), new byte[size]);
+    }
+
+    /**
+     * Makes the folder old enough for its listing to be cached.
+     */
+    private void age(long millis) {
+        this.folder.setLastModified(System.currentTimeMillis() - millis);
+    }
+
+    private static List<String> getNames(LocalListingPage<LocalIndexEntry> page) {
+        List<String> names = new ArrayList<String>();
+        for (LocalIndexEntry entry : page.getItems()) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalRevisionLogTest {
+    private File folder;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        this.folder = Files.createTempDirectory("filehead-revisions").toFile();
+        this.file = new File(this.folder, "revisions.log");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.folder);
+    }
+
+    @Test
+    public void testReopen() {
+        LocalRevisionLog log = this.open();
+        log.append("ann", changes("/a", LocalRevisionLog.Action.ADD));
+        log.append("bob", changes("/a/b", LocalRevisionLog.Action.ADD));
+        log.close();
+
+        log = this.open();
+        assertEquals(2, log.getHead().getNumber());
+        assertEquals("bob", log.getAuthor(2));
+        assertEquals(2, log.getLastChanged("/a").getNumber());
+        assertEquals(2, log.getLastChanged("/a/b").getNumber());
+        log.close();
+    }
+
+    @Test
+    public void testTornRecord() throws IOException {
+        LocalRevisionLog log = this.open();
+        log.append("ann", changes("/a", LocalRevisionLog.Action.ADD));
+        log.append("bob", changes("/b", LocalRevisionLog.Action.ADD));
+        log.close();
+        // The second record's length made it to disk but not all of it.
+        RandomAccessFile raw = new RandomAccessFile(this.file, "rw");
+        try {
+            long second = 4 + raw.readInt();
+            raw.seek(second + 4 + 20);
+            int b = raw.read();
+            raw.seek(second + 4 + 20);
+            raw.write(~b);
+        } finally {
+            raw.close();
+        }
+
+        log = this.open();
+        assertEquals(1, log.getHead().getNumber());
+        assertNull(log.getLastChanged("/b"));
+        assertEquals(2, log.append("cid", changes("/c", LocalRevisionLog.Action.ADD))
+                .getNumber());
+        log.close();
+
+        log = this.open();
+        assertEquals(2, log.getHead().getNumber());
+        assertEquals("cid", log.getAuthor(2));
+        assertNull(log.getLastChanged("/b"));
+        List<LocalRevisionEntry> since = log.getChangesSince(1);
+        assertEquals(1, since.size());
+        assertEquals(changes("/c", LocalRevisionLog.Action.ADD), since.get(0)
+                .getChanges());
+        log.close();
+    }
+
+    @Test
+    public void testLengthWithoutRecord() throws IOException {
+        LocalRevisionLog log = this.open();
+        log.append("ann", changes("/a", LocalRevisionLog.Action.ADD));
+        log.close();
+        // A length pointing at a record that was never written.
+        RandomAccessFile raw = new RandomAccessFile(this.file, "rw");
+        try {
+            raw.seek(4 + raw.readInt());
+            raw.writeInt(100);
+        } finally {
+            raw.close();
+        }
+
+        log = this.open();
+        assertEquals(1, log.getHead().getNumber());
+        log.append("bob", changes("/b", LocalRevisionLog.Action.MODIFY));
+        log.close();
+
+        log = this.open();
+        assertEquals(2, log.getHead().getNumber());
+        assertEquals(2, log.getLastChanged("/b").getNumber());
+        log.close();
+    }
+
+    @Test
+    public void testTornTailIsCleared() throws IOException {
+        LocalRevisionLog log = this.open();
+        log.append("ann", changes("/a", LocalRevisionLog.Action.ADD));
+        log.append("bob", changes("/b", LocalRevisionLog.Action.ADD));
+        log.close();
+        RandomAccessFile raw = new RandomAccessFile(this.file, "rw");
+        try {
+            long second = 4 + raw.readInt();
+            raw.seek(second + 4 + 20);
+            raw.write(0xff);
+        } finally {
+            raw.close();
+        }
+        // Opening clears the torn record's length, so that it can't be taken
+        // for a record later.
+        this.open().close();
+        RandomAccessFile cleared = new RandomAccessFile(this.file, "r");
+        try {
+            cleared.seek(4 + cleared.readInt());
+            assertEquals(0, cleared.readInt());
+        } finally {
+            cleared.close();
+        }
+    }
+
+    private LocalRevisionLog open() {
+        return new LocalRevisionLog(this.file, 4096, LocalSyncPolicy.NONE);
+    }
+
+    private static Map<String, LocalRevisionLog.Action> changes(String path,
+            LocalRevisionLog.Action action) {
+        Map<String, LocalRevisionLog.Action> changes =
+                new LinkedHashMap<String, LocalRevisionLog.Action>();
+        changes.put(path, action);
+        return changes;
+    }
+}
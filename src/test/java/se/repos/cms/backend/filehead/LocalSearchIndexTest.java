@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) Repos Mjukvara AB
+ */
+package se.repos.cms.backend.filehead;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalSearchIndexTest {
+    private static final int SEGMENT_SIZE = 4096;
+
+    private File folder;
+    private File tree;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        this.folder = Files.createTempDirectory("filehead-search").toFile();
+        this.tree = new File(this.folder, "tree");
+        this.file = new File(this.folder, "search.index");
+        this.write("a.xml", "a");
+        this.write("b/c.xml", "c");
+        this.write("b/d.txt", "d");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.folder);
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        LocalSearchIndex index = this.open();
+        index.update();
+        index.setRevision(3);
+        FileUtils.deleteDirectory(new File(this.tree, "b"));
+        index.refresh(new File(this.tree, "b"));
+        index.close();
+
+        index = this.open();
+        assertEquals(1, index.size());
+        assertEquals(3, index.getRevision());
+        assertEquals(Collections.singletonList("/a.xml"), this.search(index, "*.xml"));
+        index.close();
+    }
+
+    @Test
+    public void testTornRecord() throws IOException {
+        LocalSearchIndex index = this.open();
+        index.update();
+        this.write("e.xml", "e");
+        index.refresh(new File(this.tree, "e.xml"));
+        index.close();
+        // The last record's length made it to disk but not all of it.
+        RandomAccessFile raw = new RandomAccessFile(this.file, "rw");
+        try {
+            long last = this.getLastRecord(raw);
+            raw.seek(last + 4 + 1);
+            raw.write('X');
+        } finally {
+            raw.close();
+        }
+
+        index = this.open();
+        assertEquals(4, index.size());
+        assertEquals(list("/a.xml", "/b/c.xml"), this.search(index, "*.xml"));
+        index.update();
+        index.close();
+
+        index = this.open();
+        assertEquals(5, index.size());
+        assertEquals(list("/a.xml", "/b/c.xml", "/e.xml"), this.search(index, "*.xml"));
+        index.close();
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        LocalSearchIndex index = this.open();
+        index.update();
+        File changed = new File(this.tree, "b/d.txt");
+        for (int i = 1; i <= 20; i++) {
+            changed.setLastModified(i * 1000L);
+            index.refresh(changed);
+        }
+        index.setRevision(7);
+        long before = this.getEnd();
+        index.compact();
+        assertTrue(this.getEnd() < before);
+        assertEquals(4, index.size());
+        assertEquals(7, index.getRevision());
+        List<LocalSearchHit> hits = index.search(this.tree, this.query("d.txt"));
+        assertEquals(20000L, hits.get(0).getEntry().lastModifiedTime().toMillis());
+
+        // Appends go after the compacted records.
+        this.write("e.xml", "e");
+        index.refresh(new File(this.tree, "e.xml"));
+        index.close();
+
+        index = this.open();
+        assertEquals(5, index.size());
+        assertEquals(7, index.getRevision());
+        assertEquals(list("/a.xml", "/b/c.xml", "/e.xml"), this.search(index, "*.xml"));
+        index.close();
+    }
+
+    @Test
+    public void testCompactOverLeftover() throws IOException {
+        LocalSearchIndex index = this.open();
+        index.update();
+        // From a compaction that crashed before it replaced the index.
+        FileUtils.writeByteArrayToFile(new File(this.file.getPath() + ".compact"),
+                new byte[] { 1, 2, 3 });
+        index.compact();
+        index.close();
+
+        index = this.open();
+        assertEquals(4, index.size());
+        assertEquals(list("/a.xml", "/b/c.xml"), this.search(index, "*.xml"));
+        index.close();
+    }
+
+    @Test
+    public void testUpdateCompactsWhenWasteful() throws IOException {
+        LocalSearchIndex index = this.open();
+        index.update();
+        File changed = new File(this.tree, "b/d.txt");
+        for (int i = 1; i <= 200; i++) {
+            changed.setLastModified(i * 1000L);
+            index.refresh(changed);
+        }
+        long before = this.getEnd();
+        assertTrue(before > SEGMENT_SIZE);
+        index.update();
+        assertTrue(this.getEnd() < SEGMENT_SIZE);
+        index.close();
+
+        index = this.open();
+        assertEquals(4, index.size());
+        assertEquals(list("/b/d.txt"), this.search(index, "*.txt"));
+        index.close();
+    }
+
+    private LocalSearchIndex open() {
+        return new LocalSearchIndex(this.tree, this.file, SEGMENT_SIZE);
+    }
+
+    private LocalSearchQuery query(String glob) {
+        LocalSearchQuery query = new LocalSearchQuery();
+        query.setGlob(glob);
+        return query;
+    }
+
+    /**
+     * @return The paths found below the tree, sorted.
+     */
+    private List<String> search(LocalSearchIndex index, String glob) {
+        List<String> found = new ArrayList<String>();
+        String prefix = this.tree.getAbsolutePath();
+        for (LocalSearchHit hit : index.search(this.tree, this.query(glob))) {
+            found.add(hit.getPath().substring(prefix.length()));
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    private static List<String> list(String... paths) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, paths);
+        return list;
+    }
+
+    /**
+     * @return Where the record after the last one would go.
+     */
+    private long getEnd() throws IOException {
+        RandomAccessFile raw = new RandomAccessFile(this.file, "r");
+        try {
+            long last = this.getLastRecord(raw);
+            raw.seek(last);
+            return last + 4 + raw.readInt();
+        } finally {
+            raw.close();
+        }
+    }
+
+    /**
+     * Follows the record lengths, skipping to the next segment where a
+     * record didn't fit.
+     *
+     * @return The offset of the last record.
+     */
+    private long getLastRecord(RandomAccessFile raw) throws IOException {
+        long position = 0;
+        long last = -1;
+        while (position + 4 <= raw.length()) {
+            raw.seek(position);
+            int length = raw.readInt();
+            if (length == -1) {
+                position += SEGMENT_SIZE - position % SEGMENT_SIZE;
+            } else if (length == 0) {
+                break;
+            } else {
+                last = position;
+                position += 4 + length;
+            }
+        }
+        return last;
+    }
+
+    private void write(String path, String contents) throws IOException {
+        FileUtils.write(new File(this.tree, path), contents, "UTF-8");
+    }
+}